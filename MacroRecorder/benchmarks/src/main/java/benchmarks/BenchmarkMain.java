@@ -0,0 +1,47 @@
+package benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with allocation profiling, writing the results as JSON so they can be compared
+ * between builds. Any JMH command line options are applied on top, so a name pattern selects benchmarks
+ * and -rff changes where the results are written.
+ *
+ * @author ABM
+ *
+ */
+public final class BenchmarkMain {
+
+	/** File the results are written to unless -rff says otherwise */
+	private static final String RESULT_FILE = "jmh-result.json";
+
+	/**
+	 * Not instantiable
+	 */
+	private BenchmarkMain() {
+	}
+
+	/**
+	 * Runs the benchmarks
+	 * @param args JMH command line options
+	 * @throws RunnerException if a benchmark fails
+	 * @throws CommandLineOptionException if the options are invalid
+	 */
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		Options options = new OptionsBuilder()
+				.parent(commandLine)
+				.addProfiler(GCProfiler.class)
+				.resultFormat(commandLine.getResultFormat().orElse(ResultFormatType.JSON))
+				.result(commandLine.getResult().orElse(RESULT_FILE))
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,66 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import macros.Macro;
+
+/**
+ * Generates realistic macro strings and macro lists for the benchmarks.
+ * A fixed seed keeps the data the same between runs so results can be compared.
+ *
+ * @author ABM
+ *
+ */
+final class MacroData {
+
+	/** Seed of the generated data */
+	private static final long SEED = 42;
+	/** Pieces macro strings are built from: letters, digits, shift runs, special buttons, chords and sleeps */
+	private static final String[] PIECES = { "hello", " world", "<abc>", "123", "\\E", "\\T", "\\Cc", "$25$", "<x y>", "\\U\\D" };
+
+	/**
+	 * Not instantiable
+	 */
+	private MacroData() {
+	}
+
+	/**
+	 * Generates a macro string
+	 * @param length smallest number of characters in the string
+	 * @return the macro string
+	 */
+	static String macroString(int length) {
+		return macroString(new Random(SEED), length);
+	}
+
+	/**
+	 * Generates macros with distinct names
+	 * @param count number of macros
+	 * @param length smallest number of characters in each macro string
+	 * @return the macros
+	 */
+	static List<Macro> macros(int count, int length) {
+		Random random = new Random(SEED);
+		List<Macro> macros = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			macros.add(new Macro("macro" + i, macroString(random, length)));
+		}
+		return macros;
+	}
+
+	/**
+	 * Generates a macro string
+	 * @param random source of the pieces
+	 * @param length smallest number of characters in the string
+	 * @return the macro string
+	 */
+	private static String macroString(Random random, int length) {
+		StringBuilder sb = new StringBuilder(length + 8);
+		while (sb.length() < length) {
+			sb.append(PIECES[random.nextInt(PIECES.length)]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,67 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import macros.Macro;
+
+/**
+ * Parsing and validating macro strings into macros, and writing them back out.
+ *
+ * @author ABM
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MacroParseBenchmark {
+
+	/** Number of characters in the macro string */
+	@Param({ "32", "100000" })
+	public int length;
+	/** Macro string being parsed */
+	private String macroString;
+	/** Macro whose string is written back out */
+	private Macro macro;
+
+	/**
+	 * Builds the macro string
+	 */
+	@Setup
+	public void setUp() {
+		macroString = MacroData.macroString(length);
+		macro = new Macro("bench", macroString);
+	}
+
+	/**
+	 * Parses and validates a macro string, which is the whole cost of constructing a macro
+	 * @return the macro
+	 */
+	@Benchmark
+	public Macro construct() {
+		return new Macro("bench", macroString);
+	}
+
+	/**
+	 * Rebuilds a macro string from a compiled macro, as done for macros read from a binary library
+	 * @return the macro string
+	 */
+	@Benchmark
+	public String decompile() {
+		return Macro.fromProgram("bench", macro.getProgram()).getMacroString();
+	}
+}
@@ -0,0 +1,92 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.MacroSaveReader;
+import io.MacroSaveWriter;
+import macros.Macro;
+
+/**
+ * Loading and saving text macro save files of generated macros.
+ *
+ * @author ABM
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class MacroSaveFileBenchmark {
+
+	/** Characters in each generated macro string */
+	private static final int MACRO_LENGTH = 40;
+	/** Number of lines of the save file */
+	@Param({ "1000", "100000", "1000000" })
+	public int lines;
+	/** Macros written to the save files */
+	private List<Macro> macros;
+	/** Save file read by the load benchmark */
+	private File input;
+	/** Save file overwritten by the save benchmark */
+	private File output;
+
+	/**
+	 * Generates the macros and writes the save file to load
+	 * @throws IOException if the temporary files cannot be created
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		macros = MacroData.macros(lines, MACRO_LENGTH);
+		input = File.createTempFile("macros-in", ".txt");
+		output = File.createTempFile("macros-out", ".txt");
+		MacroSaveWriter.writeMacroListToFile(input, macros);
+	}
+
+	/**
+	 * Deletes the temporary files
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		input.delete();
+		output.delete();
+	}
+
+	/**
+	 * Reads and validates every macro of the save file
+	 * @return the macros
+	 */
+	@Benchmark
+	public ArrayList<Macro> load() {
+		return MacroSaveReader.readMacroSaveFile(input);
+	}
+
+	/**
+	 * Writes every macro to a save file
+	 * @return the file written
+	 */
+	@Benchmark
+	public File save() {
+		MacroSaveWriter.writeMacroListToFile(output, macros);
+		return output;
+	}
+}
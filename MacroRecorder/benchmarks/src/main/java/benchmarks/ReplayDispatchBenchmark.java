@@ -0,0 +1,88 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import macros.Macro;
+import mkbd.kbd.KeyboardPresser;
+import mkbd.kbd.NullKeySink;
+import replay.ReplayEngine;
+import replay.ReplayOptions;
+import replay.ReplayReport;
+import replay.SystemReplayClock;
+
+/**
+ * Dispatching a macro's key events to a key sink which discards them, so only the replay path is measured.
+ * Sleeps are skipped by replaying in max throughput mode.
+ *
+ * @author ABM
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplayDispatchBenchmark {
+
+	/** Number of characters in the macro string */
+	@Param({ "32", "100000" })
+	public int length;
+	/** Macro being replayed */
+	private Macro macro;
+	/** Engine replaying into the null sink */
+	private ReplayEngine engine;
+	/** Presser sending single keys to the null sink */
+	private KeyboardPresser presser;
+
+	/**
+	 * Builds the macro and engine
+	 */
+	@Setup
+	public void setUp() {
+		macro = new Macro("bench", MacroData.macroString(length));
+		engine = new ReplayEngine(NullKeySink.INSTANCE, SystemReplayClock.INSTANCE, ReplayOptions.maxThroughput(0));
+		macro.getReplayProgram();
+		presser = new KeyboardPresser(NullKeySink.INSTANCE);
+	}
+
+	/**
+	 * Replays the whole optimized program
+	 * @return the report of the replay
+	 * @throws InterruptedException never, nothing waits
+	 */
+	@Benchmark
+	public ReplayReport replay() throws InterruptedException {
+		return engine.run(macro.getReplayProgram());
+	}
+
+	/**
+	 * Replays the program as compiled, without the peephole optimizer
+	 * @return the report of the replay
+	 * @throws InterruptedException never, nothing waits
+	 */
+	@Benchmark
+	public ReplayReport replayUnoptimized() throws InterruptedException {
+		return engine.run(macro.getProgram());
+	}
+
+	/**
+	 * Taps a single key through the legacy presser
+	 */
+	@Benchmark
+	public void tapKey() {
+		presser.tapKey('A');
+	}
+}
@@ -0,0 +1,93 @@
+package cli;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frames exchanged with a MacroDaemon over its Unix domain socket.
+ * Every frame is a big-endian int giving the length of the rest of the frame, then a one byte code, a big-endian
+ * int id and a body. Requests carry an operation code and an id chosen by the client; every response carries a
+ * status and the id of the request it answers.
+ * <p>
+ * A client may send any number of requests without waiting for answers. Requests are handled in the order they
+ * arrive and each is answered once, in order, with two exceptions. A RUN is answered with QUEUED straight away and
+ * once more with OK, CANCELLED or FAILED when the replay stops. A RELOAD is answered when the library has been read.
+ * Those later answers may come after answers to later requests, and are told apart by their id.
+ * </p>
+ * <ul>
+ * <li>RUN: the body is the UTF-8 name of a macro to replay, the id identifies the replay to CANCEL</li>
+ * <li>CANCEL: the body is empty to cancel every replay, or the 4 byte id of a RUN sent on the same connection</li>
+ * <li>STATUS: the body is empty, the answer is lines of name=value text</li>
+ * <li>RELOAD: the body is empty, the library is read from its file again and the answer gives the number of macros</li>
+ * </ul>
+ *
+ * @author ABM
+ */
+public final class DaemonProtocol {
+
+	/** Operation replaying a macro */
+	public static final byte RUN = 1;
+	/** Operation cancelling replays */
+	public static final byte CANCEL = 2;
+	/** Operation describing the daemon */
+	public static final byte STATUS = 3;
+	/** Operation reading the library again */
+	public static final byte RELOAD = 4;
+	/** Status of a request which was carried out, or of a replay which finished */
+	public static final byte OK = 0;
+	/** Status of a RUN whose replay has been queued */
+	public static final byte QUEUED = 1;
+	/** Status of a replay which was cancelled */
+	public static final byte CANCELLED = 2;
+	/** Status of a request or replay which failed, the body says why */
+	public static final byte FAILED = 3;
+	/** Bytes of a frame before its body, not counting the length */
+	public static final int HEADER_SIZE = 5;
+	/** Largest length a frame may give, a peer sending more is disconnected */
+	public static final int MAX_FRAME_LENGTH = 1 << 16;
+
+	/**
+	 * Not instantiated
+	 */
+	private DaemonProtocol() {
+		// Empty
+	}
+
+	/**
+	 * Encodes a frame
+	 * @param code operation or status
+	 * @param id id of the request
+	 * @param body body of the frame
+	 * @return the frame, ready to write
+	 * @throws IllegalArgumentException if the body is too long for a frame
+	 */
+	public static ByteBuffer frame(byte code, int id, byte[] body) {
+		if (HEADER_SIZE + body.length > MAX_FRAME_LENGTH) {
+			throw new IllegalArgumentException("Frame too long.");
+		}
+		ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + HEADER_SIZE + body.length);
+		frame.putInt(HEADER_SIZE + body.length).put(code).putInt(id).put(body);
+		return frame.flip();
+	}
+
+	/**
+	 * Encodes a frame with a text body
+	 * @param code operation or status
+	 * @param id id of the request
+	 * @param text body of the frame
+	 * @return the frame, ready to write
+	 * @throws IllegalArgumentException if the body is too long for a frame
+	 */
+	public static ByteBuffer frame(byte code, int id, String text) {
+		return frame(code, id, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Encodes an id as the body of a CANCEL
+	 * @param id id of the RUN to cancel
+	 * @return the body
+	 */
+	public static byte[] idBody(int id) {
+		return ByteBuffer.allocate(Integer.BYTES).putInt(id).array();
+	}
+}
@@ -0,0 +1,556 @@
+package cli;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.MacroBinaryReader;
+import io.MacroSaveReader;
+import macros.Macro;
+import macros.MacroLibrary;
+import mkbd.kbd.KeySink;
+import replay.ReplayHandle;
+import replay.ReplayOptions;
+import replay.ReplayReport;
+import replay.ReplayScheduler;
+import replay.SystemReplayClock;
+
+/**
+ * Keeps a macro library loaded and replays its macros on request from other local programs.
+ * Requests arrive over a Unix domain socket in the frames described by DaemonProtocol, so triggering a macro costs
+ * a socket write and a library lookup rather than starting a JVM and parsing the library.
+ * <p>
+ * A single thread serves every connection with a selector. Replays run on a ReplayScheduler of the daemon's own,
+ * which takes turns between concurrent replays so their keys never interleave in the middle of a chord, and
+ * reloads read the library on a thread of their own, so no request waits for keys to be sent or a file to be parsed.
+ * </p>
+ *
+ * @author ABM
+ */
+public class MacroDaemon implements Closeable {
+
+	/** Size of the buffer requests are first read into, grown for longer frames */
+	private static final int READ_BUFFER_SIZE = 4096;
+	/** Most bytes of answers queued for a connection before it stops being read until the client catches up */
+	private static final int MAX_QUEUED_BYTES = 1 << 20;
+	/** Most characters of a requested name repeated in an answer */
+	private static final int MAX_ECHOED_NAME = 256;
+	/** Bits of a unix file mode giving the type of the file */
+	private static final int S_IFMT = 0170000;
+	/** Type bits of a socket */
+	private static final int S_IFSOCK = 0140000;
+
+	/** File the library is read from */
+	private final File file;
+	/** Path of the socket */
+	private final Path socketPath;
+	/** Where replays send their key events */
+	private final KeySink sink;
+	/** How fast macros are replayed */
+	private final ReplayOptions options;
+	/** Scheduler every replay of the daemon runs on */
+	private final ReplayScheduler scheduler;
+	/** Reads the library again for RELOAD requests */
+	private final ExecutorService reloader;
+	/** Selector serving the socket and every connection */
+	private final Selector selector;
+	/** Socket accepting connections */
+	private final ServerSocketChannel server;
+	/** Work handed to the serving thread by replays and reloads */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	/** Library macros are looked up in, replaced whole by a reload */
+	private volatile MacroLibrary library;
+	/** Number of connections open, only used by the serving thread */
+	private int connections;
+	/** Number of reloads which succeeded */
+	private volatile int reloads;
+	/** Set once the daemon is closed */
+	private volatile boolean closed;
+
+	/**
+	 * Loads a library and binds its socket, ready to serve
+	 * @param file text save file or binary macro library to load
+	 * @param socketPath path of the socket, a stale socket left by a daemon which did not shut down is replaced
+	 * @param sink where replays send their key events
+	 * @param options how fast macros are replayed and whether long runs of plain text are typed in one go
+	 * @throws IllegalArgumentException if the library cannot be loaded
+	 * @throws IllegalStateException if another daemon is serving the socket
+	 * @throws IOException if the socket cannot be bound
+	 */
+	public MacroDaemon(File file, Path socketPath, KeySink sink, ReplayOptions options) throws IOException {
+		if (sink == null) {
+			throw new IllegalArgumentException("Invalid key sink.");
+		}
+		if (options == null) {
+			throw new IllegalArgumentException("Invalid replay options.");
+		}
+		this.file = file;
+		this.socketPath = socketPath;
+		this.sink = sink;
+		this.options = options;
+		this.library = load();
+		this.server = bind(socketPath);
+		this.selector = Selector.open();
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		this.scheduler = new ReplayScheduler(SystemReplayClock.INSTANCE);
+		this.reloader = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "macro-daemon-reload");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Binds a socket, replacing a socket file no daemon is listening on any more
+	 * @param path path of the socket
+	 * @return the bound socket
+	 * @throws IllegalStateException if another daemon is serving the socket
+	 * @throws IOException if the socket cannot be bound
+	 */
+	private static ServerSocketChannel bind(Path path) throws IOException {
+		UnixDomainSocketAddress address = UnixDomainSocketAddress.of(path);
+		ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			try {
+				channel.bind(address);
+			} catch (BindException e) {
+				boolean served;
+				try (SocketChannel probe = SocketChannel.open(address)) {
+					served = probe.isConnected();
+				} catch (IOException stale) {
+					served = false;
+				}
+				if (served) {
+					throw new IllegalStateException("Another daemon is serving " + path + ".");
+				}
+				if (!isSocket(path)) {
+					throw new BindException(path + " exists and is not a socket.");
+				}
+				// Nothing answers, so the file was left behind by a daemon which did not shut down
+				Files.deleteIfExists(path);
+				channel.bind(address);
+			}
+			return channel;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Tells if a file is a socket, so nothing else is deleted in place of a stale one
+	 * @param path the file
+	 * @return true if it is a socket
+	 * @throws IOException if its type cannot be read
+	 */
+	private static boolean isSocket(Path path) throws IOException {
+		int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+		return (mode & S_IFMT) == S_IFSOCK;
+	}
+
+	/**
+	 * Reads the library from its file
+	 * @return the library
+	 * @throws IllegalArgumentException if the file cannot be loaded
+	 */
+	private MacroLibrary load() {
+		return MacroBinaryReader.isMacroLibraryFile(file) ? MacroBinaryReader.readMacroLibrary(file)
+				: MacroSaveReader.readMacroLibrary(file);
+	}
+
+	/**
+	 * Gets the library macros are looked up in
+	 * @return the library
+	 */
+	public MacroLibrary getLibrary() {
+		return library;
+	}
+
+	/**
+	 * Gets the path of the socket
+	 * @return the path
+	 */
+	public Path getSocketPath() {
+		return socketPath;
+	}
+
+	/**
+	 * Serves requests on the calling thread until the daemon is closed, then cancels its replays and removes the socket
+	 * @throws IOException if the selector fails
+	 */
+	public void serve() throws IOException {
+		try {
+			while (!closed) {
+				selector.select();
+				for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						// Only the answer the task was giving is lost, the other connections are still served
+					}
+				}
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						Connection connection = (Connection) key.attachment();
+						try {
+							if (key.isReadable()) {
+								connection.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.flush();
+							}
+						} catch (RuntimeException e) {
+							// A request the daemon cannot handle drops the connection which sent it, not the daemon
+							connection.close();
+						}
+					}
+				}
+			}
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+			selector.close();
+			scheduler.shutdown();
+			reloader.shutdownNow();
+			Files.deleteIfExists(socketPath);
+		}
+	}
+
+	/**
+	 * Stops serving, replays still running are cancelled once the serving thread wakes up
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Accepts a waiting connection
+	 * @throws IOException if the connection cannot be set up
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		Connection connection = new Connection(channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+		connections++;
+	}
+
+	/**
+	 * Hands work to the serving thread
+	 * @param task the work
+	 */
+	private void post(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Describes the daemon for a STATUS request
+	 * @return lines of name=value text
+	 */
+	private String describe() {
+		return "file=" + file.getAbsolutePath() + "\nmacros=" + library.size() + "\nactive=" + scheduler.getActiveCount()
+				+ "\nconnections=" + connections + "\nreloads=" + reloads + "\nsavedBytes=" + library.getPool().getSavedBytes();
+	}
+
+	/**
+	 * A client connected to the socket, only used by the serving thread
+	 */
+	private final class Connection {
+
+		/** Channel of the connection */
+		private final SocketChannel channel;
+		/** Key of the channel with the selector */
+		private SelectionKey key;
+		/** Bytes read and not yet handled, ready for reading more */
+		private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		/** Frames waiting to be written, in order */
+		private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+		/** Bytes of the queued frames not written yet */
+		private long queuedBytes;
+		/** Replays started by the connection which have not stopped, by the id of their RUN */
+		private final Map<Integer, ReplayHandle> runs = new HashMap<>();
+		/** Set once the connection is closed */
+		private boolean closed;
+
+		/**
+		 * Constructs a connection
+		 * @param channel channel of the connection
+		 */
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Reads whatever has arrived and handles every whole request in it, answering them with a single write
+		 */
+		void read() {
+			try {
+				if (channel.read(in) < 0) {
+					close();
+					return;
+				}
+				in.flip();
+				while (in.remaining() >= Integer.BYTES) {
+					int length = in.getInt(in.position());
+					if (length < DaemonProtocol.HEADER_SIZE || length > DaemonProtocol.MAX_FRAME_LENGTH) {
+						close();
+						return;
+					}
+					if (in.remaining() < Integer.BYTES + length) {
+						if (in.capacity() < Integer.BYTES + length) {
+							in = ByteBuffer.allocate(Integer.BYTES + length).put(in).flip();
+						}
+						break;
+					}
+					in.getInt();
+					byte op = in.get();
+					int id = in.getInt();
+					byte[] body = new byte[length - DaemonProtocol.HEADER_SIZE];
+					in.get(body);
+					handle(op, id, body);
+				}
+				in.compact();
+				flush();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Carries out a request
+		 * @param op operation of the request
+		 * @param id id of the request
+		 * @param body body of the request
+		 */
+		private void handle(byte op, int id, byte[] body) {
+			switch (op) {
+			case DaemonProtocol.RUN:
+				run(id, new String(body, StandardCharsets.UTF_8));
+				break;
+			case DaemonProtocol.CANCEL:
+				cancel(id, body);
+				break;
+			case DaemonProtocol.STATUS:
+				send(DaemonProtocol.OK, id, describe());
+				break;
+			case DaemonProtocol.RELOAD:
+				reload(id);
+				break;
+			default:
+				send(DaemonProtocol.FAILED, id, "Unknown operation " + op + ".");
+			}
+		}
+
+		/**
+		 * Queues a replay of a macro, answered again when it stops
+		 * @param id id of the request
+		 * @param name name of the macro
+		 */
+		private void run(int id, String name) {
+			Macro macro = library.get(name);
+			if (macro == null) {
+				send(DaemonProtocol.FAILED, id, "There is no macro named " + shorten(name) + ".");
+				return;
+			}
+			if (runs.containsKey(id)) {
+				send(DaemonProtocol.FAILED, id, "A replay with id " + id + " is still running.");
+				return;
+			}
+			ReplayHandle handle;
+			try {
+				handle = scheduler.submit(macro, sink, options);
+			} catch (IllegalStateException e) {
+				send(DaemonProtocol.FAILED, id, e.getMessage());
+				return;
+			}
+			runs.put(id, handle);
+			send(DaemonProtocol.QUEUED, id, shorten(macro.getMacroName()));
+			handle.getCompletion().whenComplete((report, failure) -> post(() -> stopped(id, handle, report, failure)));
+		}
+
+		/**
+		 * Answers a RUN a second time once its replay has stopped
+		 * @param id id of the RUN
+		 * @param handle handle of the replay
+		 * @param report timing of the replay, null unless it completed
+		 * @param failure what stopped it, null if it completed
+		 */
+		private void stopped(int id, ReplayHandle handle, ReplayReport report, Throwable failure) {
+			runs.remove(id, handle);
+			Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+			if (report != null) {
+				send(DaemonProtocol.OK, id, report.toString());
+			} else if (cause instanceof CancellationException) {
+				send(DaemonProtocol.CANCELLED, id, cause.getMessage());
+			} else {
+				send(DaemonProtocol.FAILED, id, String.valueOf(cause.getMessage()));
+			}
+			flush();
+		}
+
+		/**
+		 * Cancels one replay of the connection, or every replay of the daemon
+		 * @param id id of the request
+		 * @param body empty, or the id of the RUN to cancel
+		 */
+		private void cancel(int id, byte[] body) {
+			if (body.length == 0) {
+				send(DaemonProtocol.OK, id, Integer.toString(scheduler.cancelAll()));
+				return;
+			}
+			if (body.length != Integer.BYTES) {
+				send(DaemonProtocol.FAILED, id, "Invalid request.");
+				return;
+			}
+			int runId = ByteBuffer.wrap(body).getInt();
+			ReplayHandle handle = runs.get(runId);
+			if (handle == null) {
+				send(DaemonProtocol.FAILED, id, "There is no replay with id " + runId + ".");
+				return;
+			}
+			send(DaemonProtocol.OK, id, handle.cancel() ? "1" : "0");
+		}
+
+		/**
+		 * Reads the library again off the serving thread, answered once it is read.
+		 * Replays requested before the new library is in place use the old one.
+		 * @param id id of the request
+		 */
+		private void reload(int id) {
+			reloader.execute(() -> {
+				try {
+					MacroLibrary loaded = load();
+					library = loaded;
+					reloads++;
+					post(() -> reply(DaemonProtocol.OK, id, Integer.toString(loaded.size())));
+				} catch (IllegalArgumentException e) {
+					post(() -> reply(DaemonProtocol.FAILED, id, e.getMessage()));
+				}
+			});
+		}
+
+		/**
+		 * Sends a single answer straight away
+		 * @param status status of the answer
+		 * @param id id of the request
+		 * @param text body of the answer
+		 */
+		private void reply(byte status, int id, String text) {
+			send(status, id, text);
+			flush();
+		}
+
+		/**
+		 * Queues an answer, written by the next flush. A body too long for a frame is cut short.
+		 * @param status status of the answer
+		 * @param id id of the request
+		 * @param text body of the answer
+		 */
+		private void send(byte status, int id, String text) {
+			if (closed) {
+				return;
+			}
+			byte[] body = text.getBytes(StandardCharsets.UTF_8);
+			int max = DaemonProtocol.MAX_FRAME_LENGTH - DaemonProtocol.HEADER_SIZE;
+			if (body.length > max) {
+				// Cut before a whole character rather than through one
+				while ((body[max] & 0xC0) == 0x80) {
+					max--;
+				}
+				body = Arrays.copyOf(body, max);
+			}
+			ByteBuffer frame = DaemonProtocol.frame(status, id, body);
+			queuedBytes += frame.remaining();
+			out.add(frame);
+		}
+
+		/**
+		 * Shortens a name repeated in an answer, which may be as long as the request that held it
+		 * @param name the name
+		 * @return the name, or its first MAX_ECHOED_NAME characters followed by an ellipsis
+		 */
+		private String shorten(String name) {
+			return name.length() <= MAX_ECHOED_NAME ? name : name.substring(0, MAX_ECHOED_NAME) + "...";
+		}
+
+		/**
+		 * Writes as many queued answers as the socket takes, waiting to write the rest when it has room.
+		 * A client which sends requests without reading their answers stops being read while more than
+		 * MAX_QUEUED_BYTES are queued, and is read again once the backlog is written.
+		 */
+		void flush() {
+			if (closed) {
+				return;
+			}
+			try {
+				if (!out.isEmpty()) {
+					queuedBytes -= channel.write(out.toArray(new ByteBuffer[0]));
+					while (!out.isEmpty() && !out.peek().hasRemaining()) {
+						out.poll();
+					}
+				}
+				int ops = queuedBytes > MAX_QUEUED_BYTES ? 0 : SelectionKey.OP_READ;
+				key.interestOps(out.isEmpty() ? ops : ops | SelectionKey.OP_WRITE);
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Closes the connection, its replays keep running
+		 */
+		private void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			out.clear();
+			queuedBytes = 0;
+			connections--;
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Already unusable
+			}
+		}
+	}
+}
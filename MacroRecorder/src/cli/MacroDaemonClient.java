@@ -0,0 +1,177 @@
+package cli;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Blocking client of a MacroDaemon, for Java programs triggering macros.
+ * Requests may be sent back to back before reading any answers, and answers are matched to requests by their id.
+ *
+ * @author ABM
+ */
+public class MacroDaemonClient implements Closeable {
+
+	/** Channel connected to the daemon */
+	private final SocketChannel channel;
+	/** Buffer answers are read into */
+	private final ByteBuffer in = ByteBuffer.allocate(Integer.BYTES + DaemonProtocol.MAX_FRAME_LENGTH);
+	/** Id given to the next request */
+	private int nextId = 1;
+
+	/**
+	 * Connects to a daemon
+	 * @param socketPath path of the daemon's socket
+	 * @throws IOException if no daemon is serving the socket
+	 */
+	public MacroDaemonClient(Path socketPath) throws IOException {
+		this.channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+		in.flip();
+	}
+
+	/**
+	 * Asks the daemon to replay a macro
+	 * @param name name of the macro
+	 * @return id of the request, which the replay's answers carry
+	 * @throws IOException if the request cannot be sent
+	 */
+	public int run(String name) throws IOException {
+		return send(DaemonProtocol.RUN, name.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Asks the daemon to cancel a replay started by this client
+	 * @param runId id of the RUN request
+	 * @return id of the request
+	 * @throws IOException if the request cannot be sent
+	 */
+	public int cancel(int runId) throws IOException {
+		return send(DaemonProtocol.CANCEL, DaemonProtocol.idBody(runId));
+	}
+
+	/**
+	 * Sends a request
+	 * @param op operation of the request
+	 * @param body body of the request
+	 * @return id of the request
+	 * @throws IOException if the request cannot be sent
+	 */
+	public int send(byte op, byte[] body) throws IOException {
+		int id = nextId++;
+		ByteBuffer frame = DaemonProtocol.frame(op, id, body);
+		while (frame.hasRemaining()) {
+			channel.write(frame);
+		}
+		return id;
+	}
+
+	/**
+	 * Waits for the next answer
+	 * @return the answer
+	 * @throws IOException if the connection fails or the daemon sends an invalid frame
+	 */
+	public Response receive() throws IOException {
+		fill(Integer.BYTES);
+		int length = in.getInt(in.position());
+		if (length < DaemonProtocol.HEADER_SIZE || length > DaemonProtocol.MAX_FRAME_LENGTH) {
+			throw new IOException("Invalid frame.");
+		}
+		fill(Integer.BYTES + length);
+		in.getInt();
+		byte status = in.get();
+		int id = in.getInt();
+		byte[] body = new byte[length - DaemonProtocol.HEADER_SIZE];
+		in.get(body);
+		return new Response(status, id, new String(body, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Reads until the buffer holds enough bytes
+	 * @param bytes number of bytes needed
+	 * @throws IOException if the connection fails or is closed first
+	 */
+	private void fill(int bytes) throws IOException {
+		if (in.remaining() >= bytes) {
+			return;
+		}
+		in.compact();
+		while (in.position() < bytes) {
+			if (channel.read(in) < 0) {
+				throw new EOFException("The daemon closed the connection.");
+			}
+		}
+		in.flip();
+	}
+
+	/**
+	 * Disconnects, replays already requested keep running
+	 * @throws IOException if the channel cannot be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * An answer from the daemon
+	 */
+	public static final class Response {
+
+		/** Status of the answer */
+		private final byte status;
+		/** Id of the request answered */
+		private final int id;
+		/** Body of the answer */
+		private final String text;
+
+		/**
+		 * Constructs an answer
+		 * @param status status of the answer
+		 * @param id id of the request answered
+		 * @param text body of the answer
+		 */
+		Response(byte status, int id, String text) {
+			this.status = status;
+			this.id = id;
+			this.text = text;
+		}
+
+		/**
+		 * Gets the status of the answer
+		 * @return one of the statuses of DaemonProtocol
+		 */
+		public byte getStatus() {
+			return status;
+		}
+
+		/**
+		 * Gets the id of the request answered
+		 * @return the id
+		 */
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 * Gets the body of the answer
+		 * @return the text of the answer
+		 */
+		public String getText() {
+			return text;
+		}
+
+		/**
+		 * Describes the answer
+		 * @return the id, status and text
+		 */
+		@Override
+		public String toString() {
+			return "#" + id + " " + status + " " + text;
+		}
+	}
+}
@@ -0,0 +1,475 @@
+package cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.LazyMacroLibrary;
+import io.MacroBinaryReader;
+import io.MacroSaveReader;
+import macros.Macro;
+import macros.MacroLibrary;
+import macros.MacroResolver;
+import mkbd.kbd.KeySink;
+import mkbd.kbd.KeyboardPresser;
+import mkbd.kbd.NullKeySink;
+import mkbd.kbd.RecordingKeySink;
+import replay.DryRunEngine;
+import replay.DryRunResult;
+import replay.MacroTimeline;
+import replay.ReplayEngine;
+import replay.ReplayMetrics;
+import replay.ReplayOptions;
+import replay.ReplayReport;
+import replay.SystemReplayClock;
+
+/**
+ * Replays a single macro from a saved file without starting the GUI.
+ * Only the macro asked for, and the macros it calls, are read from the file: a text save file is opened as a
+ * LazyMacroLibrary and a binary macro library is looked up by its index. No Swing class is loaded, and the macro is
+ * replayed on the main thread, so the time from launch to the first key event is mostly JVM startup.
+ * With --daemon the library is instead kept loaded by a MacroDaemon, which replays macros requested over a socket.
+ * With --check the macros are run by a DryRunEngine against a simulated clock, which prints the timeline of one macro
+ * or checks that every macro of the library can be replayed, without sending keys or waiting for sleeps.
+ * <p>
+ * Startup is cut further with a class data sharing archive of the classes a run loads. A dry run records the archive
+ * without sending keys, and later runs map it in:
+ * </p>
+ * <pre>
+ * java -XX:ArchiveClassesAtExit=runner.jsa -cp macro-recorder.jar cli.MacroRunner --dry-run macros.txt hello
+ * java -XX:SharedArchiveFile=runner.jsa -XX:TieredStopAtLevel=1 -cp macro-recorder.jar cli.MacroRunner macros.txt hello
+ * </pre>
+ *
+ * @author ABM
+ */
+public class MacroRunner {
+
+	/** Exit status of a replay which finished */
+	public static final int EXIT_OK = 0;
+	/** Exit status when the file, the macro or the replay fails */
+	public static final int EXIT_FAILED = 1;
+	/** Exit status when the arguments are invalid */
+	public static final int EXIT_USAGE = 2;
+	/** Description of the arguments */
+	private static final String USAGE = "Usage: MacroRunner [options] <library file> <macro name>\n"
+			+ "       MacroRunner [options] --daemon <socket> <library file>\n"
+			+ "       MacroRunner [options] --check <library file> [macro name]\n"
+			+ "  --dry-run       record the key events instead of sending them, and print what would be sent\n"
+			+ "  --speed <x>     divide every sleep by x, \"max\" ignores sleeps\n"
+			+ "  --paste         type long runs of plain text in one go\n"
+			+ "  --metrics       record the replay into the JMX replay metrics\n"
+			+ "  --timing        print how long after launch the first key event was sent\n"
+			+ "  --daemon <path> keep the library loaded and replay macros requested over a Unix domain socket\n"
+			+ "  --check         print the timeline of the macro, or check every macro of the library, instantly\n"
+			+ "  --help          print this message";
+
+	/** Whether keys are recorded rather than sent */
+	private boolean dryRun;
+	/** How fast to replay */
+	private ReplayOptions options = ReplayOptions.REAL_TIME;
+	/** Whether long runs of text are typed in one go */
+	private boolean paste;
+	/** Whether the replay is recorded into ReplayMetrics */
+	private boolean metrics;
+	/** Whether startup timing is printed */
+	private boolean timing;
+	/** Whether macros are dry run against a simulated clock rather than replayed */
+	private boolean check;
+	/** Socket to serve requests on, null to replay a single macro */
+	private Path socket;
+	/** File the macro is read from */
+	private File file;
+	/** Name of the macro to replay */
+	private String name;
+
+	/**
+	 * Replays a macro and exits with EXIT_OK, EXIT_FAILED or EXIT_USAGE
+	 * @param args options, then the library file and the macro name
+	 */
+	public static void main(String[] args) {
+		System.exit(run(args, System.out, System.err));
+	}
+
+	/**
+	 * Replays a macro on the calling thread
+	 * @param args options, then the library file and the macro name
+	 * @param out where the dry run summary and timing are printed
+	 * @param err where errors are printed
+	 * @return EXIT_OK, EXIT_FAILED or EXIT_USAGE
+	 */
+	public static int run(String[] args, PrintStream out, PrintStream err) {
+		MacroRunner runner = new MacroRunner();
+		try {
+			if (!runner.parse(args)) {
+				out.println(USAGE);
+				return EXIT_OK;
+			}
+		} catch (IllegalArgumentException e) {
+			err.println(e.getMessage());
+			err.println(USAGE);
+			return EXIT_USAGE;
+		}
+		try {
+			if (runner.check) {
+				return runner.check(out, err);
+			}
+			return runner.socket != null ? runner.serve(err) : runner.replay(out, err);
+		} catch (IOException e) {
+			err.println("Unable to serve " + runner.socket + ": " + e.getMessage());
+			return EXIT_FAILED;
+		} catch (IllegalArgumentException | IllegalStateException e) {
+			err.println(e.getMessage());
+			return EXIT_FAILED;
+		} catch (InterruptedException e) {
+			err.println("Replay of " + runner.name + " was cancelled.");
+			return EXIT_FAILED;
+		}
+	}
+
+	/**
+	 * Reads the arguments
+	 * @param args options, then the library file and the macro name
+	 * @return false if only the usage was asked for
+	 * @throws IllegalArgumentException if the arguments are invalid
+	 */
+	private boolean parse(String[] args) {
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("--"); i++) {
+			switch (args[i]) {
+			case "--dry-run":
+				dryRun = true;
+				break;
+			case "--speed":
+				if (++i == args.length) {
+					throw new IllegalArgumentException("Missing replay speed.");
+				}
+				options = parseSpeed(args[i]);
+				break;
+			case "--paste":
+				paste = true;
+				break;
+			case "--metrics":
+				metrics = true;
+				break;
+			case "--timing":
+				timing = true;
+				break;
+			case "--daemon":
+				if (++i == args.length) {
+					throw new IllegalArgumentException("Missing socket path.");
+				}
+				socket = Paths.get(args[i]);
+				break;
+			case "--check":
+				check = true;
+				break;
+			case "--help":
+				return false;
+			default:
+				throw new IllegalArgumentException("Unknown option " + args[i] + ".");
+			}
+		}
+		if (check && socket != null) {
+			throw new IllegalArgumentException("--check and --daemon cannot be used together.");
+		}
+		if (check && args.length - i == 1) {
+			file = new File(args[i]);
+			return true;
+		}
+		if (socket != null) {
+			if (args.length - i != 1) {
+				throw new IllegalArgumentException("Expected a library file.");
+			}
+			file = new File(args[i]);
+			return true;
+		}
+		if (args.length - i != 2) {
+			throw new IllegalArgumentException("Expected a library file and a macro name.");
+		}
+		file = new File(args[i]);
+		name = args[i + 1];
+		return true;
+	}
+
+	/**
+	 * Reads a replay speed
+	 * @param speed a positive factor, or "max"
+	 * @return the options
+	 * @throws IllegalArgumentException if speed is neither
+	 */
+	private static ReplayOptions parseSpeed(String speed) {
+		if ("max".equalsIgnoreCase(speed)) {
+			return ReplayOptions.maxThroughput(0);
+		}
+		try {
+			return ReplayOptions.scaled(Double.parseDouble(speed));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid replay speed.");
+		}
+	}
+
+	/**
+	 * Serves replay requests on the socket until the process is stopped
+	 * @param err where errors are printed
+	 * @return EXIT_OK once the daemon has stopped
+	 * @throws IOException if the socket cannot be served
+	 * @throws IllegalArgumentException if the library cannot be loaded
+	 * @throws IllegalStateException if another daemon is serving the socket
+	 */
+	private int serve(PrintStream err) throws IOException {
+		if (!metrics && System.getProperty(ReplayMetrics.ENABLED_PROPERTY) == null) {
+			System.setProperty(ReplayMetrics.ENABLED_PROPERTY, "false");
+		}
+		MacroDaemon daemon = new MacroDaemon(file, socket, dryRun ? NullKeySink.INSTANCE : KeyboardPresser.robotSink(),
+				options.withBulkText(paste));
+		Thread serving = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			daemon.close();
+			try {
+				// Lets the serving thread remove the socket before the JVM exits
+				serving.join(1000);
+			} catch (InterruptedException e) {
+				// Exiting either way
+			}
+		}));
+		err.println("Serving " + daemon.getLibrary().size() + " macros on " + socket);
+		daemon.serve();
+		return EXIT_OK;
+	}
+
+	/**
+	 * Dry runs the macro and prints its timeline, or dry runs every macro of the library in parallel
+	 * and prints how long each takes or why it cannot be replayed
+	 * @param out where the timeline or the results are printed
+	 * @param err where errors are printed
+	 * @return EXIT_OK, or EXIT_FAILED if there is no such macro or a macro cannot be replayed
+	 * @throws InterruptedException if the dry run is interrupted
+	 * @throws IllegalArgumentException if the file cannot be read
+	 * @throws IllegalStateException if the macro cannot be replayed
+	 */
+	private int check(PrintStream out, PrintStream err) throws InterruptedException {
+		MacroLibrary library = MacroBinaryReader.isMacroLibraryFile(file) ? MacroBinaryReader.readMacroLibrary(file)
+				: MacroSaveReader.readMacroLibrary(file);
+		DryRunEngine engine = new DryRunEngine(options);
+		if (name != null) {
+			Macro macro = library.get(name);
+			if (macro == null) {
+				err.println("There is no macro named " + name + " in " + file.getName() + ".");
+				return EXIT_FAILED;
+			}
+			MacroTimeline timeline = engine.run(macro);
+			for (int i = 0; i < timeline.getEventCount(); i++) {
+				out.println(timeline.getTimeMicros(i) + " " + (timeline.isPress(i) ? "press " : "release ")
+						+ timeline.getKeyCode(i));
+			}
+			out.println(macro.getMacroName() + ": " + timeline);
+			return EXIT_OK;
+		}
+		List<DryRunResult> results = engine.checkLibrary(library);
+		int failed = 0;
+		long duration = 0;
+		for (DryRunResult result : results) {
+			if (result.isPassed()) {
+				duration += result.getTimeline().getDurationMicros();
+			} else {
+				failed++;
+			}
+			out.println(result);
+		}
+		out.println(results.size() + " macros checked, " + failed + " failed, " + duration + " us in total");
+		return failed == 0 ? EXIT_OK : EXIT_FAILED;
+	}
+
+	/**
+	 * Looks the macro up and replays it
+	 * @param out where the dry run summary and timing are printed
+	 * @param err where errors are printed
+	 * @return EXIT_OK, or EXIT_FAILED if there is no such macro
+	 * @throws InterruptedException if the replay is interrupted
+	 * @throws IllegalArgumentException if the file or the macro cannot be read
+	 * @throws IllegalStateException if a called macro does not exist or the keyboard cannot be used
+	 */
+	private int replay(PrintStream out, PrintStream err) throws InterruptedException {
+		if (!metrics && System.getProperty(ReplayMetrics.ENABLED_PROPERTY) == null) {
+			// Skips starting the platform MBean server, the largest cost of a run after JVM startup
+			System.setProperty(ReplayMetrics.ENABLED_PROPERTY, "false");
+		}
+		LazyMacroLibrary lazy = null;
+		try {
+			Macro macro;
+			if (MacroBinaryReader.isMacroLibraryFile(file)) {
+				macro = new BinaryResolver(file).resolve(name);
+			} else {
+				lazy = new LazyMacroLibrary(file);
+				macro = lazy.get(name);
+			}
+			if (macro == null) {
+				err.println("There is no macro named " + name + " in " + file.getName() + ".");
+				return EXIT_FAILED;
+			}
+			RecordingKeySink recording = dryRun ? new RecordingKeySink(paste) : null;
+			FirstEventSink sink = new FirstEventSink(dryRun ? recording : KeyboardPresser.robotSink());
+			ReplayReport report = new ReplayEngine(sink, SystemReplayClock.INSTANCE, options.withBulkText(paste))
+					.run(macro.getReplayProgram(), macro.getResolver());
+			if (dryRun) {
+				out.println(macro.getMacroName() + ": " + recording.getEventCount() + " key events, "
+						+ recording.getTextCount() + " typed as text, "
+						+ TimeUnit.NANOSECONDS.toMillis(report.getScheduledDuration()) + " ms of delays");
+				out.println(report);
+			}
+			if (timing) {
+				// Only read once the replay is over, the management classes would otherwise slow down the run being timed
+				long launched = ManagementFactory.getRuntimeMXBean().getStartTime();
+				if (sink.firstEventMillis >= 0) {
+					out.println("First key event " + (sink.firstEventMillis - launched) + " ms after launch");
+				}
+			}
+			return EXIT_OK;
+		} finally {
+			if (lazy != null) {
+				try {
+					lazy.close();
+				} catch (IOException e) {
+					// Nothing more is read from it
+				}
+			}
+		}
+	}
+
+	/**
+	 * Looks up macros in a binary macro library one at a time, keeping those already read for repeated calls
+	 */
+	private static final class BinaryResolver implements MacroResolver {
+
+		/** File of the library */
+		private final File file;
+		/** Macros read so far by name, null for names the library does not have */
+		private final Map<String, Macro> macros = new HashMap<>();
+
+		/**
+		 * Constructs a resolver
+		 * @param file file of the library
+		 */
+		BinaryResolver(File file) {
+			this.file = file;
+		}
+
+		/**
+		 * Reads a macro from the library, with its calls looked up in it too
+		 * @param macroName name of the macro
+		 * @return the macro, or null if the library has no macro with that name
+		 */
+		@Override
+		public synchronized Macro resolve(String macroName) {
+			if (macros.containsKey(macroName)) {
+				return macros.get(macroName);
+			}
+			Macro macro = MacroBinaryReader.readMacro(file, macroName);
+			if (macro != null) {
+				macro.setResolver(this);
+			}
+			macros.put(macroName, macro);
+			return macro;
+		}
+	}
+
+	/**
+	 * Passes key events on to another sink, noting the wall clock time of the first one
+	 */
+	private static final class FirstEventSink implements KeySink {
+
+		/** Sink the events are sent to */
+		private final KeySink sink;
+		/** Wall clock time of the first key event in milliseconds, -1 until one is sent */
+		long firstEventMillis = -1;
+
+		/**
+		 * Constructs a sink
+		 * @param sink sink the events are sent to
+		 */
+		FirstEventSink(KeySink sink) {
+			this.sink = sink;
+		}
+
+		/**
+		 * Notes the time of the first key event
+		 */
+		private void sent() {
+			if (firstEventMillis < 0) {
+				firstEventMillis = System.currentTimeMillis();
+			}
+		}
+
+		/**
+		 * Presses a key
+		 * @param keyCode the key to press
+		 */
+		@Override
+		public void keyPress(int keyCode) {
+			sink.keyPress(keyCode);
+			sent();
+		}
+
+		/**
+		 * Releases a key
+		 * @param keyCode the key to release
+		 */
+		@Override
+		public void keyRelease(int keyCode) {
+			sink.keyRelease(keyCode);
+			sent();
+		}
+
+		/**
+		 * Waits on the sink
+		 * @param time the time to wait in milliseconds
+		 */
+		@Override
+		public void delay(int time) {
+			sink.delay(time);
+		}
+
+		/**
+		 * Flushes the sink
+		 */
+		@Override
+		public void flush() {
+			sink.flush();
+		}
+
+		/**
+		 * Sends a batch of key events
+		 * @param events the events, presses as key codes and releases as their complement
+		 * @param offset index of the first event
+		 * @param length number of events
+		 */
+		@Override
+		public void submit(int[] events, int offset, int length) {
+			sink.submit(events, offset, length);
+			if (length > 0) {
+				sent();
+			}
+		}
+
+		/**
+		 * Types text in one go if the sink can
+		 * @param text the text to type
+		 * @return true if the sink typed it
+		 */
+		@Override
+		public boolean typeText(CharSequence text) {
+			boolean typed = sink.typeText(text);
+			if (typed) {
+				sent();
+			}
+			return typed;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package gui;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.SwingWorker;
+
+import io.MacroIoProgress;
+
+/**
+ * Loads or saves a macro file on a background worker, so the window keeps responding while a large file is read or written.
+ * Progress is published through the "progress" property as a percentage and the "status" property as a line of text,
+ * both fired on the event dispatch thread. The task is cancelled with cancel(), which stops the file between two chunks
+ * and only marks the task done once the file has actually stopped.
+ *
+ * @param <T> what the task produces
+ * @author ABM
+ */
+public abstract class MacroFileTask<T> extends SwingWorker<T, Void> implements MacroIoProgress {
+
+	/** Name of the property holding the text describing the progress */
+	public static final String STATUS_PROPERTY = "status";
+	/** Number of bytes in a megabyte, used to show sizes */
+	private static final long MEGABYTE = 1 << 20;
+
+	/** What the task does, such as "Loading macros.txt" */
+	private final String title;
+	/** Text describing the progress, changed by the worker thread */
+	private volatile String status;
+	/** Set when the task is asked to stop */
+	private volatile boolean cancelRequested;
+
+	/**
+	 * Constructs a task
+	 * @param title what the task does, shown with its progress
+	 */
+	protected MacroFileTask(String title) {
+		this.title = title;
+		this.status = title;
+	}
+
+	/**
+	 * Gets what the task does
+	 * @return the title
+	 */
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * Gets the text describing the progress
+	 * @return the status
+	 */
+	public String getStatus() {
+		return status;
+	}
+
+	/**
+	 * Asks the task to stop at the next chunk of the file.
+	 * Unlike cancel(boolean) the worker is not interrupted, which would close the file under it,
+	 * and the task stays running until the file is closed.
+	 */
+	public void cancel() {
+		cancelRequested = true;
+	}
+
+	/**
+	 * Tells if the task has been asked to stop
+	 * @return true once cancel has been called
+	 */
+	@Override
+	public boolean isCancelRequested() {
+		return cancelRequested;
+	}
+
+	/**
+	 * Publishes how far the file has got as a percentage and a line of text
+	 * @param bytes bytes of the file read or written so far
+	 * @param totalBytes size of the whole file, -1 if it is not known yet
+	 * @param macros macros read or written so far
+	 * @param totalMacros number of macros in the whole file, -1 if it is not known yet
+	 */
+	@Override
+	public void update(long bytes, long totalBytes, int macros, int totalMacros) {
+		if (totalMacros > 0) {
+			setProgress((int) Math.min(100, 100L * macros / totalMacros));
+		} else if (totalBytes > 0) {
+			setProgress((int) Math.min(100, 100 * bytes / totalBytes));
+		}
+		String text = title + ": " + macros + (totalMacros >= 0 ? " of " + totalMacros : "") + " macros, "
+				+ bytes / MEGABYTE + (totalBytes >= 0 ? " of " + totalBytes / MEGABYTE : "") + " MB";
+		String old = status;
+		status = text;
+		firePropertyChange(STATUS_PROPERTY, old, text);
+	}
+
+	/**
+	 * Describes how the task ended. Must be called once the task is done.
+	 * @return a message for the user, or null if the task finished with nothing to report
+	 */
+	public String getOutcome() {
+		try {
+			return describe(get());
+		} catch (CancellationException e) {
+			return title + " was cancelled.";
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof CancellationException) {
+				return title + " was cancelled.";
+			}
+			return cause.getMessage() != null ? cause.getMessage() : cause.toString();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return title + " was interrupted.";
+		}
+	}
+
+	/**
+	 * Describes what a finished task produced
+	 * @param result what the task produced
+	 * @return a message for the user, or null if there is nothing to report
+	 */
+	protected abstract String describe(T result);
+}
@@ -0,0 +1,80 @@
+package gui;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import io.MacroJournal;
+
+/**
+ * Opens a journaled macro file on a background worker, since the whole snapshot is read and its journal replayed
+ * before the library can be shown. A task cancelled while the file is read closes the journal it opened.
+ *
+ * @author ABM
+ */
+public class MacroJournalOpenTask extends MacroFileTask<MacroJournal> {
+
+	/** Save file holding the snapshot */
+	private final File file;
+
+	/**
+	 * Constructs a task opening a journaled macro file
+	 * @param file save file holding the snapshot, created if it does not exist
+	 */
+	public MacroJournalOpenTask(File file) {
+		super("Opening " + file.getName());
+		this.file = file;
+	}
+
+	/**
+	 * Opens the journal
+	 * @return the journal
+	 * @throws Exception if the journal was closed again because the task was cancelled
+	 */
+	@Override
+	protected MacroJournal doInBackground() throws Exception {
+		MacroJournal journal = new MacroJournal(file);
+		if (isCancelRequested()) {
+			journal.close();
+			throw new CancellationException();
+		}
+		return journal;
+	}
+
+	/**
+	 * Gets the journal opened. Must be called once the task is done.
+	 * A journal opened after the task was asked to stop is closed rather than returned.
+	 * @return the journal, or null if it was not opened or the task was cancelled
+	 */
+	public MacroJournal getJournal() {
+		MacroJournal journal;
+		try {
+			journal = get();
+		} catch (CancellationException | ExecutionException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		if (isCancelRequested()) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				// Nothing was changed through it
+			}
+			return null;
+		}
+		return journal;
+	}
+
+	/**
+	 * Describes an opened journal
+	 * @param result the journal
+	 * @return null, a journal which opened has nothing to report
+	 */
+	@Override
+	protected String describe(MacroJournal result) {
+		return null;
+	}
+}
@@ -0,0 +1,44 @@
+package gui;
+
+import io.MacroJournal;
+
+/**
+ * Waits on a background worker for every change made to a journaled library to reach the disk,
+ * which takes as long as the journal thread needs to write and sync the records waiting.
+ *
+ * @author ABM
+ */
+public class MacroJournalSyncTask extends MacroFileTask<Void> {
+
+	/** Journal being synced */
+	private final MacroJournal journal;
+
+	/**
+	 * Constructs a task syncing a journal
+	 * @param journal the journal
+	 */
+	public MacroJournalSyncTask(MacroJournal journal) {
+		super("Saving " + journal.getFile().getName());
+		this.journal = journal;
+	}
+
+	/**
+	 * Syncs the journal
+	 * @return nothing
+	 */
+	@Override
+	protected Void doInBackground() {
+		journal.sync();
+		return null;
+	}
+
+	/**
+	 * Describes a finished sync
+	 * @param result nothing
+	 * @return null, a sync which finished has nothing to report
+	 */
+	@Override
+	protected String describe(Void result) {
+		return null;
+	}
+}
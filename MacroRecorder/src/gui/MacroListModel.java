@@ -0,0 +1,316 @@
+package gui;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.AbstractListModel;
+import javax.swing.SwingUtilities;
+
+import macros.Macro;
+import macros.MacroLibrary;
+import macros.MacroLibraryListener;
+
+/**
+ * List model showing the macros of a MacroLibrary in a JList.
+ * Every change to the library fires an event covering only the rows it touched, so adding a macro
+ * costs the same however large the library is, and the JList only renders the rows in view.
+ * Changes made off the event dispatch thread are applied on it, in the order they were made. Macros added off it
+ * in a row, as a file is loaded, are gathered and shown as a single interval however many arrive before the
+ * event dispatch thread gets to them. Each queued change remembers the library it came from, so a change
+ * still arriving from a library the model no longer shows is dropped.
+ * 
+ * @author ABM
+ */
+public class MacroListModel extends AbstractListModel<Macro> {
+
+    /** Default serial version uid */
+	private static final long serialVersionUID = 1L;
+	/** Rows shown in the list, only touched on the event dispatch thread */
+	private final ArrayList<Macro> rows = new ArrayList<>();
+	/** Library being shown, only touched on the event dispatch thread */
+	private transient MacroLibrary library;
+	/** Listener registered with the library being shown */
+	private transient LibraryListener listener;
+	/** Changes made off the event dispatch thread and not applied yet, in order, guarded by itself */
+	private final transient ArrayList<PendingChange> pending = new ArrayList<>();
+	/** Macros added off the event dispatch thread since the last other change, guarded by pending */
+	private transient ArrayList<Macro> pendingAdds;
+	/** Library the macros of pendingAdds were added to */
+	private transient MacroLibrary pendingAddsSource;
+	/** Position of the first macro of pendingAdds in the library */
+	private transient int pendingAddsIndex;
+
+	/**
+	 * Constructs a model showing a library
+	 * @param library the library to show
+	 */
+	public MacroListModel(MacroLibrary library) {
+		setLibrary(library);
+	}
+
+	/**
+	 * Switches the model to showing another library. Must be called on the event dispatch thread.
+	 * @param newLibrary the library to show
+	 */
+	public void setLibrary(MacroLibrary newLibrary) {
+		if (library != null) {
+			library.removeListener(listener);
+		}
+		// Changes still waiting belong to the old library
+		synchronized (pending) {
+			pending.clear();
+			pendingAdds = null;
+		}
+		int oldSize = rows.size();
+		rows.clear();
+		if (oldSize > 0) {
+			fireIntervalRemoved(this, 0, oldSize - 1);
+		}
+		library = newLibrary;
+		listener = new LibraryListener(newLibrary);
+		// Register before taking the snapshot, events for changes the snapshot already holds are skipped by index
+		library.addListener(listener);
+		rows.addAll(library.snapshot());
+		if (!rows.isEmpty()) {
+			fireIntervalAdded(this, 0, rows.size() - 1);
+		}
+	}
+
+	/**
+	 * Gets the number of rows
+	 * @return the number of macros shown
+	 */
+	@Override
+	public int getSize() {
+		return rows.size();
+	}
+
+	/**
+	 * Gets the macro on a row
+	 * @param index the row
+	 * @return the macro shown on the row
+	 */
+	@Override
+	public Macro getElementAt(int index) {
+		return rows.get(index);
+	}
+
+	/**
+	 * Adds a row for a new macro
+	 * @param source library the macro was added to
+	 * @param index position of the new macro
+	 * @param macro the macro added
+	 */
+	private void macroAdded(MacroLibrary source, int index, Macro macro) {
+		if (SwingUtilities.isEventDispatchThread()) {
+			applyPending();
+			if (source == library) {
+				addRows(index, Collections.singletonList(macro));
+			}
+			return;
+		}
+		synchronized (pending) {
+			if (pendingAdds != null && pendingAddsSource == source && pendingAddsIndex + pendingAdds.size() == index) {
+				pendingAdds.add(macro);
+				return;
+			}
+			ArrayList<Macro> adds = new ArrayList<>();
+			adds.add(macro);
+			pendingAdds = adds;
+			pendingAddsSource = source;
+			pendingAddsIndex = index;
+			queue(new PendingChange(source, () -> addRows(index, adds)));
+		}
+	}
+
+	/**
+	 * Adds rows for macros added in a row, skipping those the rows already hold
+	 * @param index position of the first macro
+	 * @param macros the macros added
+	 */
+	private void addRows(int index, List<Macro> macros) {
+		int skip = rows.size() - index;
+		if (skip < 0 || skip >= macros.size()) {
+			return;
+		}
+		int first = rows.size();
+		rows.addAll(macros.subList(skip, macros.size()));
+		fireIntervalAdded(this, first, rows.size() - 1);
+	}
+
+	/**
+	 * Updates the row of a replaced macro
+	 * @param source library the macro was replaced in
+	 * @param index position of the macro
+	 * @param oldMacro the macro replaced
+	 * @param newMacro the macro now at that position
+	 */
+	private void macroReplaced(MacroLibrary source, int index, Macro oldMacro, Macro newMacro) {
+		onEventThread(source, () -> {
+			if (index < rows.size() && rows.get(index) == oldMacro) {
+				rows.set(index, newMacro);
+				fireContentsChanged(this, index, index);
+			}
+		});
+	}
+
+	/**
+	 * Removes the row of a removed macro
+	 * @param source library the macro was removed from
+	 * @param index position the macro was at
+	 * @param macro the macro removed
+	 */
+	private void macroRemoved(MacroLibrary source, int index, Macro macro) {
+		onEventThread(source, () -> {
+			if (index < rows.size() && rows.get(index) == macro) {
+				rows.remove(index);
+				fireIntervalRemoved(this, index, index);
+			}
+		});
+	}
+
+	/**
+	 * Removes every row
+	 * @param source library which was cleared
+	 */
+	private void libraryCleared(MacroLibrary source) {
+		onEventThread(source, () -> {
+			int size = rows.size();
+			rows.clear();
+			if (size > 0) {
+				fireIntervalRemoved(this, 0, size - 1);
+			}
+		});
+	}
+
+	/**
+	 * Runs a change on the event dispatch thread, straight away if already on it,
+	 * unless the model has stopped showing the library it came from by then
+	 * @param source library the change was made to
+	 * @param change the change to run
+	 */
+	private void onEventThread(MacroLibrary source, Runnable change) {
+		if (SwingUtilities.isEventDispatchThread()) {
+			applyPending();
+			if (source == library) {
+				change.run();
+			}
+		} else {
+			synchronized (pending) {
+				pendingAdds = null;
+				queue(new PendingChange(source, change));
+			}
+		}
+	}
+
+	/**
+	 * Queues a change made off the event dispatch thread, must hold the lock of pending
+	 * @param change the change to run
+	 */
+	private void queue(PendingChange change) {
+		pending.add(change);
+		if (pending.size() == 1) {
+			SwingUtilities.invokeLater(this::applyPending);
+		}
+	}
+
+	/**
+	 * Applies every queued change, on the event dispatch thread, dropping those from a library no longer shown
+	 */
+	private void applyPending() {
+		PendingChange[] changes;
+		synchronized (pending) {
+			if (pending.isEmpty()) {
+				return;
+			}
+			changes = pending.toArray(new PendingChange[0]);
+			pending.clear();
+			// Later adds start a new batch rather than joining one already applied
+			pendingAdds = null;
+		}
+		for (PendingChange change : changes) {
+			if (change.source == library) {
+				change.change.run();
+			}
+		}
+	}
+
+	/**
+	 * Change made off the event dispatch thread, with the library it was made to
+	 */
+	private static final class PendingChange {
+
+		/** Library the change was made to */
+		final MacroLibrary source;
+		/** Updates the rows for the change */
+		final Runnable change;
+
+		/**
+		 * Constructs a pending change
+		 * @param source library the change was made to
+		 * @param change updates the rows for the change
+		 */
+		PendingChange(MacroLibrary source, Runnable change) {
+			this.source = source;
+			this.change = change;
+		}
+	}
+
+	/**
+	 * Listener registered with a single library, passing its changes on to the model along with the library
+	 */
+	private final class LibraryListener implements MacroLibraryListener {
+
+		/** Library the listener is registered with */
+		private final MacroLibrary source;
+
+		/**
+		 * Constructs a listener for a library
+		 * @param source the library
+		 */
+		LibraryListener(MacroLibrary source) {
+			this.source = source;
+		}
+
+		/**
+		 * Passes on a macro added to the library
+		 * @param index position of the new macro
+		 * @param macro the macro added
+		 */
+		@Override
+		public void macroAdded(int index, Macro macro) {
+			MacroListModel.this.macroAdded(source, index, macro);
+		}
+
+		/**
+		 * Passes on a macro replaced in the library
+		 * @param index position of the macro
+		 * @param oldMacro the macro replaced
+		 * @param newMacro the macro now at that position
+		 */
+		@Override
+		public void macroReplaced(int index, Macro oldMacro, Macro newMacro) {
+			MacroListModel.this.macroReplaced(source, index, oldMacro, newMacro);
+		}
+
+		/**
+		 * Passes on a macro removed from the library
+		 * @param index position the macro was at
+		 * @param macro the macro removed
+		 */
+		@Override
+		public void macroRemoved(int index, Macro macro) {
+			MacroListModel.this.macroRemoved(source, index, macro);
+		}
+
+		/**
+		 * Passes on the library being cleared
+		 * @param oldSize number of macros the library held
+		 */
+		@Override
+		public void libraryCleared(int oldSize) {
+			MacroListModel.this.libraryCleared(source);
+		}
+	}
+}
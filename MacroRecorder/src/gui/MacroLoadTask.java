@@ -0,0 +1,63 @@
+package gui;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import io.MacroBinaryReader;
+import io.MacroLoadError;
+import io.MacroSaveReader;
+import macros.MacroLibrary;
+
+/**
+ * Loads a macro file into a library on a background worker.
+ * Macros are added as each chunk of the file is parsed, so a MacroListModel showing the library fills in batches
+ * and the first macros can be used before the load has finished. Invalid lines do not stop the load, they are
+ * reported once it is done.
+ *
+ * @author ABM
+ */
+public class MacroLoadTask extends MacroFileTask<List<MacroLoadError>> {
+
+	/** File being loaded */
+	private final File file;
+	/** Library the macros are added to */
+	private final MacroLibrary library;
+
+	/**
+	 * Constructs a task loading a text save file or a binary macro library
+	 * @param file file to load
+	 * @param library library the macros are added to
+	 */
+	public MacroLoadTask(File file, MacroLibrary library) {
+		super("Loading " + file.getName());
+		this.file = file;
+		this.library = library;
+	}
+
+	/**
+	 * Loads the file
+	 * @return the invalid lines of the file, empty if every line was loaded
+	 */
+	@Override
+	protected List<MacroLoadError> doInBackground() {
+		if (MacroBinaryReader.isMacroLibraryFile(file)) {
+			MacroBinaryReader.loadMacroLibrary(file, library, this);
+			return Collections.emptyList();
+		}
+		return MacroSaveReader.loadMacroLibrary(file, library, this);
+	}
+
+	/**
+	 * Describes the invalid lines of the file
+	 * @param errors the invalid lines
+	 * @return the first error and how many more there are, or null if there were none
+	 */
+	@Override
+	protected String describe(List<MacroLoadError> errors) {
+		if (errors.isEmpty()) {
+			return null;
+		}
+		return "Loaded " + library.size() + " macros. " + MacroSaveReader.describeErrors(errors);
+	}
+}
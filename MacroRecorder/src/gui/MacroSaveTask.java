@@ -0,0 +1,63 @@
+package gui;
+
+import java.io.File;
+import java.util.List;
+
+import io.MacroBinaryWriter;
+import io.MacroSaveWriter;
+import macros.Macro;
+
+/**
+ * Saves a list of macros to a file on a background worker.
+ * A cancelled text save leaves the file as it was, since the macros are only renamed over it once all of them are written.
+ *
+ * @author ABM
+ */
+public class MacroSaveTask extends MacroFileTask<Void> {
+
+	/** File being written */
+	private final File file;
+	/** Macros being written, taken from the library when the save started */
+	private final List<Macro> macros;
+	/** Whether to write a binary macro library rather than a text save file */
+	private final boolean binary;
+
+	/**
+	 * Constructs a task saving macros
+	 * @param file file to write
+	 * @param macros macros to write, which must not change while the task runs
+	 * @param binary whether to write a binary macro library rather than a text save file
+	 */
+	public MacroSaveTask(File file, List<Macro> macros, boolean binary) {
+		super("Saving " + file.getName());
+		this.file = file;
+		this.macros = macros;
+		this.binary = binary;
+	}
+
+	/**
+	 * Saves the macros
+	 * @return nothing
+	 */
+	@Override
+	protected Void doInBackground() {
+		if (binary) {
+			// A binary library is written in sections with no place to stop part way
+			MacroBinaryWriter.writeMacroListToFile(file, macros);
+			update(file.length(), file.length(), macros.size(), macros.size());
+		} else {
+			MacroSaveWriter.writeMacroListToFile(file, macros, this);
+		}
+		return null;
+	}
+
+	/**
+	 * Describes a finished save
+	 * @param result nothing
+	 * @return null, a save which finished has nothing to report
+	 */
+	@Override
+	protected String describe(Void result) {
+		return null;
+	}
+}
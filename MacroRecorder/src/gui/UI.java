@@ -1,6 +1,9 @@
 package gui;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -9,13 +12,32 @@ import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
+import javax.swing.JList;
+import javax.swing.ListSelectionModel;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 
+import io.LazyMacroLibrary;
+import io.MacroBinaryFormat;
+import io.MacroFileWatcher;
+import io.MacroJournal;
+import io.MacroReloadResult;
 import io.MacroSaveReader;
-import io.MacroSaveWriter;
 import macros.Macro;
+import macros.MacroLibrary;
+import mkbd.kbd.KeyboardPresser;
+import recorder.AwtKeyEventSource;
+import recorder.MacroRecorder;
+import replay.DryRunEngine;
+import replay.MacroTimeline;
+import replay.ReplayHandle;
+import replay.ReplayOptions;
+import replay.ReplayScheduler;
+import replay.ReplayStatus;
+import replay.SinkCalibration;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
@@ -23,7 +45,9 @@ import java.awt.Container;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 /**
  * This class is the GUI for the macro recorder program
@@ -38,14 +62,40 @@ public class UI extends JFrame {
 	private static final String FILE_MENU_TITLE = "File";
 	/** Text for the Load menu item. */
 	private static final String LOAD_TITLE = "Load Macro(s)";
+	/** Text for the Open Library menu item. */
+	private static final String OPEN_LAZY_TITLE = "Open Macro Library (load on use)";
+	/** Text for the Open Journal menu item. */
+	private static final String OPEN_JOURNAL_TITLE = "Open Journaled Macro(s) (saved as you go)";
 	/** Text for the Save menu item. */
 	private static final String SAVE_TITLE = "Save Macro(s)";
+	/** Text for the Watch menu item. */
+	private static final String WATCH_TITLE = "Watch Loaded File for Changes";
 	/** Text for the Clear menu item. */
 	private static final String CLEAR_TITLE = "Clear Macro(s)";
 	/** Text for the Quit menu item. */
 	private static final String QUIT_TITLE = "Quit";
-	/** Arraylist of macros */
-	private ArrayList<Macro> macroList;
+	/** Text of the record button while not recording */
+	private static final String START_RECORDING_TITLE = "Record a new macro";
+	/** Text of the record button while recording */
+	private static final String STOP_RECORDING_TITLE = "Stop recording";
+	/** Replay speeds offered by the speed selector, the last one ignores sleeps */
+	private static final String[] SPEED_TITLES = { "1x speed", "2x speed", "10x speed", "Max speed" };
+	/** Factors matching SPEED_TITLES */
+	private static final double[] SPEEDS = { 1, 2, 10, Double.POSITIVE_INFINITY };
+	/** Height of a row of the macro list in pixels */
+	private static final int MACRO_LIST_CELL_HEIGHT = 18;
+	/** Width of a row of the macro list in pixels */
+	private static final int MACRO_LIST_CELL_WIDTH = 900;
+	/** Number of rows of the macro list shown without scrolling */
+	private static final int MACRO_LIST_VISIBLE_ROWS = 20;
+	/** Most macro names listed when several start with the name given to switch to */
+	private static final int MAX_LISTED_MATCHES = 10;
+	/** Library of every macro loaded into the system */
+	private MacroLibrary macroLibrary;
+	/** Library whose macros are only parsed when switched to, null if none is open */
+	private LazyMacroLibrary lazyLibrary;
+	/** Journal every change to macroLibrary is appended to, null if none is open */
+	private MacroJournal journal;
 	/** Currently active macro */
 	private Macro currentMacro;
 	/** Menu bar for the GUI that contains Menus. */
@@ -54,16 +104,46 @@ public class UI extends JFrame {
 	private JMenu menu;
 	/** Menu item for loading a macro file. */
 	private JMenuItem itemLoad;
+	/** Menu item for opening a macro file whose macros are only loaded when used. */
+	private JMenuItem itemOpenLazy;
+	/** Menu item for opening a macro file which every change is journaled to. */
+	private JMenuItem itemOpenJournal;
 	/** Menu item for saving macros to a file. */
 	private JMenuItem itemSave;
+	/** Menu item for applying changes of the loaded file as it is saved. */
+	private JCheckBoxMenuItem itemWatch;
 	/** Menu item for clearing system state. */
 	private JMenuItem itemClear;
 	/** Menu item for quitting the program. */
 	private JMenuItem itemQuit;
 	/** Label which identifies the current macro */
 	private JLabel currentMacroLabel;
+	/** File the library was last loaded from, null if it was not loaded from a file */
+	private File loadedFile;
+	/** Watcher applying changes of the loaded file to the library, null if it is not watched */
+	private MacroFileWatcher watcher;
+	/** Label showing how long the current macro takes to replay */
+	private JLabel durationLabel;
+	/** Dry run estimating how long the current macro takes, null if none is running */
+	private SwingWorker<MacroTimeline, Void> durationTask;
 	/** List of all the macros currently loaded into the system */
-	private JTextArea macroListTextArea;
+	private JList<Macro> macroJList;
+	/** Model of the macro list, mirrors macroLibrary */
+	private MacroListModel macroListModel;
+	/** Label which tells how many more macros can be loaded from an open library */
+	private JLabel lazyLibraryLabel;
+	/** Records keys typed into the application into the macro input field */
+	private MacroRecorder macroRecorder;
+	/** Max speed options spaced by the measured rate of the keyboard, null until it is calibrated */
+	private ReplayOptions calibratedOptions;
+	/** Label showing the rate the keyboard was calibrated to */
+	private JLabel calibrationLabel;
+	/** Load or save running in the background, null if none is */
+	private MacroFileTask<?> fileTask;
+	/** Shows how far the running load or save has got */
+	private JProgressBar fileProgressBar;
+	/** Button which cancels the running load or save */
+	private JButton fileCancelButton;
 
     /**
      * The main method, constructs the gui
@@ -79,7 +159,7 @@ public class UI extends JFrame {
      */
     public UI() {
         super("Macro Recorder");
-        macroList = new ArrayList<>();
+        macroLibrary = new MacroLibrary();
         this.intializeGUI();
     }
 
@@ -96,10 +176,24 @@ public class UI extends JFrame {
         panel1.setBackground(Color.GRAY);
         JButton saveMacrobutton = new JButton("Save a new macro");
         currentMacroLabel = new JLabel("Current macro: No Current Macro.");
+        durationLabel = new JLabel("");
         JButton runMacrobutton = new JButton("Run the current macro");
+        JButton stopMacrosbutton = new JButton("Stop running macros");
+        JButton recordMacrobutton = new JButton(START_RECORDING_TITLE);
+        JComboBox<String> speedBox = new JComboBox<>(SPEED_TITLES);
+        JCheckBox pasteTextBox = new JCheckBox("Paste long text");
+        JButton calibrateButton = new JButton("Calibrate max speed");
+        calibrationLabel = new JLabel("Max speed: not calibrated");
 		panel1.add(saveMacrobutton);
 		panel1.add(currentMacroLabel);
+		panel1.add(durationLabel);
 		panel1.add(runMacrobutton);
+		panel1.add(speedBox);
+		panel1.add(calibrateButton);
+		panel1.add(calibrationLabel);
+		panel1.add(pasteTextBox);
+		panel1.add(stopMacrosbutton);
+		panel1.add(recordMacrobutton);
 
         JScrollPane controlPanelScrollPane = new JScrollPane(panel1);
 		c.add(controlPanelScrollPane, BorderLayout.NORTH);
@@ -127,37 +221,49 @@ public class UI extends JFrame {
 		//List of macros
 		JButton macroSwitchButton = new JButton("Switch the active macro to:");
 		JTextField macroSwitchField = new JTextField(20);
-		macroListTextArea = new JTextArea("List of macros: Empty");
-		macroListTextArea.setEditable(false);
-		JPanel subPanel2South = new JPanel();
+		macroListModel = new MacroListModel(macroLibrary);
+		macroJList = new JList<>(macroListModel);
+		macroJList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		// Fixed cell sizes stop the list from measuring every row, so only the visible rows are ever rendered
+		macroJList.setFixedCellHeight(MACRO_LIST_CELL_HEIGHT);
+		macroJList.setFixedCellWidth(MACRO_LIST_CELL_WIDTH);
+		macroJList.setVisibleRowCount(MACRO_LIST_VISIBLE_ROWS);
+		lazyLibraryLabel = new JLabel();
+		fileProgressBar = new JProgressBar(0, 100);
+		fileProgressBar.setStringPainted(true);
+		fileProgressBar.setVisible(false);
+		fileCancelButton = new JButton("Cancel");
+		fileCancelButton.setVisible(false);
+		JPanel subPanel2SouthControls = new JPanel();
+		subPanel2SouthControls.setBackground(Color.GRAY);
+		subPanel2SouthControls.add(macroSwitchButton);
+		subPanel2SouthControls.add(macroSwitchField);
+		subPanel2SouthControls.add(lazyLibraryLabel);
+		subPanel2SouthControls.add(fileProgressBar);
+		subPanel2SouthControls.add(fileCancelButton);
+		JPanel subPanel2South = new JPanel(new BorderLayout());
 		subPanel2South.setBackground(Color.GRAY);
-		subPanel2South.add(macroSwitchButton);
-		subPanel2South.add(macroSwitchField);
-		subPanel2South.add(macroListTextArea);
-		JScrollPane macroSwitchScrollPane = new JScrollPane(subPanel2South);
+		subPanel2South.add(subPanel2SouthControls, BorderLayout.NORTH);
+		subPanel2South.add(new JScrollPane(macroJList), BorderLayout.CENTER);
 		
 		panel2.add(subPanel2North, BorderLayout.NORTH);
 		panel2.add(subPanel2Center, BorderLayout.CENTER);
-		panel2.add(macroSwitchScrollPane, BorderLayout.SOUTH);
+		panel2.add(subPanel2South, BorderLayout.SOUTH);
 
 		c.add(panel2, BorderLayout.CENTER);
 
         saveMacrobutton.addActionListener(new ActionListener() {
 			// This is the method that handles adding a new macro
-        	//TODO 1 Remove possibility of adding duplicate macros (as in remove possibility of two macros sharing a single name)
-        	//TODO 2 Move the macro list text generation into a new method, probably some new ArrayList analog called MacroList (would help with TODO 1)
 			public void actionPerformed(ActionEvent a) {
 				try {
 					Macro m = new Macro(macroNameField.getText(), macroInputField.getText());
-					macroList.add(m);
+					macroLibrary.add(m);
 					currentMacro = m;
-					currentMacroLabel.setText("Current macro: " + currentMacro.toString());
-					generateMacroListTextAreaText();
-					System.out.println(macroList.toString());
+					showCurrentMacro();
 				} catch (IllegalArgumentException saveE) {
 					JOptionPane.showMessageDialog(null, saveE.getMessage());
 				}
-				itemSave.setEnabled(macroList.size() > 0);
+				itemSave.setEnabled(fileTask == null && !macroLibrary.isEmpty());
 			}
 		});
 
@@ -167,8 +273,14 @@ public class UI extends JFrame {
 				if (currentMacro != null) {
 					System.out.println(currentMacro.toString());
 					try {
-						currentMacro.interpretMacro();
-					} catch (IllegalArgumentException runE) {
+						ReplayHandle handle = currentMacro.interpretMacro(KeyboardPresser.robotSink(),
+								getReplayOptions(SPEEDS[speedBox.getSelectedIndex()]).withBulkText(pasteTextBox.isSelected()));
+						handle.getCompletion().whenComplete((report, runE) -> {
+							if (handle.getStatus() == ReplayStatus.FAILED) {
+								SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, describe(runE.getCause())));
+							}
+						});
+					} catch (IllegalArgumentException | IllegalStateException runE) {
 						JOptionPane.showMessageDialog(null, runE.getMessage());
 					}
 				} else {
@@ -177,6 +289,77 @@ public class UI extends JFrame {
 			}
 		});
 
+        calibrateButton.addActionListener(new ActionListener() {
+			// This is the method that handles measuring how fast the keyboard takes events for max speed
+			public void actionPerformed(ActionEvent a) {
+				calibrateButton.setEnabled(false);
+				calibrationLabel.setText("Calibrating, Shift is being pressed...");
+				new SwingWorker<SinkCalibration, Void>() {
+					/**
+					 * Measures the keyboard by sending it Shift presses and releases
+					 * @return the measured rate
+					 * @throws InterruptedException if the measuring is interrupted
+					 */
+					@Override
+					protected SinkCalibration doInBackground() throws InterruptedException {
+						return SinkCalibration.measure(KeyboardPresser.robotSink());
+					}
+
+					/**
+					 * Uses the measured rate for max speed and shows it
+					 */
+					@Override
+					protected void done() {
+						calibrateButton.setEnabled(true);
+						try {
+							SinkCalibration calibration = get();
+							calibratedOptions = calibration.toOptions();
+							calibrationLabel.setText("Max speed: " + calibration);
+						} catch (ExecutionException e) {
+							calibrationLabel.setText("Calibration failed: " + describe(e.getCause()));
+						} catch (InterruptedException e) {
+							calibrationLabel.setText("Max speed: not calibrated");
+						}
+					}
+				}.execute();
+			}
+		});
+
+        stopMacrosbutton.addActionListener(new ActionListener() {
+			// This is the method that handles stopping every queued or running macro
+			public void actionPerformed(ActionEvent a) {
+				ReplayScheduler.getDefault().cancelAll();
+			}
+		});
+
+        recordMacrobutton.addActionListener(new ActionListener() {
+			// This is the method that handles recording typed keys into the macro inputs
+			public void actionPerformed(ActionEvent a) {
+				if (macroRecorder == null) {
+					macroRecorder = new MacroRecorder(new AwtKeyEventSource());
+				}
+				if (!macroRecorder.isRecording()) {
+					macroRecorder.start();
+					recordMacrobutton.setText(STOP_RECORDING_TITLE);
+					return;
+				}
+				macroInputField.setText(macroRecorder.stop());
+				recordMacrobutton.setText(START_RECORDING_TITLE);
+				if (macroRecorder.getSkippedCount() > 0) {
+					JOptionPane.showMessageDialog(null, macroRecorder.getSkippedCount() + " keys could not be recorded.");
+				}
+			}
+		});
+
+        macroJList.addListSelectionListener(e -> {
+			// This is the method that handles switching the active macro to the one selected in the list
+			Macro selected = macroJList.getSelectedValue();
+			if (!e.getValueIsAdjusting() && selected != null) {
+				currentMacro = selected;
+				showCurrentMacro();
+			}
+		});
+
         macroSwitchButton.addActionListener(new ActionListener() {
 			// This is the method that handles switching the active macro
 			public void actionPerformed(ActionEvent a) {
@@ -184,25 +367,74 @@ public class UI extends JFrame {
 					JOptionPane.showMessageDialog(null, "The current macro already matches the provided name.");
 					return;
 				}
-				boolean match = false;
-				for (int i = 0; i < macroList.size(); i++) {
-					if (macroList.get(i).getMacroName().equals(macroSwitchField.getText())) {
-						currentMacro = macroList.get(i);
-						currentMacroLabel.setText("Current macro: " + currentMacro.toString());
-						match = true;
-						System.out.println(currentMacro.toString());
+				Macro match = macroLibrary.get(macroSwitchField.getText());
+				if (match == null && lazyLibrary != null) {
+					try {
+						match = lazyLibrary.get(macroSwitchField.getText());
+					} catch (IllegalArgumentException e) {
+						JOptionPane.showMessageDialog(null, e.getMessage());
+						return;
 					}
 				}
-				if (!match) {
+				if (match == null && !macroSwitchField.getText().isEmpty()) {
+					// A name nothing is called exactly can still be the start of a single macro's name
+					List<Macro> matches = macroLibrary.findByPrefix(macroSwitchField.getText(), MAX_LISTED_MATCHES + 1);
+					if (matches.size() == 1) {
+						match = matches.get(0);
+					} else if (matches.size() > 1) {
+						JOptionPane.showMessageDialog(null, describeMatches(matches));
+						return;
+					}
+				}
+				if (match != null) {
+					currentMacro = match;
+					showCurrentMacro();
+					System.out.println(currentMacro.toString());
+				} else {
 					JOptionPane.showMessageDialog(null, "There is no macro matching the provided name.");
 				}
 			}
 		});
 
+        fileCancelButton.addActionListener(new ActionListener() {
+			// This is the method that handles stopping the running load or save
+			public void actionPerformed(ActionEvent a) {
+				if (fileTask != null) {
+					fileTask.cancel();
+					fileCancelButton.setEnabled(false);
+				}
+			}
+		});
+
         this.setVisible(true);
         
     }
 
+    /**
+     * Describes why something failed, for failures which carry no message of their own
+     * 
+     * @param failure the failure
+     * @return the message of the failure, or the name of its class when it has none
+     */
+    private static String describe(Throwable failure) {
+		return failure.getMessage() != null ? failure.getMessage() : failure.toString();
+    }
+
+    /**
+     * Gets the options to replay at a speed.
+     * Max speed spaces events by the rate the keyboard sustains once it has been calibrated,
+     * and sends them as fast as it can until then.
+     * 
+     * @param speed factor sleeps are divided by, infinite for max speed
+     * @return the options
+     */
+    private ReplayOptions getReplayOptions(double speed) {
+		if (speed != Double.POSITIVE_INFINITY) {
+			return ReplayOptions.scaled(speed);
+		}
+		return calibratedOptions != null ? calibratedOptions : ReplayOptions.maxThroughput(0);
+    }
+
     /**
      * Creates the bar at the top responsible for file options.
      * This includes the functionality for loading and saving the list of macros.
@@ -212,7 +444,10 @@ public class UI extends JFrame {
 		menuBar = new JMenuBar();
 		menu = new JMenu(FILE_MENU_TITLE);
 		itemLoad = new JMenuItem(LOAD_TITLE);
+		itemOpenLazy = new JMenuItem(OPEN_LAZY_TITLE);
+		itemOpenJournal = new JMenuItem(OPEN_JOURNAL_TITLE);
 		itemSave = new JMenuItem(SAVE_TITLE);
+		itemWatch = new JCheckBoxMenuItem(WATCH_TITLE);
 		itemClear = new JMenuItem(CLEAR_TITLE);
 		itemQuit = new JMenuItem(QUIT_TITLE);
 		
@@ -221,7 +456,10 @@ public class UI extends JFrame {
 		
 		//Adds all the items to the menu
 		menu.add(itemLoad);
+		menu.add(itemOpenLazy);
+		menu.add(itemOpenJournal);
 		menu.add(itemSave);
+		menu.add(itemWatch);
 		menu.add(itemClear);
 		menu.add(itemQuit);
 		menuBar.add(menu);
@@ -230,10 +468,60 @@ public class UI extends JFrame {
 		itemLoad.addActionListener(new ActionListener() {
 			//This is the method that handles loading a new list of macros from a file
 			public void actionPerformed(ActionEvent a) {
+				File f;
+				try {
+					f = new File(getFileName(true));
+				} catch (IllegalStateException e) {
+					return;
+				}
 				currentMacro = null;
-		        currentMacroLabel.setText("Current macro: No Current Macro.");
-		        macroList = MacroSaveReader.readMacroSaveFile(new File(getFileName(true)));
-		        generateMacroListTextAreaText();
+		        showCurrentMacro();
+		        closeLazyLibrary();
+		        closeJournal();
+		        closeWatcher();
+		        loadedFile = f;
+		        // The list shows the new library straight away and fills in as the file is parsed
+		        macroLibrary = new MacroLibrary();
+		        macroListModel.setLibrary(macroLibrary);
+		        updateLazyLibraryLabel();
+		        startFileTask(new MacroLoadTask(f, macroLibrary));
+			}
+		});
+		
+		itemOpenLazy.addActionListener(new ActionListener() {
+			//This is the method that handles opening a macro file whose macros are parsed the first time they are switched to
+			public void actionPerformed(ActionEvent a) {
+				try {
+					LazyMacroLibrary opened = new LazyMacroLibrary(new File(getFileName(true)));
+					closeLazyLibrary();
+					lazyLibrary = opened;
+					updateLazyLibraryLabel();
+				} catch (IllegalArgumentException e) {
+					JOptionPane.showMessageDialog(null, e.getMessage());
+				}
+			}
+		});
+		
+		itemOpenJournal.addActionListener(new ActionListener() {
+			//This is the method that handles opening a macro file which every later change is appended to
+			public void actionPerformed(ActionEvent a) {
+				try {
+					// The library is only replaced once the journal is read, a failed open leaves it as it was
+					startFileTask(new MacroJournalOpenTask(new File(getFileName(false))));
+				} catch (IllegalStateException e) {
+					// No file was chosen
+				}
+			}
+		});
+		
+		itemWatch.addActionListener(new ActionListener() {
+			//This is the method that handles turning watching the loaded file on and off
+			public void actionPerformed(ActionEvent a) {
+				if (!itemWatch.isSelected()) {
+					closeWatcher();
+				} else if (fileTask == null) {
+					startWatcher();
+				}
 			}
 		});
 		
@@ -241,9 +529,17 @@ public class UI extends JFrame {
 			//This is the method that handles saving the current list of macros to a file
 			public void actionPerformed(ActionEvent a) {
 				try {
-					MacroSaveWriter.writeMacroListToFile(new File(getFileName(false)), macroList);
+					if (journal != null) {
+						// Changes are already in the journal, saving only waits for them to reach the disk
+						startFileTask(new MacroJournalSyncTask(journal));
+						return;
+					}
+					File f = new File(getFileName(false));
+					startFileTask(new MacroSaveTask(f, macroLibrary.snapshot(), f.getName().endsWith(MacroBinaryFormat.EXTENSION)));
 				} catch (IllegalArgumentException e) {
 					JOptionPane.showMessageDialog(null, e.getMessage());
+				} catch (IllegalStateException e) {
+					// No file was chosen
 				}
 			}
 		});
@@ -251,21 +547,106 @@ public class UI extends JFrame {
 		itemClear.addActionListener(new ActionListener() {
 			//This is the method that handles clearing the system
 			public void actionPerformed(ActionEvent a) {
-				macroList = new ArrayList<Macro>();
+				if (journal != null) {
+					// Clearing the system leaves the journaled file as it is
+					closeJournal();
+					macroLibrary = new MacroLibrary();
+					macroListModel.setLibrary(macroLibrary);
+				} else {
+					macroLibrary.clear();
+				}
+				closeLazyLibrary();
+				closeWatcher();
+				loadedFile = null;
 				currentMacro = null;
-		        currentMacroLabel.setText("Current macro: No Current Macro.");
-				macroListTextArea.setText("List of macros: Empty");
+		        showCurrentMacro();
+				updateLazyLibraryLabel();
 			}
 		});
 		
 		itemQuit.addActionListener(new ActionListener() {
 			//This is the method that handles quitting from the system
 			public void actionPerformed(ActionEvent a) {
+				if (fileTask != null) {
+					// A cancelled save leaves the file as it was
+					fileTask.cancel();
+				}
+				closeJournal();
+				closeWatcher();
 				System.exit(0);
 			}
 		});
 	}
 	
+	/**
+	 * Runs a load or save in the background, showing its progress and keeping the file menu from starting another
+	 * until it is done
+	 * @param task the load or save
+	 */
+	private void startFileTask(MacroFileTask<?> task) {
+		fileTask = task;
+		setFileItemsEnabled(false);
+		fileProgressBar.setValue(0);
+		fileProgressBar.setString(task.getTitle());
+		fileProgressBar.setVisible(true);
+		fileCancelButton.setEnabled(true);
+		fileCancelButton.setVisible(true);
+		task.addPropertyChangeListener(e -> {
+			// Fired on the event dispatch thread
+			if ("progress".equals(e.getPropertyName())) {
+				fileProgressBar.setValue((Integer) e.getNewValue());
+			} else if (MacroFileTask.STATUS_PROPERTY.equals(e.getPropertyName())) {
+				fileProgressBar.setString((String) e.getNewValue());
+			} else if ("state".equals(e.getPropertyName()) && e.getNewValue() == SwingWorker.StateValue.DONE) {
+				fileTaskDone(task);
+			}
+		});
+		task.execute();
+	}
+	
+	/**
+	 * Hides the progress of a finished load or save and tells the user how it went
+	 * @param task the load or save
+	 */
+	private void fileTaskDone(MacroFileTask<?> task) {
+		if (fileTask != task) {
+			return;
+		}
+		fileTask = null;
+		fileProgressBar.setVisible(false);
+		fileCancelButton.setVisible(false);
+		setFileItemsEnabled(true);
+		if (task instanceof MacroLoadTask) {
+			if (task.isCancelRequested()) {
+				// Only part of the file is in the library, so there is nothing to keep in step with it
+				loadedFile = null;
+			} else if (itemWatch.isSelected()) {
+				startWatcher();
+			}
+		} else if (task instanceof MacroJournalOpenTask) {
+			MacroJournal opened = ((MacroJournalOpenTask) task).getJournal();
+			if (opened != null) {
+				openJournal(opened);
+			}
+		}
+		String outcome = task.getOutcome();
+		if (outcome != null) {
+			JOptionPane.showMessageDialog(null, outcome);
+		}
+	}
+	
+	/**
+	 * Enables or disables the menu items which read or replace the library
+	 * @param enabled whether they can be used
+	 */
+	private void setFileItemsEnabled(boolean enabled) {
+		itemLoad.setEnabled(enabled);
+		itemOpenLazy.setEnabled(enabled);
+		itemOpenJournal.setEnabled(enabled);
+		itemClear.setEnabled(enabled);
+		itemSave.setEnabled(enabled && !macroLibrary.isEmpty());
+	}
+	
 	/**
 	 * Returns a file name generated through interactions with a JFileChooser
 	 * object.
@@ -294,14 +675,174 @@ public class UI extends JFrame {
 	}
 	
 	/**
-	 * Generates the text for the macro list text area
+	 * Shows the current macro, and how long it takes at 1x speed once a dry run in the background has worked it out.
+	 * A dry run still going for the macro shown before is cancelled.
+	 */
+	private void showCurrentMacro() {
+		if (durationTask != null) {
+			durationTask.cancel(true);
+			durationTask = null;
+		}
+		if (currentMacro == null) {
+			currentMacroLabel.setText("Current macro: No Current Macro.");
+			durationLabel.setText("");
+			return;
+		}
+		currentMacroLabel.setText("Current macro: " + currentMacro.toString());
+		durationLabel.setText("Estimating duration...");
+		Macro macro = currentMacro;
+		durationTask = new SwingWorker<MacroTimeline, Void>() {
+			/**
+			 * Dry runs the macro against a simulated clock, giving up on macros too long to estimate quickly
+			 * @return summary timeline of the macro
+			 * @throws InterruptedException if the dry run is cancelled
+			 */
+			@Override
+			protected MacroTimeline doInBackground() throws InterruptedException {
+				return new DryRunEngine(ReplayOptions.REAL_TIME).measure(macro);
+			}
+
+			/**
+			 * Shows the estimate unless another macro has been shown since
+			 */
+			@Override
+			protected void done() {
+				if (durationTask != this) {
+					return;
+				}
+				durationTask = null;
+				try {
+					MacroTimeline timeline = get();
+					durationLabel.setText(String.format("Takes %.3f s, %d key events", timeline.getDurationMicros() / 1e6,
+							timeline.getEventCount()));
+				} catch (ExecutionException e) {
+					durationLabel.setText("Cannot be replayed: " + describe(e.getCause()));
+				} catch (InterruptedException e) {
+					durationLabel.setText("");
+				}
+			}
+		};
+		durationTask.execute();
+	}
+	
+	/**
+	 * Updates the label telling how many macros can be loaded from the open library
 	 */
-	public void generateMacroListTextAreaText() {
-		String s = "";
-		for (int i = 0; i < macroList.size(); i++) {
-			s += "\n";
-			s += macroList.get(i);
+	private void updateLazyLibraryLabel() {
+		if (lazyLibrary != null) {
+			lazyLibraryLabel.setText(lazyLibrary.size() + " more in " + lazyLibrary.getFile().getName() + " (loaded when switched to)");
+		} else {
+			lazyLibraryLabel.setText("");
+		}
+	}
+	
+	/**
+	 * Closes the library whose macros are loaded on use, if one is open
+	 */
+	private void closeLazyLibrary() {
+		if (lazyLibrary != null) {
+			try {
+				lazyLibrary.close();
+			} catch (IOException e) {
+				// Nothing more can be read from it either way
+			}
+			lazyLibrary = null;
+		}
+	}
+	
+	/**
+	 * Starts applying changes of the loaded file to the library, if a file was loaded and is not watched yet
+	 */
+	private void startWatcher() {
+		if (loadedFile == null || watcher != null) {
+			return;
+		}
+		try {
+			watcher = new MacroFileWatcher(loadedFile, macroLibrary,
+					result -> SwingUtilities.invokeLater(() -> fileReloaded(result)));
+		} catch (IllegalArgumentException e) {
+			JOptionPane.showMessageDialog(null, e.getMessage());
+		}
+	}
+	
+	/**
+	 * Follows the current macro to its new version after the watched file changed, and reports lines
+	 * which could not be applied
+	 * @param result what the reload did
+	 */
+	private void fileReloaded(MacroReloadResult result) {
+		if (watcher == null || watcher.getLibrary() != macroLibrary) {
+			return;
+		}
+		if (currentMacro != null && (result.getChanged().contains(currentMacro.getMacroName())
+				|| result.getRemoved().contains(currentMacro.getMacroName()))) {
+			currentMacro = macroLibrary.get(currentMacro.getMacroName());
+			showCurrentMacro();
+		}
+		itemSave.setEnabled(fileTask == null && !macroLibrary.isEmpty());
+		if (!result.getErrors().isEmpty()) {
+			JOptionPane.showMessageDialog(null, "Reloaded " + loadedFile.getName() + ", " + result + ". "
+					+ MacroSaveReader.describeErrors(result.getErrors()));
+		}
+	}
+	
+	/**
+	 * Stops watching the loaded file, if it is watched
+	 */
+	private void closeWatcher() {
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				// No more changes are applied either way
+			}
+			watcher = null;
+		}
+	}
+	
+	/**
+	 * Lists the names of several macros starting with the name given to switch to
+	 * @param matches the macros, sorted by name, one more than MAX_LISTED_MATCHES if there are more
+	 * @return a message for the user
+	 */
+	private static String describeMatches(List<Macro> matches) {
+		StringBuilder sb = new StringBuilder("Several macros start with the provided name: ");
+		for (int i = 0; i < Math.min(matches.size(), MAX_LISTED_MATCHES); i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(matches.get(i).getMacroName());
+		}
+		return sb.append(matches.size() > MAX_LISTED_MATCHES ? ", ..." : ".").toString();
+	}
+
+	/**
+	 * Shows the library of a journal just opened, every later change being appended to it
+	 * @param opened the journal
+	 */
+	private void openJournal(MacroJournal opened) {
+		closeJournal();
+		closeWatcher();
+		loadedFile = null;
+		journal = opened;
+		macroLibrary = journal.getLibrary();
+		macroListModel.setLibrary(macroLibrary);
+		currentMacro = null;
+		showCurrentMacro();
+		itemSave.setEnabled(true);
+	}
+
+	/**
+	 * Syncs and closes the journal of the library, if one is open
+	 */
+	private void closeJournal() {
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				JOptionPane.showMessageDialog(null, e.getMessage());
+			}
+			journal = null;
 		}
-		macroListTextArea.setText("List of macros" + s);
 	}
 }
@@ -0,0 +1,479 @@
+/**
+ *
+ */
+package io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import macros.Macro;
+import macros.MacroResolver;
+
+/**
+ * Read-only view of a macro save file which only parses the macros that are actually used.
+ * Opening the library memory-maps the file and scans it in parallel for the offset and name hash
+ * of every line, without creating any objects per line. A macro is parsed, validated and compiled
+ * the first time it is asked for, and kept in a least recently used cache bounded by an estimate
+ * of its size in bytes.
+ * If two lines share a name, the first one wins.
+ * Macros of the library look up the macros they call in it. Calls are only followed when a macro is
+ * replayed, so cycles between the lines of the file are stopped by the replay's call depth limit.
+ *
+ * @author ABM
+ *
+ */
+public class LazyMacroLibrary implements Closeable, MacroResolver {
+
+	/** Default budget of the compiled macro cache, in bytes */
+	public static final long DEFAULT_CACHE_BYTES = 16L << 20;
+	/** The file is mapped in windows of 2^WINDOW_SHIFT bytes */
+	private static final int WINDOW_SHIFT = 30;
+	/** Size of the pieces the file is split into for scanning, always a divisor of the window size */
+	private static final int SCAN_SEGMENT_SIZE = 32 << 20;
+	/** Number of bytes copied out of the mapping at a time while scanning */
+	private static final int SCAN_BLOCK_SIZE = 1 << 16;
+	/** Estimated fixed cost of a cached macro in bytes */
+	private static final int MACRO_OVERHEAD = 128;
+	/** FNV-1a offset basis */
+	private static final int FNV_BASIS = 0x811C9DC5;
+	/** FNV-1a prime */
+	private static final int FNV_PRIME = 0x01000193;
+	/** File the library is read from */
+	private final File file;
+	/** Channel the file is mapped from */
+	private final FileChannel channel;
+	/** Size of the file in bytes */
+	private final long size;
+	/** Mapped windows of the file */
+	private final MappedByteBuffer[] windows;
+	/** Byte offset of each macro line, in file order */
+	private final long[] offsets;
+	/** Hash of the name on each macro line */
+	private final int[] hashes;
+	/** Line number of each macro line */
+	private final int[] lineNumbers;
+	/** Open addressing table from name hash to macro line index plus one, 0 marks an empty slot */
+	private final int[] table;
+	/** Number of distinct macro names in the library */
+	private final int count;
+	/** Largest estimated size of the cache in bytes */
+	private final long cacheBudget;
+	/** Compiled macros by line index, least recently used first */
+	private final LinkedHashMap<Integer, Macro> cache = new LinkedHashMap<>(16, 0.75f, true);
+	/** Estimated size of the cache in bytes */
+	private long cacheBytes;
+
+	/**
+	 * Opens a macro save file with the default cache budget
+	 * @param f file to open
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the file cannot be read
+	 */
+	public LazyMacroLibrary(File f) {
+		this(f, DEFAULT_CACHE_BYTES);
+	}
+
+	/**
+	 * Opens a macro save file
+	 * @param f file to open
+	 * @param cacheBudget largest estimated size of the compiled macro cache, in bytes
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the file cannot be read
+	 */
+	public LazyMacroLibrary(File f, long cacheBudget) {
+		if (f == null) {
+			throw new IllegalArgumentException("Unable to load file.");
+		}
+		this.file = f;
+		this.cacheBudget = cacheBudget;
+		try {
+			this.channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+			this.size = channel.size();
+			this.windows = new MappedByteBuffer[(int) ((size >>> WINDOW_SHIFT) + 1)];
+			for (int i = 0; i < windows.length; i++) {
+				long start = (long) i << WINDOW_SHIFT;
+				windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, 1L << WINDOW_SHIFT));
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to load file.");
+		}
+
+		List<ForkJoinTask<Segment>> tasks = new ArrayList<>();
+		for (long start = 0; start < size; start += SCAN_SEGMENT_SIZE) {
+			long segmentStart = start;
+			tasks.add(ForkJoinPool.commonPool().submit(() -> scan(segmentStart, Math.min(size, segmentStart + SCAN_SEGMENT_SIZE))));
+		}
+		int lines = 0;
+		for (ForkJoinTask<Segment> task : tasks) {
+			lines += task.join().size;
+		}
+		long[] allOffsets = new long[lines];
+		int[] allHashes = new int[lines];
+		int[] allLines = new int[lines];
+		int n = 0;
+		int lineBase = 0;
+		for (ForkJoinTask<Segment> task : tasks) {
+			Segment s = task.join();
+			System.arraycopy(s.offsets, 0, allOffsets, n, s.size);
+			System.arraycopy(s.hashes, 0, allHashes, n, s.size);
+			for (int i = 0; i < s.size; i++) {
+				allLines[n + i] = lineBase + s.lines[i];
+			}
+			n += s.size;
+			lineBase += s.lineCount;
+		}
+		this.offsets = allOffsets;
+		this.hashes = allHashes;
+		this.lineNumbers = allLines;
+		this.table = new int[Integer.highestOneBit(Math.max(1, lines) * 2 - 1) << 1];
+		int distinct = 0;
+		for (int i = 0; i < lines; i++) {
+			if (insert(i)) {
+				distinct++;
+			}
+		}
+		this.count = distinct;
+	}
+
+	/**
+	 * Gets the file the library is read from
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets the number of distinct macro names in the library
+	 * @return the number of macros
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Tells if the library has a macro with a given name, without parsing it
+	 * @param name name to look for
+	 * @return true if a line of the file has the name
+	 */
+	public boolean contains(String name) {
+		return name != null && find(name) >= 0;
+	}
+
+	/**
+	 * Gets the macro with a given name, parsing and compiling it if it is not cached
+	 * @param name name of the macro
+	 * @return the macro, or null if no line of the file has that name
+	 * @throws IllegalArgumentException with the line number and message if the line does not hold a valid macro
+	 */
+	public Macro get(String name) {
+		if (name == null) {
+			return null;
+		}
+		int index = find(name);
+		return index < 0 ? null : activate(index);
+	}
+
+	/**
+	 * Finds the macro called by name from another macro of the library
+	 * @param name name of the macro
+	 * @return the macro, or null if no line of the file has that name
+	 * @throws IllegalArgumentException if the line does not hold a valid macro
+	 */
+	@Override
+	public Macro resolve(String name) {
+		return get(name);
+	}
+
+	/**
+	 * Gets the estimated size of the compiled macro cache
+	 * @return the estimate in bytes
+	 */
+	public synchronized long getCachedBytes() {
+		return cacheBytes;
+	}
+
+	/**
+	 * Gets the number of compiled macros in the cache
+	 * @return the number of cached macros
+	 */
+	public synchronized int getCachedCount() {
+		return cache.size();
+	}
+
+	/**
+	 * Closes the file channel. The mapping stays readable until the library is garbage collected.
+	 * @throws IOException if the file cannot be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Finds the macro line with a given name
+	 * @param name name to look for
+	 * @return index of the macro line, or -1 if there is none
+	 */
+	private int find(String name) {
+		byte[] key = name.getBytes(StandardCharsets.UTF_8);
+		int hash = FNV_BASIS;
+		for (byte b : key) {
+			hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+		}
+		int mask = table.length - 1;
+		for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+			int index = table[slot] - 1;
+			if (hashes[index] == hash && nameEquals(index, key)) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Adds a macro line to the name table unless an earlier line has the same name
+	 * @param index index of the macro line
+	 * @return true if the line was added
+	 */
+	private boolean insert(int index) {
+		int mask = table.length - 1;
+		int slot = hashes[index] & mask;
+		for (; table[slot] != 0; slot = (slot + 1) & mask) {
+			int other = table[slot] - 1;
+			if (hashes[other] == hashes[index] && nameEquals(other, readName(index))) {
+				return false;
+			}
+		}
+		table[slot] = index + 1;
+		return true;
+	}
+
+	/**
+	 * Compares the name on a macro line with a name
+	 * @param index index of the macro line
+	 * @param key UTF-8 bytes of the name
+	 * @return true if they are the same
+	 */
+	private boolean nameEquals(int index, byte[] key) {
+		long position = offsets[index];
+		if (position + key.length >= size) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (byteAt(position + i) != key[i]) {
+				return false;
+			}
+		}
+		byte end = byteAt(position + key.length);
+		return end == ',' || end == '\n' || end == '\r';
+	}
+
+	/**
+	 * Reads the name on a macro line
+	 * @param index index of the macro line
+	 * @return UTF-8 bytes of the name
+	 */
+	private byte[] readName(int index) {
+		long start = offsets[index];
+		long end = start;
+		while (end < size) {
+			byte b = byteAt(end);
+			if (b == ',' || b == '\n' || b == '\r') {
+				break;
+			}
+			end++;
+		}
+		return readBytes(start, end);
+	}
+
+	/**
+	 * Returns the cached macro of a line, parsing and caching it if needed
+	 * @param index index of the macro line
+	 * @return the macro
+	 * @throws IllegalArgumentException with the line number and message if the line does not hold a valid macro
+	 */
+	private Macro activate(int index) {
+		synchronized (this) {
+			Macro cached = cache.get(index);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		long start = offsets[index];
+		long end = start;
+		while (end < size && byteAt(end) != '\n') {
+			end++;
+		}
+		String line = new String(readBytes(start, end), StandardCharsets.UTF_8);
+		Macro macro;
+		try {
+			macro = MacroChunkReader.parseLine(line, 0, line.length());
+			macro.setResolver(this);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException(new MacroLoadError(lineNumbers[index], e.getMessage()).toString());
+		}
+		synchronized (this) {
+			Macro raced = cache.putIfAbsent(index, macro);
+			if (raced != null) {
+				return raced;
+			}
+			cacheBytes += estimateSize(macro);
+			while (cacheBytes > cacheBudget && cache.size() > 1) {
+				Map.Entry<Integer, Macro> eldest = cache.entrySet().iterator().next();
+				cacheBytes -= estimateSize(eldest.getValue());
+				cache.remove(eldest.getKey());
+			}
+		}
+		return macro;
+	}
+
+	/**
+	 * Estimates the heap used by a compiled macro
+	 * @param macro the macro
+	 * @return the estimate in bytes
+	 */
+	private static long estimateSize(Macro macro) {
+		return MACRO_OVERHEAD + 2L * macro.getMacroName().length() + 2L * macro.getMacroString().length()
+				+ 4L * 2 * macro.getProgram().length();
+	}
+
+	/**
+	 * Reads a byte of the file
+	 * @param position offset of the byte
+	 * @return the byte
+	 */
+	private byte byteAt(long position) {
+		return windows[(int) (position >>> WINDOW_SHIFT)].get((int) (position & ((1L << WINDOW_SHIFT) - 1)));
+	}
+
+	/**
+	 * Copies a range of the file
+	 * @param start offset of the first byte
+	 * @param end offset just past the last byte
+	 * @return the bytes
+	 */
+	private byte[] readBytes(long start, long end) {
+		byte[] bytes = new byte[(int) (end - start)];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = byteAt(start + i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Finds the start offset and name hash of every non-blank line starting in a piece of the file
+	 * @param start offset of the piece
+	 * @param end offset just past the piece
+	 * @return the lines found
+	 */
+	private Segment scan(long start, long end) {
+		Segment segment = new Segment();
+		MappedByteBuffer window = windows[(int) (start >>> WINDOW_SHIFT)];
+		int base = (int) (start & ((1L << WINDOW_SHIFT) - 1));
+		int length = (int) (end - start);
+		byte[] block = new byte[SCAN_BLOCK_SIZE];
+		boolean atLineStart = start == 0 || byteAt(start - 1) == '\n';
+		for (int blockStart = 0; blockStart < length; blockStart += SCAN_BLOCK_SIZE) {
+			int blockLength = Math.min(SCAN_BLOCK_SIZE, length - blockStart);
+			window.get(base + blockStart, block, 0, blockLength);
+			int i = 0;
+			while (i < blockLength) {
+				if (atLineStart) {
+					segment.lineCount++;
+					byte b = block[i];
+					if (b != '\n' && b != '\r') {
+						segment.add(start + blockStart + i, hashName(block, i, blockLength, start + blockStart), segment.lineCount);
+					}
+				}
+				while (i < blockLength && block[i] != '\n') {
+					i++;
+				}
+				atLineStart = i < blockLength;
+				i++;
+			}
+		}
+		return segment;
+	}
+
+	/**
+	 * Hashes the name on a line starting inside a block of bytes copied from the file
+	 * @param block the copied bytes
+	 * @param index index of the start of the line in the block
+	 * @param blockLength number of bytes in the block
+	 * @param blockOffset offset of the block in the file
+	 * @return FNV-1a hash of the bytes before the first comma or line end
+	 */
+	private int hashName(byte[] block, int index, int blockLength, long blockOffset) {
+		int hash = FNV_BASIS;
+		for (int i = index; i < blockLength; i++) {
+			byte b = block[i];
+			if (b == ',' || b == '\n' || b == '\r') {
+				return hash;
+			}
+			hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+		}
+		// The name runs past the block, hash it straight from the file instead
+		return hashName(blockOffset + index);
+	}
+
+	/**
+	 * Hashes the name on the line starting at an offset
+	 * @param position offset of the line
+	 * @return FNV-1a hash of the bytes before the first comma or line end
+	 */
+	private int hashName(long position) {
+		int hash = FNV_BASIS;
+		while (position < size) {
+			byte b = byteAt(position++);
+			if (b == ',' || b == '\n' || b == '\r') {
+				break;
+			}
+			hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * Lines found while scanning a piece of the file
+	 */
+	private static class Segment {
+		/** Offset of each non-blank line */
+		private long[] offsets = new long[256];
+		/** Name hash of each non-blank line */
+		private int[] hashes = new int[256];
+		/** Line number of each non-blank line within the piece */
+		private int[] lines = new int[256];
+		/** Number of non-blank lines found */
+		private int size;
+		/** Number of lines starting in the piece, blank or not */
+		private int lineCount;
+
+		/**
+		 * Records a non-blank line
+		 * @param offset offset of the line
+		 * @param hash hash of its name
+		 * @param line line number within the piece
+		 */
+		private void add(long offset, int hash, int line) {
+			if (size == offsets.length) {
+				offsets = Arrays.copyOf(offsets, size * 2);
+				hashes = Arrays.copyOf(hashes, size * 2);
+				lines = Arrays.copyOf(lines, size * 2);
+			}
+			offsets[size] = offset;
+			hashes[size] = hash;
+			lines[size++] = line;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * 
+ */
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Layout of the binary macro library format shared by MacroBinaryWriter and MacroBinaryReader.
+ * All numbers are big-endian. A file is laid out as:
+ * <ul>
+ * <li>Header: magic "MRLB", version (2 bytes), reserved (2 bytes), macro count (4 bytes),
+ * string table offset (8 bytes), program section offset (8 bytes)</li>
+ * <li>Index: one entry per macro sorted by name, holding the name's offset and length in the
+ * string table (4 bytes each), the program's offset in the program section (8 bytes) and the
+ * macro's position in the library (4 bytes)</li>
+ * <li>String table: the UTF-8 bytes of every name</li>
+ * <li>Program section: for each macro in library order, its instruction count followed by
+ * every opcode and operand, then the number of macros it calls followed by the length and UTF-8 bytes
+ * of each of their names, all numbers as unsigned varints. Version 1 files have no call table.</li>
+ * <li>Trailer: CRC32 of every byte before it (4 bytes)</li>
+ * </ul>
+ * 
+ * @author ABM
+ *
+ */
+public final class MacroBinaryFormat {
+	
+	/** First four bytes of every binary macro library, "MRLB" */
+	static final int MAGIC = 0x4D524C42;
+	/** Version of the format written by this program */
+	static final short VERSION = 2;
+	/** Oldest version of the format this program reads, which has no call tables */
+	static final short MIN_VERSION = 1;
+	/** Size of the header in bytes */
+	static final int HEADER_SIZE = 28;
+	/** Size of an index entry in bytes */
+	static final int INDEX_ENTRY_SIZE = 20;
+	/** Size of the trailer in bytes */
+	static final int TRAILER_SIZE = 4;
+	/** File extension of binary macro libraries, saving to a file with it writes a binary library */
+	public static final String EXTENSION = ".mlib";
+	
+	/**
+	 * Not instantiable
+	 */
+	private MacroBinaryFormat() {
+	}
+	
+	/**
+	 * Gets the number of bytes an unsigned varint takes
+	 * @param value the value to encode
+	 * @return the encoded size in bytes
+	 */
+	static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+	
+	/**
+	 * Writes an unsigned varint
+	 * @param buffer buffer to write to
+	 * @param value the value to encode
+	 */
+	static void putVarint(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+	
+	/**
+	 * Reads an unsigned varint
+	 * @param buffer buffer to read from
+	 * @return the decoded value
+	 * @throws IllegalArgumentException if the varint is longer than an int allows
+	 */
+	static int getVarint(ByteBuffer buffer) {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Corrupt macro library.");
+	}
+	
+	/**
+	 * Tells if a file is a binary macro library by checking its first four bytes
+	 * @param f the file to check
+	 * @return true if the file starts with the binary library magic number
+	 */
+	static boolean hasMagic(File f) {
+		try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer magic = ByteBuffer.allocate(4);
+			while (magic.hasRemaining() && channel.read(magic) >= 0) {
+				// Keep reading until four bytes are in or the file ends
+			}
+			return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,293 @@
+/**
+ * 
+ */
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.zip.CRC32;
+
+import macros.Macro;
+import macros.MacroLibrary;
+import macros.MacroProgram;
+
+/**
+ * Reads macros from a binary macro library written by MacroBinaryWriter.
+ * The programs in a library were checked when it was written, so loading only decodes them.
+ * 
+ * @author ABM
+ *
+ */
+public class MacroBinaryReader {
+	
+	/** Number of macros loadMacroLibrary adds between two progress updates */
+	private static final int LOAD_BATCH_SIZE = 4096;
+	/** Mapped contents of the library */
+	private final ByteBuffer data;
+	/** Number of macros in the library */
+	private final int count;
+	/** Offset of the string table */
+	private final long stringTableOffset;
+	/** Offset of the program section */
+	private final long programOffset;
+	/** Scratch buffer programs are decoded into */
+	private int[] code = new int[64];
+	/** Version of the format of the library */
+	private final short version;
+	
+	/**
+	 * Constructs a reader over the contents of a library, checking its header and checksum
+	 * @param data the whole library
+	 * @throws IllegalArgumentException if the library is corrupt or of an unknown version
+	 */
+	private MacroBinaryReader(ByteBuffer data) {
+		this.data = data;
+		int size = data.limit();
+		if (size < MacroBinaryFormat.HEADER_SIZE + MacroBinaryFormat.TRAILER_SIZE || data.getInt(0) != MacroBinaryFormat.MAGIC) {
+			throw new IllegalArgumentException("Not a macro library.");
+		}
+		this.version = data.getShort(4);
+		if (version < MacroBinaryFormat.MIN_VERSION || version > MacroBinaryFormat.VERSION) {
+			throw new IllegalArgumentException("Unsupported macro library version " + version + ".");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data.duplicate().limit(size - MacroBinaryFormat.TRAILER_SIZE));
+		if ((int) crc.getValue() != data.getInt(size - MacroBinaryFormat.TRAILER_SIZE)) {
+			throw new IllegalArgumentException("Corrupt macro library.");
+		}
+		this.count = data.getInt(8);
+		this.stringTableOffset = data.getLong(12);
+		this.programOffset = data.getLong(20);
+		if (count < 0 || stringTableOffset != MacroBinaryFormat.HEADER_SIZE + (long) count * MacroBinaryFormat.INDEX_ENTRY_SIZE
+				|| programOffset < stringTableOffset || programOffset > size - MacroBinaryFormat.TRAILER_SIZE) {
+			throw new IllegalArgumentException("Corrupt macro library.");
+		}
+	}
+	
+	/**
+	 * Tells if a file is a binary macro library rather than a text save file
+	 * @param f the file to check
+	 * @return true if the file starts like a binary macro library
+	 */
+	public static boolean isMacroLibraryFile(File f) {
+		return f != null && MacroBinaryFormat.hasMagic(f);
+	}
+	
+	/**
+	 * Receives a File with a binary macro library and reads every macro from it, in the order they were written.
+	 * @param f file to read
+	 * @return the macros of the library
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the file cannot be read,
+	 * or with a description of the problem if it is not a valid macro library
+	 */
+	public static ArrayList<Macro> readMacroLibraryFile(File f) {
+		MacroBinaryReader reader = open(f);
+		Macro[] macros = new Macro[reader.count];
+		for (int i = 0; i < reader.count; i++) {
+			int ordinal = reader.ordinal(i);
+			if (ordinal < 0 || ordinal >= reader.count || macros[ordinal] != null) {
+				throw new IllegalArgumentException("Corrupt macro library.");
+			}
+			macros[ordinal] = reader.macro(i);
+		}
+		return new ArrayList<>(Arrays.asList(macros));
+	}
+	
+	/**
+	 * Receives a File with a binary macro library and reads it into a MacroLibrary, in the order the macros were written.
+	 * @param f file to read
+	 * @return the library
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the file cannot be read,
+	 * or with a description of the problem if it is not a valid macro library
+	 */
+	public static MacroLibrary readMacroLibrary(File f) {
+		return new MacroLibrary(readMacroLibraryFile(f));
+	}
+	
+	/**
+	 * Receives a File with a binary macro library and adds its macros to a library in the order they were written,
+	 * a batch at a time, so listeners of the library see the first macros before the rest are decoded.
+	 * @param f file to read
+	 * @param library library the macros are added to
+	 * @param progress told after every batch how far the load has got, null if nothing needs telling
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the file cannot be read,
+	 * with a description of the problem if it is not a valid macro library, or if library already has one of its names
+	 * @throws CancellationException if progress is cancelled, the macros of the batches read so far stay in the library
+	 */
+	public static void loadMacroLibrary(File f, MacroLibrary library, MacroIoProgress progress) {
+		MacroBinaryReader reader = open(f);
+		int size = reader.data.limit();
+		// The index is sorted by name, so find the entry of each ordinal before decoding in written order
+		int[] entries = new int[reader.count];
+		Arrays.fill(entries, -1);
+		for (int i = 0; i < reader.count; i++) {
+			int ordinal = reader.ordinal(i);
+			if (ordinal < 0 || ordinal >= reader.count || entries[ordinal] != -1) {
+				throw new IllegalArgumentException("Corrupt macro library.");
+			}
+			entries[ordinal] = i;
+		}
+		for (int ordinal = 0; ordinal < reader.count; ordinal++) {
+			if (ordinal % LOAD_BATCH_SIZE == 0 && progress != null) {
+				if (progress.isCancelRequested()) {
+					throw new CancellationException("Loading " + f.getName() + " was cancelled.");
+				}
+				progress.update(size, size, ordinal, reader.count);
+			}
+			library.add(reader.macro(entries[ordinal]));
+		}
+		if (progress != null) {
+			progress.update(size, size, reader.count, reader.count);
+		}
+	}
+	
+	/**
+	 * Reads a single macro from a binary macro library by looking its name up in the library's index
+	 * @param f file to read
+	 * @param name name of the macro
+	 * @return the macro, or null if the library has no macro with that name
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the file cannot be read,
+	 * or with a description of the problem if it is not a valid macro library
+	 */
+	public static Macro readMacro(File f, String name) {
+		MacroBinaryReader reader = open(f);
+		byte[] key = name.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = reader.count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = reader.compareName(mid, key);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return reader.macro(mid);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Maps a library into memory
+	 * @param f file to read
+	 * @return a reader over the library
+	 * @throws IllegalArgumentException if the file cannot be read or is not a valid library
+	 */
+	private static MacroBinaryReader open(File f) {
+		if (f == null) {
+			throw new IllegalArgumentException("Unable to load file.");
+		}
+		try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Unable to load file.");
+			}
+			return new MacroBinaryReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to load file.");
+		}
+	}
+	
+	/**
+	 * Gets the position in the library of the macro at an index entry
+	 * @param entry index of the entry
+	 * @return the macro's position
+	 */
+	private int ordinal(int entry) {
+		return data.getInt(entryOffset(entry) + 16);
+	}
+	
+	/**
+	 * Compares the name of the macro at an index entry with a name
+	 * @param entry index of the entry
+	 * @param key UTF-8 bytes of the name to compare with
+	 * @return negative, zero or positive as the entry's name sorts before, equal to or after key
+	 */
+	private int compareName(int entry, byte[] key) {
+		int offset = nameOffset(entry);
+		int length = data.getInt(entryOffset(entry) + 4);
+		int shared = Math.min(length, key.length);
+		for (int i = 0; i < shared; i++) {
+			int cmp = Integer.compare(data.get(offset + i) & 0xFF, key[i] & 0xFF);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return Integer.compare(length, key.length);
+	}
+	
+	/**
+	 * Decodes the macro at an index entry
+	 * @param entry index of the entry
+	 * @return the macro
+	 * @throws IllegalArgumentException if the entry or its program is corrupt
+	 */
+	private Macro macro(int entry) {
+		int base = entryOffset(entry);
+		int nameLength = data.getInt(base + 4);
+		long start = programOffset + data.getLong(base + 8);
+		int nameOffset = nameOffset(entry);
+		if (nameLength < 0 || nameOffset + (long) nameLength > programOffset || start < programOffset
+				|| start >= data.limit() - MacroBinaryFormat.TRAILER_SIZE) {
+			throw new IllegalArgumentException("Corrupt macro library.");
+		}
+		byte[] name = new byte[nameLength];
+		data.get(nameOffset, name);
+		try {
+			ByteBuffer program = data.duplicate().position((int) start).limit(data.limit() - MacroBinaryFormat.TRAILER_SIZE);
+			int length = MacroBinaryFormat.getVarint(program) * MacroProgram.INSTRUCTION_WIDTH;
+			if (length < 0 || length > program.remaining()) {
+				throw new IllegalArgumentException("Corrupt macro library.");
+			}
+			if (code.length < length) {
+				code = new int[length];
+			}
+			for (int i = 0; i < length; i++) {
+				code[i] = MacroBinaryFormat.getVarint(program);
+			}
+			int callCount = version < 2 ? 0 : MacroBinaryFormat.getVarint(program);
+			if (callCount < 0 || callCount > program.remaining()) {
+				throw new IllegalArgumentException("Corrupt macro library.");
+			}
+			String[] calls = new String[callCount];
+			for (int i = 0; i < calls.length; i++) {
+				int callLength = MacroBinaryFormat.getVarint(program);
+				if (callLength < 0 || callLength > program.remaining()) {
+					throw new IllegalArgumentException("Corrupt macro library.");
+				}
+				byte[] call = new byte[callLength];
+				program.get(call);
+				calls[i] = new String(call, StandardCharsets.UTF_8);
+			}
+			return Macro.fromProgram(new String(name, StandardCharsets.UTF_8), MacroProgram.fromInstructions(code, length, calls));
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Corrupt macro library.");
+		}
+	}
+	
+	/**
+	 * Gets the offset of an index entry
+	 * @param entry index of the entry
+	 * @return the entry's offset in the library
+	 */
+	private int entryOffset(int entry) {
+		return MacroBinaryFormat.HEADER_SIZE + entry * MacroBinaryFormat.INDEX_ENTRY_SIZE;
+	}
+	
+	/**
+	 * Gets the offset of the name of the macro at an index entry
+	 * @param entry index of the entry
+	 * @return the name's offset in the library
+	 */
+	private int nameOffset(int entry) {
+		return (int) stringTableOffset + data.getInt(entryOffset(entry));
+	}
+}
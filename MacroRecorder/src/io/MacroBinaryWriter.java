@@ -0,0 +1,205 @@
+/**
+ * 
+ */
+package io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import macros.Macro;
+import macros.MacroLibrary;
+import macros.MacroProgram;
+
+/**
+ * Writes a list of macros to a binary macro library.
+ * The library stores the compiled programs of the macros, so loading it does not need to
+ * validate any macro strings again. See MacroBinaryFormat for the layout.
+ *  
+ * @author ABM
+ *
+ */
+public class MacroBinaryWriter {
+	
+	/** Size of the buffer bytes are gathered in before being written */
+	private static final int BUFFER_SIZE = 1 << 16;
+	/** Largest number of bytes written by a single instruction, two five byte varints */
+	private static final int MAX_INSTRUCTION_SIZE = 10;
+	/** File being written */
+	private final FileChannel channel;
+	/** Bytes waiting to be written */
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	/** Checksum of every byte written so far */
+	private final CRC32 crc = new CRC32();
+	
+	/**
+	 * Constructs a writer
+	 * @param channel file being written
+	 */
+	private MacroBinaryWriter(FileChannel channel) {
+		this.channel = channel;
+	}
+	
+	/**
+	 * Receives a File with the file name to write to and a list of Macro objects to save to it as a binary macro library. 
+	 * @param f file to write to
+	 * @param macroList list of Macro objects being written to the file f
+	 * @throws IllegalArgumentException with the message "Unable to save file." If there are any errors or exceptions
+	 */
+	public static void writeMacroListToFile(File f, List<Macro> macroList) {
+		if (f == null || macroList == null) {
+			throw new IllegalArgumentException("Unable to save file.");
+		}
+		try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			new MacroBinaryWriter(channel).write(macroList);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to save file.");
+		}
+	}
+	
+	/**
+	 * Receives a File with the file name to write to and a MacroLibrary to save to it as a binary macro library.
+	 * @param f file to write to
+	 * @param library library being written to the file f
+	 * @throws IllegalArgumentException with the message "Unable to save file." If there are any errors or exceptions
+	 */
+	public static void writeMacroLibraryToFile(File f, MacroLibrary library) {
+		writeMacroListToFile(f, library.snapshot());
+	}
+	
+	/**
+	 * Writes every section of the library
+	 * @param macroList macros to write
+	 * @throws IOException if the file cannot be written
+	 */
+	private void write(List<Macro> macroList) throws IOException {
+		int count = macroList.size();
+		byte[][] names = new byte[count][];
+		int[] nameOffsets = new int[count];
+		long[] programOffsets = new long[count];
+		int nameTotal = 0;
+		long programTotal = 0;
+		for (int i = 0; i < count; i++) {
+			names[i] = macroList.get(i).getMacroName().getBytes(StandardCharsets.UTF_8);
+			nameOffsets[i] = nameTotal;
+			nameTotal += names[i].length;
+			programOffsets[i] = programTotal;
+			programTotal += encodedSize(macroList.get(i).getProgram());
+		}
+		Integer[] byName = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			byName[i] = i;
+		}
+		Arrays.sort(byName, (a, b) -> Arrays.compareUnsigned(names[a], names[b]));
+		
+		long stringTableOffset = MacroBinaryFormat.HEADER_SIZE + (long) count * MacroBinaryFormat.INDEX_ENTRY_SIZE;
+		reserve(MacroBinaryFormat.HEADER_SIZE);
+		buffer.putInt(MacroBinaryFormat.MAGIC);
+		buffer.putShort(MacroBinaryFormat.VERSION);
+		buffer.putShort((short) 0);
+		buffer.putInt(count);
+		buffer.putLong(stringTableOffset);
+		buffer.putLong(stringTableOffset + nameTotal);
+		for (int i = 0; i < count; i++) {
+			int m = byName[i];
+			reserve(MacroBinaryFormat.INDEX_ENTRY_SIZE);
+			buffer.putInt(nameOffsets[m]);
+			buffer.putInt(names[m].length);
+			buffer.putLong(programOffsets[m]);
+			buffer.putInt(m);
+		}
+		for (int i = 0; i < count; i++) {
+			writeBytes(names[i]);
+		}
+		for (int i = 0; i < count; i++) {
+			MacroProgram program = macroList.get(i).getProgram();
+			reserve(MAX_INSTRUCTION_SIZE);
+			MacroBinaryFormat.putVarint(buffer, program.length());
+			for (int j = 0; j < program.length(); j++) {
+				reserve(MAX_INSTRUCTION_SIZE);
+				MacroBinaryFormat.putVarint(buffer, program.opcode(j));
+				MacroBinaryFormat.putVarint(buffer, program.operand(j));
+			}
+			reserve(MAX_INSTRUCTION_SIZE);
+			MacroBinaryFormat.putVarint(buffer, program.getCallCount());
+			for (int j = 0; j < program.getCallCount(); j++) {
+				byte[] call = program.getCall(j).getBytes(StandardCharsets.UTF_8);
+				reserve(MAX_INSTRUCTION_SIZE);
+				MacroBinaryFormat.putVarint(buffer, call.length);
+				writeBytes(call);
+			}
+		}
+		drain();
+		buffer.putInt((int) crc.getValue());
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+	
+	/**
+	 * Gets the number of bytes a program takes in the program section
+	 * @param program the program
+	 * @return the encoded size in bytes
+	 */
+	private static long encodedSize(MacroProgram program) {
+		long size = MacroBinaryFormat.varintSize(program.length());
+		for (int i = 0; i < program.length(); i++) {
+			size += MacroBinaryFormat.varintSize(program.opcode(i)) + MacroBinaryFormat.varintSize(program.operand(i));
+		}
+		size += MacroBinaryFormat.varintSize(program.getCallCount());
+		for (int i = 0; i < program.getCallCount(); i++) {
+			int callLength = program.getCall(i).getBytes(StandardCharsets.UTF_8).length;
+			size += MacroBinaryFormat.varintSize(callLength) + callLength;
+		}
+		return size;
+	}
+	
+	/**
+	 * Writes an array of bytes which may be larger than the buffer
+	 * @param bytes bytes to write
+	 * @throws IOException if the file cannot be written
+	 */
+	private void writeBytes(byte[] bytes) throws IOException {
+		int offset = 0;
+		while (offset < bytes.length) {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			int length = Math.min(buffer.remaining(), bytes.length - offset);
+			buffer.put(bytes, offset, length);
+			offset += length;
+		}
+	}
+	
+	/**
+	 * Makes sure the buffer has room for a number of bytes, writing it out if it does not
+	 * @param bytes number of bytes needed
+	 * @throws IOException if the file cannot be written
+	 */
+	private void reserve(int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			drain();
+		}
+	}
+	
+	/**
+	 * Writes out everything in the buffer and adds it to the checksum
+	 * @throws IOException if the file cannot be written
+	 */
+	private void drain() throws IOException {
+		buffer.flip();
+		crc.update(buffer.array(), 0, buffer.limit());
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
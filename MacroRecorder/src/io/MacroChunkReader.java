@@ -0,0 +1,258 @@
+/**
+ * 
+ */
+package io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import macros.Macro;
+
+/**
+ * Reads a macro save file as a sequence of line-aligned chunks.
+ * Each chunk is memory-mapped and parsed into macros on the fork-join pool, a bounded number
+ * of chunks ahead of the caller, and chunks are handed out strictly in file order.
+ * Callers can therefore use the first macros of a file while later chunks are still being parsed.
+ * 
+ * @author ABM
+ *
+ */
+public class MacroChunkReader implements Iterator<MacroLoadChunk>, Closeable {
+	
+	/** Target size of a chunk in bytes, chunks are extended to the end of their last line */
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+	/** Size of the buffer used to look for the end of a line */
+	private static final int SCAN_BUFFER_SIZE = 8192;
+	/** Message for a line without a comma between the name and the inputs */
+	private static final String MISSING_INPUTS = "Missing macro inputs.";
+	/** File being read */
+	private final FileChannel channel;
+	/** Size of the file in bytes */
+	private final long size;
+	/** Target size of a chunk in bytes */
+	private final int chunkSize;
+	/** Largest number of chunks being parsed ahead of the caller */
+	private final int window;
+	/** Pool chunks are parsed on */
+	private final ForkJoinPool pool;
+	/** Chunks being parsed, in file order */
+	private final ArrayDeque<ForkJoinTask<MacroLoadChunk>> pending = new ArrayDeque<>();
+	/** Buffer used to look for the end of a line */
+	private final ByteBuffer scanBuffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+	/** Byte offset of the next chunk to schedule */
+	private long nextOffset;
+	/** Line number of the first line of the next chunk handed out */
+	private int nextLine = 1;
+	
+	/**
+	 * Opens a macro save file with the default chunk size
+	 * @param f file to read
+	 * @throws IOException if the file cannot be opened
+	 */
+	public MacroChunkReader(File f) throws IOException {
+		this(f, DEFAULT_CHUNK_SIZE);
+	}
+	
+	/**
+	 * Opens a macro save file
+	 * @param f file to read
+	 * @param chunkSize target size of a chunk in bytes
+	 * @throws IOException if the file cannot be opened
+	 * @throws IllegalArgumentException if chunkSize is not positive
+	 */
+	public MacroChunkReader(File f, int chunkSize) throws IOException {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Invalid chunk size.");
+		}
+		this.channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		this.size = channel.size();
+		this.chunkSize = chunkSize;
+		this.pool = ForkJoinPool.commonPool();
+		this.window = 2 * Math.max(1, pool.getParallelism());
+	}
+	
+	/**
+	 * Gets the size of the file being read
+	 * @return the size in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+	
+	/**
+	 * Tells if there are chunks left to read
+	 * @return true if next will return another chunk
+	 */
+	@Override
+	public boolean hasNext() {
+		return !pending.isEmpty() || nextOffset < size;
+	}
+	
+	/**
+	 * Gets the next chunk of the file, waiting for it to finish parsing if needed
+	 * @return the next chunk in file order
+	 * @throws NoSuchElementException if every chunk has been read
+	 * @throws IllegalArgumentException if the file cannot be read
+	 */
+	@Override
+	public MacroLoadChunk next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		schedule();
+		MacroLoadChunk chunk = pending.poll().join().withFirstLine(nextLine);
+		nextLine += chunk.getLineCount();
+		schedule();
+		return chunk;
+	}
+	
+	/**
+	 * Closes the file, chunks still being parsed are abandoned
+	 * @throws IOException if the file cannot be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		for (ForkJoinTask<MacroLoadChunk> task : pending) {
+			task.cancel(false);
+		}
+		pending.clear();
+		channel.close();
+	}
+	
+	/**
+	 * Starts parsing chunks until the window of chunks ahead of the caller is full
+	 */
+	private void schedule() {
+		try {
+			while (pending.size() < window && nextOffset < size) {
+				long start = nextOffset;
+				long end = findLineEnd(Math.min(size, start + chunkSize));
+				MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+				pending.add(pool.submit(() -> parseChunk(region, start, end)));
+				nextOffset = end;
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to load file.");
+		}
+	}
+	
+	/**
+	 * Finds the end of the line a byte offset falls on
+	 * @param offset offset to start looking from
+	 * @return offset just past the next newline at or after offset, or the file size if there is none
+	 * @throws IOException if the file cannot be read
+	 */
+	private long findLineEnd(long offset) throws IOException {
+		long position = offset;
+		while (position < size) {
+			scanBuffer.clear();
+			int read = channel.read(scanBuffer, position);
+			if (read <= 0) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				if (scanBuffer.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+		return size;
+	}
+	
+	/**
+	 * Parses every line of a chunk into a macro.
+	 * Errors are numbered from line 1 of the chunk and renumbered once the chunk's place in the file is known.
+	 * @param region the mapped bytes of the chunk
+	 * @param start byte offset of the chunk
+	 * @param end byte offset just past the chunk
+	 * @return the parsed chunk
+	 */
+	private static MacroLoadChunk parseChunk(MappedByteBuffer region, long start, long end) {
+		String text = StandardCharsets.UTF_8.decode(region).toString();
+		ArrayList<Macro> macros = new ArrayList<>();
+		int[] macroLines = new int[16];
+		List<MacroLoadError> errors = new ArrayList<>();
+		int lineCount = 0;
+		int lineStart = 0;
+		while (lineStart < text.length()) {
+			int lineEnd = text.indexOf('\n', lineStart);
+			if (lineEnd < 0) {
+				lineEnd = text.length();
+			}
+			lineCount++;
+			try {
+				Macro macro = parseLine(text, lineStart, lineEnd);
+				if (macro != null) {
+					if (macros.size() == macroLines.length) {
+						macroLines = Arrays.copyOf(macroLines, macroLines.length * 2);
+					}
+					macroLines[macros.size()] = lineCount;
+					macros.add(macro);
+				}
+			} catch (IllegalArgumentException e) {
+				errors.add(new MacroLoadError(lineCount, e.getMessage()));
+			}
+			lineStart = lineEnd + 1;
+		}
+		return new MacroLoadChunk(start, end, 1, lineCount, macros, Arrays.copyOf(macroLines, macros.size()), errors);
+	}
+	
+	/**
+	 * Parses a single NAME,INPUT line into a macro
+	 * @param text text holding the line
+	 * @param start index of the first character of the line
+	 * @param end index just past the last character of the line, excluding the newline
+	 * @return the macro on the line, or null if the line is blank
+	 * @throws IllegalArgumentException if the line does not hold a valid macro
+	 */
+	static Macro parseLine(String text, int start, int end) {
+		end = trimLine(text, start, end);
+		if (end == start) {
+			return null;
+		}
+		int comma = findComma(text, start, end);
+		return new Macro(text.substring(start, comma), text.substring(comma + 1, end));
+	}
+	
+	/**
+	 * Drops the carriage return a line saved on Windows ends with
+	 * @param text text holding the line
+	 * @param start index of the first character of the line
+	 * @param end index just past the last character of the line, excluding the newline
+	 * @return the end of the line without its carriage return
+	 */
+	static int trimLine(String text, int start, int end) {
+		return end > start && text.charAt(end - 1) == '\r' ? end - 1 : end;
+	}
+	
+	/**
+	 * Finds the comma between the name and the inputs of a line which is not blank
+	 * @param text text holding the line
+	 * @param start index of the first character of the line
+	 * @param end index just past the last character of the line, as given by trimLine
+	 * @return the index of the comma
+	 * @throws IllegalArgumentException if the line has no comma
+	 */
+	static int findComma(String text, int start, int end) {
+		int comma = text.indexOf(',', start);
+		if (comma < 0 || comma >= end) {
+			throw new IllegalArgumentException(MISSING_INPUTS);
+		}
+		return comma;
+	}
+}
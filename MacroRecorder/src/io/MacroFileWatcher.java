@@ -0,0 +1,358 @@
+package io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import macros.Macro;
+import macros.MacroLibrary;
+
+/**
+ * Keeps a library in step with the save file it was loaded from while other programs or people change the file.
+ * <p>
+ * A background thread watches the folder of the file with a WatchService. Editors often write a file in several
+ * steps, or replace it through a temporary file, so once the file is touched the thread waits until it has been
+ * left alone for the debounce delay before reading it. The new content is then compared with what the library
+ * last got from the file, by macro name and a hash of the macro string. Only the lines which are new or changed
+ * are parsed and validated, and only the macros which were added, changed or removed are swapped in the library,
+ * in place. Every other macro stays the same object, so a selection holding one keeps it, and replays in progress
+ * carry on with the programs they started with.
+ * </p>
+ * <p>
+ * A line which cannot be applied, being invalid, a duplicate name or closing a cycle of calls, leaves its macro as
+ * it was and is reported. A macro added, changed or removed in the library without going through the file is left
+ * that way until the file changes that macro. A binary macro library holds compiled programs rather than text, so its macros are
+ * compared by program.
+ * </p>
+ *
+ * @author ABM
+ *
+ */
+public class MacroFileWatcher implements Closeable {
+
+	/** Default time the file must be left alone before it is read, in milliseconds */
+	public static final long DEFAULT_DEBOUNCE_MILLIS = 250;
+	/** Offset basis of the FNV-1a hash of macro strings */
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	/** Prime of the FNV-1a hash of macro strings */
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/** File being watched */
+	private final File file;
+	/** Library kept in step with the file */
+	private final MacroLibrary library;
+	/** Told on the watching thread after every reload which changed the library or hit errors, may be null */
+	private final Consumer<MacroReloadResult> listener;
+	/** Time the file must be left alone before it is read, in milliseconds */
+	private final long debounceMillis;
+	/** Service watching the folder of the file */
+	private final WatchService watchService;
+	/** Thread waiting for changes */
+	private final Thread watching;
+	/** Hash of the macro string of every macro the library last got from the file by name, null for a line which failed */
+	private Map<String, Long> known;
+	/** Number of times the file was read again */
+	private int reloads;
+
+	/**
+	 * Starts watching the file a library was loaded from
+	 * @param f file the library was loaded from
+	 * @param library library to keep in step with the file
+	 * @param listener told on the watching thread after every reload which changed the library or hit errors,
+	 * null if nothing needs telling
+	 * @throws IllegalArgumentException with the message "Unable to watch file." If the folder of the file cannot be watched
+	 */
+	public MacroFileWatcher(File f, MacroLibrary library, Consumer<MacroReloadResult> listener) {
+		this(f, library, listener, DEFAULT_DEBOUNCE_MILLIS);
+	}
+
+	/**
+	 * Starts watching the file a library was loaded from
+	 * @param f file the library was loaded from
+	 * @param library library to keep in step with the file
+	 * @param listener told on the watching thread after every reload which changed the library or hit errors,
+	 * null if nothing needs telling
+	 * @param debounceMillis time the file must be left alone before it is read, in milliseconds
+	 * @throws IllegalArgumentException with the message "Unable to watch file." If the folder of the file cannot be watched
+	 */
+	public MacroFileWatcher(File f, MacroLibrary library, Consumer<MacroReloadResult> listener, long debounceMillis) {
+		if (f == null || library == null || debounceMillis < 0) {
+			throw new IllegalArgumentException("Unable to watch file.");
+		}
+		this.file = f.getAbsoluteFile();
+		this.library = library;
+		this.listener = listener;
+		this.debounceMillis = debounceMillis;
+		this.known = new HashMap<>();
+		boolean binary = MacroBinaryReader.isMacroLibraryFile(file);
+		for (Macro macro : library.snapshot()) {
+			// The macro strings of a binary library are not kept, and rebuilding them all would cost more than a reload
+			known.put(macro.getMacroName(), binary ? 0 : hash(macro.getMacroString()));
+		}
+		try {
+			this.watchService = FileSystems.getDefault().newWatchService();
+			file.getParentFile().toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to watch file.");
+		}
+		watching = new Thread(this::watch, "macro-file-watcher");
+		watching.setDaemon(true);
+		watching.start();
+	}
+
+	/**
+	 * Gets the file being watched
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets the library kept in step with the file
+	 * @return the library
+	 */
+	public MacroLibrary getLibrary() {
+		return library;
+	}
+
+	/**
+	 * Gets the number of times the file was read again since watching started
+	 * @return the number of reloads
+	 */
+	public synchronized int getReloadCount() {
+		return reloads;
+	}
+
+	/**
+	 * Waits for the file to be touched, then for it to be left alone, and reloads it, until the watcher is closed
+	 */
+	private void watch() {
+		try {
+			while (true) {
+				if (!touched(watchService.take())) {
+					continue;
+				}
+				long quietSince = System.nanoTime();
+				long remaining = debounceMillis;
+				while (remaining > 0) {
+					WatchKey key = watchService.poll(remaining, TimeUnit.MILLISECONDS);
+					if (key != null && touched(key)) {
+						quietSince = System.nanoTime();
+					}
+					remaining = debounceMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - quietSince);
+				}
+				MacroReloadResult result;
+				try {
+					result = reload();
+				} catch (IllegalArgumentException e) {
+					// Gone or half written, the write finishing it will be seen too
+					continue;
+				}
+				if (listener != null && (!result.isEmpty() || !result.getErrors().isEmpty())) {
+					listener.accept(result);
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Closed
+		}
+	}
+
+	/**
+	 * Takes the events of a key and rearms it
+	 * @param key the key
+	 * @return true if one of the events may be about the watched file
+	 */
+	private boolean touched(WatchKey key) {
+		boolean touched = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW
+					|| file.getName().equals(String.valueOf(event.context()))) {
+				touched = true;
+			}
+		}
+		key.reset();
+		return touched;
+	}
+
+	/**
+	 * Reads the file now and applies its changes to the library, whether or not it was seen to change
+	 * @return what the reload did
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the file cannot be read
+	 */
+	public synchronized MacroReloadResult reload() {
+		Map<String, Long> current = new HashMap<>();
+		List<Macro> puts = new ArrayList<>();
+		List<Integer> putLines = new ArrayList<>();
+		List<MacroLoadError> errors = new ArrayList<>();
+		if (MacroBinaryReader.isMacroLibraryFile(file)) {
+			diffBinary(current, puts, putLines);
+		} else {
+			diffText(current, puts, putLines, errors);
+		}
+		List<String> removed = new ArrayList<>();
+		for (String name : known.keySet()) {
+			if (!current.containsKey(name) && library.remove(name) != null) {
+				removed.add(name);
+			}
+		}
+		List<String> added = new ArrayList<>();
+		List<String> changed = new ArrayList<>();
+		// A put checked against macros not swapped yet can close a cycle the whole file does not, so those are retried
+		while (!puts.isEmpty()) {
+			List<Macro> retries = new ArrayList<>();
+			List<Integer> retryLines = new ArrayList<>();
+			List<String> messages = new ArrayList<>();
+			for (int i = 0; i < puts.size(); i++) {
+				Macro macro = puts.get(i);
+				try {
+					(library.put(macro) == null ? added : changed).add(macro.getMacroName());
+				} catch (IllegalArgumentException e) {
+					retries.add(macro);
+					retryLines.add(putLines.get(i));
+					messages.add(e.getMessage());
+				}
+			}
+			if (retries.size() == puts.size()) {
+				for (int i = 0; i < retries.size(); i++) {
+					errors.add(new MacroLoadError(retryLines.get(i), messages.get(i)));
+					current.put(retries.get(i).getMacroName(), null);
+				}
+				break;
+			}
+			puts = retries;
+			putLines = retryLines;
+		}
+		errors.sort(Comparator.comparingInt(MacroLoadError::getLineNumber));
+		known = current;
+		reloads++;
+		return new MacroReloadResult(added, changed, removed, errors);
+	}
+
+	/**
+	 * Compares the lines of a text save file with the library, parsing only the lines which changed.
+	 * Lines are split the way MacroChunkReader.parseLine splits them, and only the inputs of a changed line are compiled.
+	 * @param current filled with the hash of every macro of the file by name, null for an invalid line
+	 * @param puts filled with the macros to add or swap in
+	 * @param putLines filled with the line of each of those macros
+	 * @param errors filled with the lines which are invalid
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the file cannot be read
+	 */
+	private void diffText(Map<String, Long> current, List<Macro> puts, List<Integer> putLines, List<MacroLoadError> errors) {
+		String text;
+		try {
+			text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to load file.");
+		}
+		int lineNumber = 0;
+		int lineStart = 0;
+		while (lineStart < text.length()) {
+			int lineEnd = text.indexOf('\n', lineStart);
+			if (lineEnd < 0) {
+				lineEnd = text.length();
+			}
+			lineNumber++;
+			int end = MacroChunkReader.trimLine(text, lineStart, lineEnd);
+			int start = lineStart;
+			lineStart = lineEnd + 1;
+			if (end == start) {
+				continue;
+			}
+			int comma;
+			try {
+				comma = MacroChunkReader.findComma(text, start, end);
+			} catch (IllegalArgumentException e) {
+				errors.add(new MacroLoadError(lineNumber, e.getMessage()));
+				continue;
+			}
+			String name = text.substring(start, comma);
+			String macroString = text.substring(comma + 1, end);
+			long hash = hash(macroString);
+			if (current.containsKey(name)) {
+				errors.add(new MacroLoadError(lineNumber, "A macro named " + name + " already exists."));
+				continue;
+			}
+			current.put(name, hash);
+			Long knownHash = known.get(name);
+			Macro existing = library.get(name);
+			if (knownHash != null && knownHash == hash || existing != null && existing.getMacroString().equals(macroString)) {
+				continue;
+			}
+			try {
+				puts.add(new Macro(name, macroString));
+				putLines.add(lineNumber);
+			} catch (IllegalArgumentException e) {
+				errors.add(new MacroLoadError(lineNumber, e.getMessage()));
+				// Left out of the hash check so the line is parsed again next time, but not removed from the library
+				current.put(name, null);
+			}
+		}
+	}
+
+	/**
+	 * Compares the macros of a binary macro library with the library by program
+	 * @param current filled with the name of every macro of the file
+	 * @param puts filled with the macros to add or swap in
+	 * @param putLines filled with the position of each of those macros in the file, from 1
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the file cannot be read
+	 */
+	private void diffBinary(Map<String, Long> current, List<Macro> puts, List<Integer> putLines) {
+		List<Macro> macros = MacroBinaryReader.readMacroLibraryFile(file);
+		Set<String> names = new HashSet<>();
+		for (int i = 0; i < macros.size(); i++) {
+			Macro macro = macros.get(i);
+			if (!names.add(macro.getMacroName())) {
+				continue;
+			}
+			current.put(macro.getMacroName(), 0L);
+			Macro existing = library.get(macro.getMacroName());
+			if (existing == null || !existing.getProgram().equals(macro.getProgram())) {
+				puts.add(macro);
+				putLines.add(i + 1);
+			}
+		}
+	}
+
+	/**
+	 * Hashes a macro string into 64 bits, so an unchanged line is told apart from a changed one without
+	 * comparing it to the macro in the library
+	 * @param s the macro string
+	 * @return the FNV-1a hash of its characters
+	 */
+	private static long hash(String s) {
+		long h = FNV_OFFSET;
+		for (int i = 0; i < s.length(); i++) {
+			h = (h ^ s.charAt(i)) * FNV_PRIME;
+		}
+		return h;
+	}
+
+	/**
+	 * Stops watching the file, the library is left as it is
+	 * @throws IOException if the watch service cannot be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+		watching.interrupt();
+	}
+}
@@ -0,0 +1,29 @@
+/**
+ * 
+ */
+package io;
+
+/**
+ * Receives the progress of a macro file being loaded or saved, and can stop it part way.
+ * Updates come from the thread doing the reading or writing, a few times per chunk of the file rather than per macro.
+ *
+ * @author ABM
+ *
+ */
+public interface MacroIoProgress {
+
+	/**
+	 * Reports how far a load or save has got
+	 * @param bytes bytes of the file read or written so far
+	 * @param totalBytes size of the whole file, -1 if it is not known yet
+	 * @param macros macros read or written so far
+	 * @param totalMacros number of macros in the whole file, -1 if it is not known yet
+	 */
+	void update(long bytes, long totalBytes, int macros, int totalMacros);
+
+	/**
+	 * Tells if the load or save should stop, checked between chunks of the file
+	 * @return true to stop with a CancellationException
+	 */
+	boolean isCancelRequested();
+}
@@ -0,0 +1,443 @@
+/**
+ *
+ */
+package io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import macros.Macro;
+import macros.MacroLibrary;
+import macros.MacroLibraryListener;
+
+/**
+ * Keeps a macro library in a save file whose changes are appended to a journal next to it, instead of
+ * rewriting the whole file on every save.
+ * <p>
+ * The save file is a snapshot in the usual NAME,INPUT format. The journal, named after it with
+ * JOURNAL_SUFFIX, holds one record per line for every change made since: <code>+NAME,INPUT</code> puts a
+ * macro, replacing any macro with its name in place, <code>-NAME</code> removes one and <code>!</code>
+ * removes every macro. Opening the journal loads the snapshot and replays the records on top of it.
+ * A last record without its newline was cut short by a crash and is dropped.
+ * </p>
+ * <p>
+ * Records are appended by a background thread. Every record waiting when it wakes up goes out in a single
+ * write followed by a single fsync, so saving a macro costs the same however big the library is, and changes
+ * made while a sync is in progress share the next one. Once the journal outgrows both the compaction threshold
+ * and the snapshot, the thread writes a fresh snapshot through a temporary file renamed over the old one and
+ * empties the journal. Records put and remove whole macros by name, so replaying a journal which a crash left
+ * behind after its snapshot was already replaced gives the same library.
+ * </p>
+ * <p>
+ * Once a write or fsync fails the thread stops, and every later change, sync and compaction fails with
+ * "Unable to save file." rather than queueing records which would never be written. Changes made to the library
+ * then still take effect in memory.
+ * </p>
+ *
+ * @author ABM
+ *
+ */
+public class MacroJournal implements MacroLibraryListener, Closeable {
+
+	/** Suffix added to the name of the save file to name its journal */
+	public static final String JOURNAL_SUFFIX = ".journal";
+	/** Journal size in bytes below which it is never compacted */
+	public static final long DEFAULT_COMPACT_BYTES = 1L << 20;
+	/** Start of a record putting a macro */
+	private static final char PUT = '+';
+	/** Start of a record removing a macro */
+	private static final char REMOVE = '-';
+	/** Record removing every macro */
+	private static final char CLEAR = '!';
+
+	/** Snapshot the journal applies to */
+	private final File file;
+	/** Journal of changes made since the snapshot */
+	private final File journalFile;
+	/** Library kept in the files */
+	private final MacroLibrary library;
+	/** Journal size in bytes below which it is never compacted */
+	private final long compactBytes;
+	/** Open journal, only written by the journal thread */
+	private final FileChannel channel;
+	/** Thread appending records and compacting */
+	private final Thread writer;
+	/** Guards every field below */
+	private final Object lock = new Object();
+	/** Encoded records not written yet */
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	/** Number of records appended so far */
+	private long appended;
+	/** Number of records written and synced to disk, or folded into a synced snapshot */
+	private long committed;
+	/** Size of the journal on disk, in bytes */
+	private long journalSize;
+	/** Size of the snapshot on disk, in bytes */
+	private long snapshotSize;
+	/** Set when compact asks the journal thread for a snapshot */
+	private boolean compactRequested;
+	/** Set once the journal is closed */
+	private boolean closed;
+	/** Set if writing failed, every later change and sync fails too */
+	private boolean failed;
+
+	/**
+	 * Opens the journaled library kept in a save file, creating it if it does not exist
+	 * @param f save file holding the snapshot
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the files cannot be read,
+	 * or with the line number and message of the first invalid line or record
+	 */
+	public MacroJournal(File f) {
+		this(f, DEFAULT_COMPACT_BYTES);
+	}
+
+	/**
+	 * Opens the journaled library kept in a save file, creating it if it does not exist
+	 * @param f save file holding the snapshot
+	 * @param compactBytes journal size in bytes below which it is never compacted
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the files cannot be read,
+	 * or with the line number and message of the first invalid line or record
+	 */
+	public MacroJournal(File f, long compactBytes) {
+		if (f == null) {
+			throw new IllegalArgumentException("Unable to load file.");
+		}
+		this.file = f;
+		this.journalFile = new File(f.getAbsoluteFile().getParentFile(), f.getName() + JOURNAL_SUFFIX);
+		this.compactBytes = compactBytes;
+		this.library = f.exists() ? MacroSaveReader.readMacroLibrary(f) : new MacroLibrary();
+		this.snapshotSize = f.length();
+		try {
+			this.channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			this.journalSize = replay();
+			// Drop a record cut short by a crash, so the next record starts on a line of its own
+			channel.truncate(journalSize);
+			channel.position(journalSize);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to load file.");
+		}
+		library.addListener(this);
+		writer = new Thread(this::write, "macro-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Gets the library kept in the files, every change made to it is journaled
+	 * @return the library
+	 */
+	public MacroLibrary getLibrary() {
+		return library;
+	}
+
+	/**
+	 * Gets the save file holding the snapshot
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets the size of the journal on disk
+	 * @return the size in bytes
+	 */
+	public long getJournalSize() {
+		synchronized (lock) {
+			return journalSize;
+		}
+	}
+
+	/**
+	 * Waits until every change made to the library so far is on disk
+	 * @throws IllegalArgumentException with the message "Unable to save file." If the journal could not be written
+	 */
+	public void sync() {
+		synchronized (lock) {
+			long target = appended;
+			awaitCommitted(target);
+		}
+	}
+
+	/**
+	 * Writes a fresh snapshot of the library and empties the journal, waiting until it is done
+	 * @throws IllegalArgumentException with the message "Unable to save file." If the snapshot could not be written
+	 */
+	public void compact() {
+		synchronized (lock) {
+			long target = appended;
+			compactRequested = true;
+			lock.notifyAll();
+			awaitCommitted(target);
+			while (compactRequested && !failed) {
+				waitForWriter();
+			}
+			if (failed) {
+				throw new IllegalArgumentException("Unable to save file.");
+			}
+		}
+	}
+
+	/**
+	 * Syncs every change, stops journaling the library and closes the journal
+	 * @throws IOException if the journal could not be written or closed
+	 */
+	@Override
+	public void close() throws IOException {
+		library.removeListener(this);
+		synchronized (lock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			lock.notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+		synchronized (lock) {
+			if (failed) {
+				throw new IOException("Unable to save file.");
+			}
+		}
+	}
+
+	/**
+	 * Journals a macro added to the library
+	 * @param index position of the new macro
+	 * @param macro the macro added
+	 */
+	@Override
+	public void macroAdded(int index, Macro macro) {
+		append(PUT + macro.toString());
+	}
+
+	/**
+	 * Journals a macro replacing another one
+	 * @param index position of the macro
+	 * @param oldMacro the macro replaced
+	 * @param newMacro the macro now at that position
+	 */
+	@Override
+	public void macroReplaced(int index, Macro oldMacro, Macro newMacro) {
+		append(PUT + newMacro.toString());
+	}
+
+	/**
+	 * Journals a macro removed from the library
+	 * @param index position the macro was at
+	 * @param macro the macro removed
+	 */
+	@Override
+	public void macroRemoved(int index, Macro macro) {
+		append(REMOVE + macro.getMacroName());
+	}
+
+	/**
+	 * Journals the library being cleared
+	 * @param oldSize number of macros the library held
+	 */
+	@Override
+	public void libraryCleared(int oldSize) {
+		append(String.valueOf(CLEAR));
+	}
+
+	/**
+	 * Queues a record for the journal thread
+	 * @param record the record, without its newline
+	 * @throws IllegalArgumentException with the message "Unable to save file." If the journal could not be written
+	 */
+	private void append(String record) {
+		byte[] bytes = (record + "\n").getBytes(StandardCharsets.UTF_8);
+		synchronized (lock) {
+			if (failed) {
+				throw new IllegalArgumentException("Unable to save file.");
+			}
+			pending.write(bytes, 0, bytes.length);
+			appended++;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until the journal thread has committed a number of records, holding the lock
+	 * @param target number of records to wait for
+	 * @throws IllegalArgumentException with the message "Unable to save file." If the journal could not be written
+	 */
+	private void awaitCommitted(long target) {
+		while (committed < target && !failed) {
+			waitForWriter();
+		}
+		if (failed) {
+			throw new IllegalArgumentException("Unable to save file.");
+		}
+	}
+
+	/**
+	 * Waits for the journal thread to make progress, holding the lock
+	 */
+	private void waitForWriter() {
+		try {
+			lock.wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalArgumentException("Unable to save file.");
+		}
+	}
+
+	/**
+	 * Appends waiting records in groups, each with a single fsync, and compacts when asked or once the journal grows
+	 * too large, until the journal is closed
+	 */
+	private void write() {
+		while (true) {
+			byte[] bytes;
+			long target;
+			boolean compactNow;
+			synchronized (lock) {
+				while (pending.size() == 0 && !compactRequested && !closed) {
+					waitForWriterQuietly();
+				}
+				if (pending.size() == 0 && !compactRequested && closed) {
+					return;
+				}
+				bytes = pending.toByteArray();
+				pending.reset();
+				target = appended;
+				compactNow = compactRequested || journalSize + bytes.length > Math.max(compactBytes, snapshotSize);
+			}
+			try {
+				if (compactNow) {
+					writeSnapshot();
+				} else {
+					ByteBuffer buffer = ByteBuffer.wrap(bytes);
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+					channel.force(false);
+					synchronized (lock) {
+						journalSize += bytes.length;
+						committed = target;
+						lock.notifyAll();
+					}
+				}
+			} catch (IOException | IllegalArgumentException e) {
+				synchronized (lock) {
+					failed = true;
+					compactRequested = false;
+					pending.reset();
+					lock.notifyAll();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Waits for records to append without being interruptible, since dropping them would lose changes
+	 */
+	private void waitForWriterQuietly() {
+		try {
+			lock.wait();
+		} catch (InterruptedException e) {
+			// Keep waiting until closed
+		}
+	}
+
+	/**
+	 * Writes the whole library to a fresh snapshot and empties the journal.
+	 * Changes made while the snapshot is written are kept for the emptied journal.
+	 * @throws IOException if the journal could not be emptied
+	 * @throws IllegalArgumentException if the snapshot could not be written
+	 */
+	private void writeSnapshot() throws IOException {
+		List<Macro> macros;
+		long target;
+		// The library lock keeps any change from landing between the snapshot and the records it covers
+		synchronized (library) {
+			macros = library.snapshot();
+			synchronized (lock) {
+				pending.reset();
+				target = appended;
+			}
+		}
+		// The snapshot is renamed into place and its directory synced before the journal it replaces is emptied
+		MacroSaveWriter.writeMacroListToFile(file, macros);
+		channel.truncate(0);
+		channel.position(0);
+		channel.force(false);
+		synchronized (lock) {
+			snapshotSize = file.length();
+			journalSize = 0;
+			committed = target;
+			compactRequested = false;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Replays the journal on top of the snapshot
+	 * @return length of the journal up to the end of its last whole record
+	 * @throws IOException if the journal cannot be read
+	 * @throws IllegalArgumentException with the line number and message of the first invalid record
+	 */
+	private long replay() throws IOException {
+		byte[] data = Files.readAllBytes(journalFile.toPath());
+		int start = 0;
+		int lineNumber = 1;
+		for (int end = 0; end < data.length; end++) {
+			if (data[end] != '\n') {
+				continue;
+			}
+			String record = new String(data, start, end - start, StandardCharsets.UTF_8);
+			try {
+				apply(record);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Journal " + new MacroLoadError(lineNumber, e.getMessage()));
+			}
+			start = end + 1;
+			lineNumber++;
+		}
+		return start;
+	}
+
+	/**
+	 * Applies a single record to the library
+	 * @param record the record, without its newline
+	 * @throws IllegalArgumentException if the record is invalid
+	 */
+	private void apply(String record) {
+		if (record.isEmpty()) {
+			throw new IllegalArgumentException("Empty record.");
+		}
+		switch (record.charAt(0)) {
+		case PUT:
+			Macro macro = MacroChunkReader.parseLine(record, 1, record.length());
+			if (macro == null) {
+				throw new IllegalArgumentException("Empty record.");
+			}
+			library.put(macro);
+			break;
+		case REMOVE:
+			library.remove(record.substring(1));
+			break;
+		case CLEAR:
+			library.clear();
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown record.");
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/**
+ * 
+ */
+package io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import macros.Macro;
+
+/**
+ * A run of whole lines of a macro save file, with the macros and errors found on them.
+ * Chunks are produced in file order by a MacroChunkReader.
+ * 
+ * @author ABM
+ *
+ */
+public class MacroLoadChunk {
+	
+	/** Byte offset of the first line of the chunk */
+	private final long startOffset;
+	/** Byte offset just past the last line of the chunk */
+	private final long endOffset;
+	/** Line number of the first line of the chunk, starting from 1 */
+	private final int firstLine;
+	/** Number of lines in the chunk */
+	private final int lineCount;
+	/** Macros found in the chunk, in file order */
+	private final List<Macro> macros;
+	/** Line number of each macro */
+	private final int[] macroLines;
+	/** Errors found in the chunk, in file order */
+	private final List<MacroLoadError> errors;
+	
+	/**
+	 * Constructs a chunk
+	 * @param startOffset byte offset of the first line of the chunk
+	 * @param endOffset byte offset just past the last line of the chunk
+	 * @param firstLine line number of the first line of the chunk
+	 * @param lineCount number of lines in the chunk
+	 * @param macros macros found in the chunk
+	 * @param macroLines line number of each macro
+	 * @param errors errors found in the chunk
+	 */
+	MacroLoadChunk(long startOffset, long endOffset, int firstLine, int lineCount, List<Macro> macros, int[] macroLines,
+			List<MacroLoadError> errors) {
+		this.startOffset = startOffset;
+		this.endOffset = endOffset;
+		this.firstLine = firstLine;
+		this.lineCount = lineCount;
+		this.macros = Collections.unmodifiableList(macros);
+		this.macroLines = macroLines;
+		this.errors = Collections.unmodifiableList(errors);
+	}
+	
+	/**
+	 * Creates a copy of the chunk whose lines are numbered from a different first line
+	 * @param newFirstLine line number of the first line of the chunk
+	 * @return the renumbered chunk
+	 */
+	MacroLoadChunk withFirstLine(int newFirstLine) {
+		List<MacroLoadError> renumbered = new ArrayList<>(errors.size());
+		for (MacroLoadError e : errors) {
+			renumbered.add(new MacroLoadError(e.getLineNumber() - firstLine + newFirstLine, e.getMessage()));
+		}
+		int[] lines = new int[macroLines.length];
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = macroLines[i] - firstLine + newFirstLine;
+		}
+		return new MacroLoadChunk(startOffset, endOffset, newFirstLine, lineCount, macros, lines, renumbered);
+	}
+	
+	/**
+	 * Gets the byte offset of the first line of the chunk
+	 * @return the start offset
+	 */
+	public long getStartOffset() {
+		return startOffset;
+	}
+	
+	/**
+	 * Gets the byte offset just past the last line of the chunk
+	 * @return the end offset
+	 */
+	public long getEndOffset() {
+		return endOffset;
+	}
+	
+	/**
+	 * Gets the line number of the first line of the chunk
+	 * @return the first line number, starting from 1
+	 */
+	public int getFirstLine() {
+		return firstLine;
+	}
+	
+	/**
+	 * Gets the number of lines in the chunk
+	 * @return the line count
+	 */
+	public int getLineCount() {
+		return lineCount;
+	}
+	
+	/**
+	 * Gets the macros found in the chunk
+	 * @return unmodifiable list of macros in file order
+	 */
+	public List<Macro> getMacros() {
+		return macros;
+	}
+	
+	/**
+	 * Gets the line a macro of the chunk was found on
+	 * @param index index of the macro in getMacros
+	 * @return the line number, starting from 1
+	 */
+	public int getMacroLine(int index) {
+		return macroLines[index];
+	}
+	
+	/**
+	 * Gets the errors found in the chunk
+	 * @return unmodifiable list of errors in file order
+	 */
+	public List<MacroLoadError> getErrors() {
+		return errors;
+	}
+}
@@ -0,0 +1,53 @@
+/**
+ * 
+ */
+package io;
+
+/**
+ * A line of a macro save file which could not be turned into a macro.
+ * 
+ * @author ABM
+ *
+ */
+public class MacroLoadError {
+	
+	/** Line of the file the error is on, starting from 1 */
+	private final int lineNumber;
+	/** Why the line could not be loaded */
+	private final String message;
+	
+	/**
+	 * Constructs a load error
+	 * @param lineNumber line of the file the error is on, starting from 1
+	 * @param message why the line could not be loaded
+	 */
+	public MacroLoadError(int lineNumber, String message) {
+		this.lineNumber = lineNumber;
+		this.message = message;
+	}
+	
+	/**
+	 * Gets the line the error is on
+	 * @return the line number, starting from 1
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+	
+	/**
+	 * Gets why the line could not be loaded
+	 * @return the error message
+	 */
+	public String getMessage() {
+		return message;
+	}
+	
+	/**
+	 * Gets the string representation of the error
+	 * @return the line number followed by the message
+	 */
+	@Override
+	public String toString() {
+		return "Line " + lineNumber + ": " + message;
+	}
+}
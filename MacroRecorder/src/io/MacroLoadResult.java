@@ -0,0 +1,59 @@
+/**
+ * 
+ */
+package io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import macros.Macro;
+
+/**
+ * Everything loaded from a macro save file: the macros of every valid line
+ * and an error for every invalid one.
+ * 
+ * @author ABM
+ *
+ */
+public class MacroLoadResult {
+	
+	/** Macros loaded, in file order */
+	private final ArrayList<Macro> macros;
+	/** Errors found, in file order */
+	private final List<MacroLoadError> errors;
+	
+	/**
+	 * Constructs a load result
+	 * @param macros macros loaded, in file order
+	 * @param errors errors found, in file order
+	 */
+	MacroLoadResult(ArrayList<Macro> macros, List<MacroLoadError> errors) {
+		this.macros = macros;
+		this.errors = Collections.unmodifiableList(errors);
+	}
+	
+	/**
+	 * Gets the macros loaded from every valid line
+	 * @return the macros in file order
+	 */
+	public ArrayList<Macro> getMacros() {
+		return macros;
+	}
+	
+	/**
+	 * Gets the errors found on invalid lines
+	 * @return unmodifiable list of errors in file order
+	 */
+	public List<MacroLoadError> getErrors() {
+		return errors;
+	}
+	
+	/**
+	 * Tells if every line of the file was loaded
+	 * @return true if there were no errors
+	 */
+	public boolean isValid() {
+		return errors.isEmpty();
+	}
+}
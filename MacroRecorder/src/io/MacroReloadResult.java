@@ -0,0 +1,86 @@
+package io;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What reloading a changed macro file did to its library: the names of the macros added, changed and removed,
+ * and an error for every line which could not be applied.
+ *
+ * @author ABM
+ *
+ */
+public class MacroReloadResult {
+
+	/** Names of the macros added, in file order */
+	private final List<String> added;
+	/** Names of the macros whose content changed, in file order */
+	private final List<String> changed;
+	/** Names of the macros no longer in the file */
+	private final List<String> removed;
+	/** Lines which could not be applied, in line order */
+	private final List<MacroLoadError> errors;
+
+	/**
+	 * Constructs a reload result
+	 * @param added names of the macros added
+	 * @param changed names of the macros whose content changed
+	 * @param removed names of the macros no longer in the file
+	 * @param errors lines which could not be applied
+	 */
+	MacroReloadResult(List<String> added, List<String> changed, List<String> removed, List<MacroLoadError> errors) {
+		this.added = Collections.unmodifiableList(added);
+		this.changed = Collections.unmodifiableList(changed);
+		this.removed = Collections.unmodifiableList(removed);
+		this.errors = Collections.unmodifiableList(errors);
+	}
+
+	/**
+	 * Gets the macros added to the library
+	 * @return unmodifiable list of names in file order
+	 */
+	public List<String> getAdded() {
+		return added;
+	}
+
+	/**
+	 * Gets the macros replaced in the library because their content changed
+	 * @return unmodifiable list of names in file order
+	 */
+	public List<String> getChanged() {
+		return changed;
+	}
+
+	/**
+	 * Gets the macros removed from the library because they are no longer in the file
+	 * @return unmodifiable list of names
+	 */
+	public List<String> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * Gets the lines which could not be applied, whose macros were left as they were
+	 * @return unmodifiable list of errors in line order
+	 */
+	public List<MacroLoadError> getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Tells if the reload left the library as it was
+	 * @return true if no macro was added, changed or removed
+	 */
+	public boolean isEmpty() {
+		return added.isEmpty() && changed.isEmpty() && removed.isEmpty();
+	}
+
+	/**
+	 * Gets the string representation of the result
+	 * @return the number of macros added, changed and removed
+	 */
+	@Override
+	public String toString() {
+		return added.size() + " added, " + changed.size() + " changed, " + removed.size() + " removed";
+	}
+}
@@ -4,12 +4,20 @@
 package io;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import macros.Macro;
+import macros.MacroLibrary;
 
 /**
  * Reads a list of macros from a file.
@@ -29,38 +37,149 @@ public class MacroSaveReader {
 	 * (Ex: the macro to press a, then wait 50ms then press a again is a .txt with a$50$a)
 	 * @param f file to read
 	 * @return String containing the macro to be interpreted
-	 * @throws IllegalArgumentException with the message "Unable to load file." If the file cannot be loaded because it doesn’t exist
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the file cannot be loaded because it doesn’t exist,
+	 * or with the line number and message of the first invalid line if any line does not hold a valid macro
 	 */
 	public static ArrayList<Macro> readMacroSaveFile(File f) {
-		
-		if (f == null) {
-			throw new IllegalArgumentException("Unable to load file.");
+		MacroLoadResult result = loadMacroSaveFile(f);
+		if (!result.isValid()) {
+			throw new IllegalArgumentException(describeErrors(result.getErrors()));
+		}
+		return result.getMacros();
+	}
+	
+	/**
+	 * Describes the errors of a file in a single message
+	 * @param errors the errors in file order, at least one
+	 * @return the first error followed by how many more there are
+	 */
+	public static String describeErrors(List<MacroLoadError> errors) {
+		String message = errors.get(0).toString();
+		if (errors.size() > 1) {
+			message += " (" + (errors.size() - 1) + " more invalid lines)";
 		}
-		
+		return message;
+	}
+	
+	/**
+	 * Loads every valid line of a macro save file, collecting an error for each invalid line instead
+	 * of stopping at the first one. Lines are parsed in parallel chunks and the macros are kept in file order.
+	 * @param f file to read
+	 * @return the macros and errors of the file
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the file cannot be read
+	 */
+	public static MacroLoadResult loadMacroSaveFile(File f) {
 		ArrayList<Macro> mList = new ArrayList<>();
-		try {
-			Scanner fileReader = new Scanner(new FileInputStream(f));
-			Scanner lineScanner;
-			
-			while (fileReader.hasNextLine()) {
-				lineScanner = new Scanner(fileReader.nextLine());
-				lineScanner.useDelimiter(",");
-				try {
-					String mName = lineScanner.next();
-					String mInputs = lineScanner.next();
-					Macro macro = new Macro(mName, mInputs);
-					mList.add(macro);
-				} catch (IllegalArgumentException e) {
-					lineScanner.close();
-					fileReader.close();
-					throw new IllegalArgumentException(e.getMessage());
+		List<MacroLoadError> errors = new ArrayList<>();
+		try (MacroChunkReader reader = openMacroSaveFile(f)) {
+			while (reader.hasNext()) {
+				MacroLoadChunk chunk = reader.next();
+				mList.addAll(chunk.getMacros());
+				errors.addAll(chunk.getErrors());
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to load file.");
+		}
+		return new MacroLoadResult(mList, errors);
+	}
+	
+	/**
+	 * Receives a File with the file to read a macro library from.
+	 * Every line must hold a valid macro, and no two macros may share a name.
+	 * @param f file to read
+	 * @return library holding the macros of the file in file order
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the file cannot be read,
+	 * or with the line number and message of the first invalid line or duplicate name
+	 */
+	public static MacroLibrary readMacroLibrary(File f) {
+		MacroLibrary library = new MacroLibrary();
+		List<MacroLoadError> errors = loadMacroLibrary(f, library, null);
+		if (!errors.isEmpty()) {
+			throw new IllegalArgumentException(describeErrors(errors));
+		}
+		return library;
+	}
+	
+	/**
+	 * Adds the macros of a macro save file to a library chunk by chunk as they are parsed, so listeners of the
+	 * library see the first macros while the rest of the file is still being read. Invalid lines and duplicate
+	 * names are collected as errors and the valid macros are still added.
+	 * @param f file to read
+	 * @param library library the macros are added to
+	 * @param progress told after every chunk how far the load has got, null if nothing needs telling
+	 * @return the errors of the file in line order, empty if every line held a macro with a new name
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the file cannot be read
+	 * @throws CancellationException if progress is cancelled, the macros of the chunks read so far stay in the library
+	 */
+	public static List<MacroLoadError> loadMacroLibrary(File f, MacroLibrary library, MacroIoProgress progress) {
+		List<MacroLoadError> errors = new ArrayList<>();
+		int loaded = 0;
+		try (MacroChunkReader reader = openMacroSaveFile(f)) {
+			while (reader.hasNext()) {
+				if (progress != null && progress.isCancelRequested()) {
+					throw new CancellationException("Loading " + f.getName() + " was cancelled.");
+				}
+				MacroLoadChunk chunk = reader.next();
+				errors.addAll(chunk.getErrors());
+				List<Macro> macros = chunk.getMacros();
+				for (int i = 0; i < macros.size(); i++) {
+					try {
+						library.add(macros.get(i));
+						loaded++;
+					} catch (IllegalArgumentException e) {
+						errors.add(new MacroLoadError(chunk.getMacroLine(i), e.getMessage()));
+					}
+				}
+				if (progress != null) {
+					progress.update(chunk.getEndOffset(), reader.getSize(), loaded, -1);
 				}
 			}
-			fileReader.close();
-		} catch (FileNotFoundException e) {
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to load file.");
+		}
+		errors.sort(Comparator.comparingInt(MacroLoadError::getLineNumber));
+		return errors;
+	}
+	
+	/**
+	 * Streams the macros of a macro save file in file order while later parts of the file are still being parsed.
+	 * The stream must be closed to release the file.
+	 * @param f file to read
+	 * @param errorHandler receives the error of every invalid line as it is reached
+	 * @return stream of the macros on every valid line
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the file cannot be opened
+	 */
+	public static Stream<Macro> streamMacroSaveFile(File f, Consumer<MacroLoadError> errorHandler) {
+		MacroChunkReader reader = openMacroSaveFile(f);
+		Spliterator<MacroLoadChunk> chunks = Spliterators.spliteratorUnknownSize(reader, Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(chunks, false)
+				.onClose(() -> {
+					try {
+						reader.close();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				})
+				.flatMap(chunk -> {
+					chunk.getErrors().forEach(errorHandler);
+					return chunk.getMacros().stream();
+				});
+	}
+	
+	/**
+	 * Opens a macro save file for reading chunk by chunk
+	 * @param f file to read
+	 * @return reader handing out the chunks of the file in order
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the file cannot be opened
+	 */
+	public static MacroChunkReader openMacroSaveFile(File f) {
+		if (f == null) {
+			throw new IllegalArgumentException("Unable to load file.");
+		}
+		try {
+			return new MacroChunkReader(f);
+		} catch (IOException e) {
 			throw new IllegalArgumentException("Unable to load file.");
 		}
-		
-		return mList;
 	}
 }
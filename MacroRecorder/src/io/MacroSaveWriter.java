@@ -3,39 +3,146 @@
  */
 package io;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 
 import macros.Macro;
+import macros.MacroLibrary;
 
 /**
  * Writes a list of macros to a file.
+ * The macros are written to a temporary file of their own next to it, synced to disk, and then renamed over the file,
+ * so a crash while saving leaves either the old file or the new one but never a truncated one, and saves of the same
+ * file running at once never write to the same temporary file.
  *  
  * @author ABM
  *
  */
 public class MacroSaveWriter {
 	
+	/** Suffix of the temporary files saves are written to before they replace the file */
+	public static final String TEMP_SUFFIX = ".tmp";
+	/** Number of macros written between two progress updates */
+	private static final int SAVE_BATCH_SIZE = 4096;
+	
 	/**
 	 * Receives a File with the file name to write to and an ArrayList of Macro object to save to a file. 
 	 * @param f file to write to
 	 * @param macroList ArrayList of Macro objects being written to the file f
 	 * @throws IllegalArgumentException with the message "Unable to save file." If there are any errors or exceptions,
 	 */
-	public static void writeMacroListToFile(File f, ArrayList<Macro> macroList) {
+	public static void writeMacroListToFile(File f, List<Macro> macroList) {
+		writeMacroListToFile(f, macroList, null);
+	}
+	
+	/**
+	 * Receives a File with the file name to write to and a list of Macro objects to save to it, reporting progress
+	 * every SAVE_BATCH_SIZE macros. A cancelled save deletes what it wrote and leaves the file as it was.
+	 * @param f file to write to
+	 * @param macroList list of Macro objects being written to the file f
+	 * @param progress told how far the save has got, null if nothing needs telling
+	 * @throws IllegalArgumentException with the message "Unable to save file." If there are any errors or exceptions
+	 * @throws CancellationException if progress is cancelled before the file is replaced
+	 */
+	public static void writeMacroListToFile(File f, List<Macro> macroList, MacroIoProgress progress) {
+		if (f == null || macroList == null) {
+			throw new IllegalArgumentException("Unable to save file.");
+		}
+		File temp;
 		try {
-			PrintStream fileWriter = new PrintStream(f);
+			temp = Files.createTempFile(f.getAbsoluteFile().getParentFile().toPath(), f.getName(), TEMP_SUFFIX).toFile();
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to save file.");
+		}
+		boolean written = false;
+		boolean cancelled = false;
+		try (FileOutputStream out = new FileOutputStream(temp);
+				PrintStream fileWriter = new PrintStream(new BufferedOutputStream(out), false, StandardCharsets.UTF_8)) {
 			for (int i = 0; i < macroList.size(); i++) {
+				if (i % SAVE_BATCH_SIZE == 0 && progress != null) {
+					if (progress.isCancelRequested()) {
+						cancelled = true;
+						break;
+					}
+					// Only flushed bytes have reached the file
+					progress.update(out.getChannel().position(), -1, i, macroList.size());
+				}
 				fileWriter.println(macroList.get(i).toString());
 			}
-			
-
-			fileWriter.close();
+			fileWriter.flush();
+			if (!cancelled && !fileWriter.checkError()) {
+				out.getFD().sync();
+				written = true;
+				if (progress != null) {
+					progress.update(out.getChannel().position(), out.getChannel().position(), macroList.size(), macroList.size());
+				}
+			}
+		} catch (IOException e) {
+			// Reported below
 		}
-		catch (FileNotFoundException e) {
+		if (cancelled) {
+			temp.delete();
+			throw new CancellationException("Saving " + f.getName() + " was cancelled.");
+		}
+		if (!written || !replace(temp, f)) {
+			temp.delete();
 			throw new IllegalArgumentException("Unable to save file.");
 		}
 	}
+	
+	/**
+	 * Renames a fully written file over another one, atomically where the file system allows it,
+	 * and syncs the directory so the rename itself survives a crash
+	 * @param temp the new contents
+	 * @param f the file to replace
+	 * @return true if f now holds the new contents
+	 */
+	private static boolean replace(File temp, File f) {
+		try {
+			try {
+				Files.move(temp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		syncDirectory(f.getAbsoluteFile().getParentFile().toPath());
+		return true;
+	}
+
+	/**
+	 * Forces the entries of a directory to the disk, such as a file just renamed into it.
+	 * Platforms which cannot open a directory, such as Windows, keep renames durable by themselves, so failing to is ignored.
+	 * @param dir the directory
+	 */
+	static void syncDirectory(Path dir) {
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// Nothing more can be done where directories cannot be synced
+		}
+	}
+	
+	/**
+	 * Receives a File with the file name to write to and a MacroLibrary to save to it, in the order the macros were added.
+	 * @param f file to write to
+	 * @param library library being written to the file f
+	 * @throws IllegalArgumentException with the message "Unable to save file." If there are any errors or exceptions
+	 */
+	public static void writeMacroLibraryToFile(File f, MacroLibrary library) {
+		writeMacroListToFile(f, library.snapshot());
+	}
 }
@@ -0,0 +1,229 @@
+package macros;
+
+import java.awt.event.KeyEvent;
+
+/**
+ * Static lookup tables from macro string characters to the keys they press.
+ * Each entry packs a key code together with flags, so validating or compiling a character is a single
+ * array lookup and the tables are shared by every macro.
+ * <p>
+ * Characters typed as themselves are lowercase letters, digits, space and the unshifted punctuation
+ * keys <code>` - = [ ] ; ' , . /</code>. Characters following a backslash refer to special buttons:
+ * </p>
+ * <ul>
+ * <li>E Enter, W Windows, \ Backslash, T Tab, B Backspace, X Delete, I Insert, Q Escape</li>
+ * <li>U Up, D Down, L Left, R Right, H Home, N End, [ Page Up, ] Page Down</li>
+ * <li>1 to 9 F1 to F9, 0 F10, - F11, = F12</li>
+ * <li>C Ctrl and A Alt, which are held down while the next key is pressed, so \Cc is Ctrl+C</li>
+ * </ul>
+ *
+ * @author ABM
+ *
+ */
+public final class KeyTable {
+
+	/** Mask of the key code in a table entry */
+	public static final int KEY_MASK = 0xFFFF;
+	/** Flag of a key pressed while Shift is held */
+	public static final int SHIFT = 1 << 16;
+	/** Flag of a key pressed while Ctrl is held */
+	public static final int CTRL = 1 << 17;
+	/** Flag of a key pressed while Alt is held */
+	public static final int ALT = 1 << 18;
+	/** Mask of every modifier flag */
+	public static final int MODIFIER_MASK = SHIFT | CTRL | ALT;
+	/** Flag of a special character which holds its modifiers down for the next key instead of pressing a key */
+	public static final int MODIFIER_PREFIX = 1 << 24;
+	/** Flag of a key which is pressed without Shift even inside a shift run */
+	public static final int IGNORES_SHIFT = 1 << 25;
+	/** Character following a backslash which holds Ctrl for the next key */
+	static final char CTRL_CHAR = 'C';
+	/** Character following a backslash which holds Alt for the next key */
+	static final char ALT_CHAR = 'A';
+	/** Modifier flags in the order their keys are pressed, they are released in reverse */
+	static final int[] MODIFIER_ORDER = { CTRL, ALT, SHIFT };
+	/** Number of characters covered by the tables, everything outside ASCII is unsupported */
+	private static final int CHAR_COUNT = 128;
+	/** Number of key codes covered by the reverse tables */
+	private static final int KEY_COUNT = 1024;
+	/** Entries of characters typed as themselves, 0 if unsupported */
+	private static final int[] PLAIN = new int[CHAR_COUNT];
+	/** Entries of characters following a backslash, 0 if unsupported */
+	private static final int[] SPECIAL = new int[CHAR_COUNT];
+	/** Character typed as itself for each key code, 0 if none */
+	private static final char[] PLAIN_BY_KEY = new char[KEY_COUNT];
+	/** Character following a backslash for each key code, 0 if none */
+	private static final char[] SPECIAL_BY_KEY = new char[KEY_COUNT];
+
+	static {
+		for (char c = 'a'; c <= 'z'; c++) {
+			plain(c, KeyEvent.VK_A + (c - 'a'));
+		}
+		for (char c = '0'; c <= '9'; c++) {
+			plain(c, KeyEvent.VK_0 + (c - '0'));
+		}
+		PLAIN[' '] = KeyEvent.VK_SPACE | IGNORES_SHIFT;
+		PLAIN_BY_KEY[KeyEvent.VK_SPACE] = ' ';
+		plain('`', KeyEvent.VK_BACK_QUOTE);
+		plain('-', KeyEvent.VK_MINUS);
+		plain('=', KeyEvent.VK_EQUALS);
+		plain('[', KeyEvent.VK_OPEN_BRACKET);
+		plain(']', KeyEvent.VK_CLOSE_BRACKET);
+		plain(';', KeyEvent.VK_SEMICOLON);
+		plain('\'', KeyEvent.VK_QUOTE);
+		plain(',', KeyEvent.VK_COMMA);
+		plain('.', KeyEvent.VK_PERIOD);
+		plain('/', KeyEvent.VK_SLASH);
+
+		special('E', KeyEvent.VK_ENTER);
+		special('W', KeyEvent.VK_WINDOWS);
+		special('\\', KeyEvent.VK_BACK_SLASH);
+		special('T', KeyEvent.VK_TAB);
+		special('B', KeyEvent.VK_BACK_SPACE);
+		special('X', KeyEvent.VK_DELETE);
+		special('I', KeyEvent.VK_INSERT);
+		special('Q', KeyEvent.VK_ESCAPE);
+		special('U', KeyEvent.VK_UP);
+		special('D', KeyEvent.VK_DOWN);
+		special('L', KeyEvent.VK_LEFT);
+		special('R', KeyEvent.VK_RIGHT);
+		special('H', KeyEvent.VK_HOME);
+		special('N', KeyEvent.VK_END);
+		special('[', KeyEvent.VK_PAGE_UP);
+		special(']', KeyEvent.VK_PAGE_DOWN);
+		for (char c = '1'; c <= '9'; c++) {
+			special(c, KeyEvent.VK_F1 + (c - '1'));
+		}
+		special('0', KeyEvent.VK_F10);
+		special('-', KeyEvent.VK_F11);
+		special('=', KeyEvent.VK_F12);
+		SPECIAL[CTRL_CHAR] = MODIFIER_PREFIX | CTRL;
+		SPECIAL[ALT_CHAR] = MODIFIER_PREFIX | ALT;
+	}
+
+	/**
+	 * Not instantiable
+	 */
+	private KeyTable() {
+	}
+
+	/**
+	 * Adds a character typed as itself
+	 * @param c the character
+	 * @param keyCode the key it presses
+	 */
+	private static void plain(char c, int keyCode) {
+		PLAIN[c] = keyCode;
+		PLAIN_BY_KEY[keyCode] = c;
+	}
+
+	/**
+	 * Adds a character following a backslash
+	 * @param c the character
+	 * @param keyCode the key it presses
+	 */
+	private static void special(char c, int keyCode) {
+		SPECIAL[c] = keyCode;
+		SPECIAL_BY_KEY[keyCode] = c;
+	}
+
+	/**
+	 * Gets the entry of a character typed as itself
+	 * @param c the character
+	 * @return the entry, or 0 if the character is not supported
+	 */
+	public static int plainEntry(char c) {
+		return c < CHAR_COUNT ? PLAIN[c] : 0;
+	}
+
+	/**
+	 * Gets the entry of a character following a backslash
+	 * @param c the character
+	 * @return the entry, or 0 if the character does not refer to a special button
+	 */
+	public static int specialEntry(char c) {
+		return c < CHAR_COUNT ? SPECIAL[c] : 0;
+	}
+
+	/**
+	 * Gets the key code of an entry
+	 * @param entry the entry
+	 * @return the key code
+	 */
+	public static int keyCode(int entry) {
+		return entry & KEY_MASK;
+	}
+
+	/**
+	 * Gets the modifier flags of an entry or chord
+	 * @param entry the entry
+	 * @return any of SHIFT, CTRL and ALT
+	 */
+	public static int modifiers(int entry) {
+		return entry & MODIFIER_MASK;
+	}
+
+	/**
+	 * Gets the modifier flag of a modifier key
+	 * @param keyCode the key
+	 * @return SHIFT, CTRL or ALT, or 0 if the key is not a modifier
+	 */
+	public static int modifierFlag(int keyCode) {
+		switch (keyCode) {
+		case KeyEvent.VK_SHIFT:
+			return SHIFT;
+		case KeyEvent.VK_CONTROL:
+			return CTRL;
+		case KeyEvent.VK_ALT:
+			return ALT;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Gets the key held down by a modifier flag
+	 * @param flag SHIFT, CTRL or ALT
+	 * @return the key code of the modifier
+	 * @throws IllegalArgumentException if flag is not a single modifier flag
+	 */
+	public static int modifierKeyCode(int flag) {
+		switch (flag) {
+		case SHIFT:
+			return KeyEvent.VK_SHIFT;
+		case CTRL:
+			return KeyEvent.VK_CONTROL;
+		case ALT:
+			return KeyEvent.VK_ALT;
+		default:
+			throw new IllegalArgumentException("Invalid modifier.");
+		}
+	}
+
+	/**
+	 * Tells if a key can be typed by a macro, either as itself or following a backslash
+	 * @param keyCode the key
+	 * @return true if a character of the tables presses the key
+	 */
+	public static boolean isKey(int keyCode) {
+		return plainChar(keyCode) != 0 || specialChar(keyCode) != 0;
+	}
+
+	/**
+	 * Gets the character typed as itself which presses a key
+	 * @param keyCode the key
+	 * @return the character, or 0 if there is none
+	 */
+	public static char plainChar(int keyCode) {
+		return keyCode >= 0 && keyCode < KEY_COUNT ? PLAIN_BY_KEY[keyCode] : 0;
+	}
+
+	/**
+	 * Gets the character following a backslash which presses a key
+	 * @param keyCode the key
+	 * @return the character, or 0 if there is none
+	 */
+	public static char specialChar(int keyCode) {
+		return keyCode >= 0 && keyCode < KEY_COUNT ? SPECIAL_BY_KEY[keyCode] : 0;
+	}
+}
@@ -1,14 +1,23 @@
 package macros;
 
+import mkbd.kbd.KeySink;
 import mkbd.kbd.KeyboardPresser;
-import java.awt.event.KeyEvent;
-import java.util.HashMap;
-import java.util.Map;
+import replay.ReplayEngine;
+import replay.ReplayHandle;
+import replay.ReplayOptions;
+import replay.ReplayReport;
+import replay.ReplayScheduler;
+import replay.SystemReplayClock;
 
 /**
  * Defines an object which represents a macro
  * Has one field which is a string interpretation of the macro
- * Uses the fields from KeyboardPresser to iterate through the macro string and interpret each character as a keyboard input
+ * The macro string is compiled into a MacroProgram once, when the macro is constructed,
+ * and replays walk that program on a ReplayEngine, sending each keyboard input to a KeySink
+ * The characters a macro string may contain, including the backslashed special buttons and the
+ * \C and \A modifiers, are listed in KeyTable
+ * {n:body} repeats body n times and @name@ runs the macro called name. Both are replayed in place
+ * from the compiled program instead of being expanded into the string
  * 
  * @author ABM
  *
@@ -23,6 +32,14 @@ public class Macro {
 	public static final char SHIFT_DISABLER = '>';
     /** Character that marks the start of a special button sequence */
     public static final char SPECIAL_MARKER = '\\';
+	/** Character that starts a repeat block, followed by the repeat count */
+	public static final char REPEAT_START = '{';
+	/** Character that ends the repeat count of a repeat block */
+	public static final char REPEAT_COUNT_END = ':';
+	/** Character that ends a repeat block */
+	public static final char REPEAT_END = '}';
+	/** Character on both sides of the name of a called macro */
+	public static final char CALL_MARKER = '@';
 	/** ASCII value of 0 */
 	public static final char ASCII_0 = 48;
 	/** ASCII value of 9 */
@@ -35,8 +52,12 @@ public class Macro {
 	private String macroString;
 	/** Name of a particular macro */
 	private String macroName;
-    /** Maps characters to their corresponding special button */
-    private Map<Character, Integer> specialCharMap;
+	/** Compiled form of the macro string */
+	private MacroProgram program;
+	/** Optimized form of the program, replayed by interpretMacro, built on the first replay */
+	private volatile MacroProgram replayProgram;
+	/** Where the macros this macro calls are looked up, null if it has not been added to a library */
+	private volatile MacroResolver resolver;
 	
 	/**
 	 * Constructor for macro object
@@ -47,22 +68,41 @@ public class Macro {
 	 */
 	public Macro(String macroName, String macroString) {
 		setMacroName(macroName);
-        //Create the special character map
-        initSpecialCharMap();
         //Check that the macroString is valid
 		setMacroString(macroString);
 	}
-
-    /**
-     * Initializes the special character map
-     */
-    private void initSpecialCharMap() {
-        specialCharMap = new HashMap<Character, Integer>();
-        specialCharMap.put('W', KeyEvent.VK_WINDOWS);
-        specialCharMap.put('E', KeyEvent.VK_ENTER);
-		specialCharMap.put('\\', KeyEvent.VK_BACK_SLASH);
-    }
 	
+	/**
+	 * Constructor for a macro whose program has already been compiled and checked.
+	 * The program may be empty, as it is for a macro string such as "&lt;&gt;" which sends nothing.
+	 * @param macroName name of the macro
+	 * @param program compiled program of the macro
+	 * 
+	 * @throws IllegalArgumentException if macroName is null or empty, or program is null
+	 */
+	private Macro(String macroName, MacroProgram program) {
+		setMacroName(macroName);
+		if (program == null) {
+			throw new IllegalArgumentException("Empty Macro String.");
+		}
+		this.program = program;
+		checkSelfCall();
+	}
+	
+	/**
+	 * Creates a macro from a program which was compiled and checked before, such as one read back from a
+	 * binary macro library. The macro string is not needed to replay it, so it is only rebuilt from the
+	 * program the first time it is asked for.
+	 * 
+	 * @param macroName name of the macro
+	 * @param program compiled program of the macro
+	 * @return the macro
+	 * @throws IllegalArgumentException if macroName is null or empty, or program is null
+	 */
+	public static Macro fromProgram(String macroName, MacroProgram program) {
+		return new Macro(macroName, program);
+	}
+
 	/**
 	 * Sets the name of the macro
 	 * 
@@ -88,15 +128,54 @@ public class Macro {
 		if ("".equals(macroString) || macroString == null) {
 			throw new IllegalArgumentException("Empty Macro String.");
 		}
-		checkMacroString(macroString);
+		this.program = compileMacroString(macroString);
+		checkSelfCall();
 		this.macroString = macroString;
 	}
 	
+	/**
+	 * Checks that the macro does not call itself directly
+	 * 
+	 * @throws IllegalArgumentException if the program calls the macro's own name
+	 */
+	private void checkSelfCall() {
+		for (int i = 0; i < program.getCallCount(); i++) {
+			if (program.getCall(i).equals(macroName)) {
+				throw new IllegalArgumentException("Macro " + macroName + " calls itself.");
+			}
+		}
+	}
+	
+	/**
+	 * Swaps the macro string and program for the equal ones of a pool, so macros with the same body share them
+	 * 
+	 * @param pool the pool
+	 */
+	void share(MacroPool pool) {
+		if (macroString != null) {
+			macroString = pool.intern(macroString);
+		}
+		program = pool.intern(program);
+	}
+	
+	/**
+	 * Gives back the macro string and program shared through a pool, once the macro leaves the library using the pool
+	 * 
+	 * @param pool the pool
+	 */
+	void unshare(MacroPool pool) {
+		pool.release(macroString);
+		pool.release(program);
+	}
+	
 	/**
 	 * Gets the macroString
 	 * @return the macro string
 	 */
 	public String getMacroString() {
+		if (macroString == null) {
+			macroString = new MacroCompiler().decompile(program);
+		}
 		return macroString;
 	}
 	
@@ -108,13 +187,59 @@ public class Macro {
 		return macroName;
 	}
 	
+	/**
+	 * Gets the compiled program of the macro
+	 * @return the macro's program
+	 */
+	public MacroProgram getProgram() {
+		return program;
+	}
+	
+	
+	/**
+	 * Gets the optimized program which replays send, holding modifiers across neighbouring keys
+	 * and merging sleeps. It is built the first time it is asked for.
+	 * @return the program replayed for the macro
+	 */
+	public MacroProgram getReplayProgram() {
+		MacroProgram optimized = replayProgram;
+		if (optimized == null) {
+			optimized = new MacroOptimizer().optimize(program);
+			replayProgram = optimized;
+		}
+		return optimized;
+	}
+	
+	/**
+	 * Gets where the macros this macro calls are looked up
+	 * @return the resolver, or null if calls cannot be resolved
+	 */
+	public MacroResolver getResolver() {
+		return resolver;
+	}
+	
+	/**
+	 * Sets where the macros this macro calls are looked up, done by the library the macro is added to
+	 * @param resolver the resolver
+	 */
+	public void setResolver(MacroResolver resolver) {
+		this.resolver = resolver;
+	}
+	
+	/**
+	 * Gets how many fewer key events a replay sends thanks to optimizing the program
+	 * @return the number of key events saved by each replay
+	 */
+	public int getSavedEventCount() {
+		return program.getEventCount() - getReplayProgram().getEventCount();
+	}
 	
 	/**
 	 * Gets the string representation of the macro
 	 * @return the macroString
 	 */
 	public String toString() {
-		return macroName + "," + macroString;
+		return macroName + "," + getMacroString();
 	}
 
     /**
@@ -123,11 +248,9 @@ public class Macro {
      * @return whether or not the character is a valid macro character
      */
     public boolean isValidMacroChar(char c) {
-        return c <= ASCII_9 && c >= ASCII_0 
-            || c <= ASCII_LOWERCASE_Z && c >= ASCII_LOWERCASE_A 
+        return KeyTable.plainEntry(c) != 0
             || c == SHIFT_ENABLER 
-            || c == SHIFT_DISABLER
-            || c == ' ';
+            || c == SHIFT_DISABLER;
     }
 
     /**
@@ -136,116 +259,84 @@ public class Macro {
      * @return whether or not the character refers to a valid special button
      */
     public boolean isValidSpecialChar(char c) {
-        return specialCharMap.containsKey(c);
+        return KeyTable.specialEntry(c) != 0;
     }
 	
 	/**
-	 * Checks if a potential macroString is valid
+	 * Checks if a potential macroString is valid and compiles it into a program
 	 * 
 	 * @param macroString the macroString to check
+	 * @return the compiled program
 	 * 
 	 * @throws IllegalArgumentException if the macroString is invalid
 	 */
-	private void checkMacroString(String macroString) {
-        for (int i = 0; i < macroString.length(); i++) {
-            //See if this is a valid special button
-            if (macroString.charAt(i) == SPECIAL_MARKER) {
-                i++;
-                if (i >= macroString.length() || !isValidSpecialChar(macroString.charAt(i))) {
-                    throw new IllegalArgumentException("Character at position " + (i - 1) + " is an invalid special character.");
-                }
-                //Check if the character is valid or if it is a sleep command
-            } else if (!isValidMacroChar(macroString.charAt(i))) {
-                if (macroString.charAt(i) == '$') {
-                    //TODO remove tooLong if code is safe
-                    String sleepString = "";
-                    i++;
-                    Boolean tooLong = false;
-                    while (macroString.charAt(i) != '$' && !tooLong) {
-                        sleepString += macroString.charAt(i);
-                        i++;
-                        if (i >= 10000) {
-                            tooLong = true;
-                        }
-                    }
-                    try {
-                        Integer.parseInt(sleepString);
-                    } catch (NumberFormatException nfe) {
-                        throw new IllegalArgumentException("Sleep amount near character " + (i + 1) + " is invalid.");
-                    }
-                } else {
-                    throw new IllegalArgumentException("Character at position " + (i + 1) + " is unsupported.");
-                }
-            }
-        }
+	private MacroProgram compileMacroString(String macroString) {
+		return new MacroCompiler().compile(macroString);
 	}
 	
 	/**
 	 * Interprets the macro string, and executes the instructions within it
+	 * on the default replay scheduler, which takes turns with any other macro running
+	 * @return handle for tracking or cancelling the replay
 	 */
-	public void interpretMacro() {
-		MacroThread interpreter = new MacroThread();
-		interpreter.start();
+	public ReplayHandle interpretMacro() {
+		return interpretMacro(KeyboardPresser.robotSink());
 	}
 	
 	/**
-	 * Inner class which allows for concurrent running of macros with other
-	 * parts of program code via executing the macro on it's own thread
+	 * Interprets the macro string on the default replay scheduler, sending the instructions within it to a sink
+	 * @param sink where to send the key events of the macro
+	 * @return handle for tracking or cancelling the replay
 	 */
-	private class MacroThread extends Thread {
-		
-		/**
-		 * Runs the macro.
-		 */
-		public void run() {
-            KeyboardPresser kp = new KeyboardPresser();
-            boolean shiftEnabled = false;
-            for (int i = 0; i < macroString.length(); i++) {
-                    if(macroString.charAt(i) == '$') {
-                        //TODO remove tooLong if code is safe to run
-                        String sleepString = "";
-                        i++;	
-                        Boolean tooLong = false;
-                        while (macroString.charAt(i) != '$' && !tooLong) {
-                            sleepString += macroString.charAt(i);
-                            i++;
-                            if (i >= 10000) {
-                                tooLong = true;
-                            }
-                        }
-                        try {
-                            int sleepTime = Integer.parseInt(sleepString);
-                            kp.sleep(sleepTime);
-                        } catch (NumberFormatException nfe) {
-                            throw new IllegalArgumentException("Sleep amount near character " + (i + 1) + " is invalid.");
-                        }
-                } else if (macroString.charAt(i) == SPECIAL_MARKER && !shiftEnabled) {
-                    i++;
-                    kp.tapKey(specialCharMap.get(macroString.charAt(i)));
-                } else if (macroString.charAt(i) == SPECIAL_MARKER) {
-                    i++;
-                    kp.tapKeyShift(specialCharMap.get(macroString.charAt(i)));
-                } else if (macroString.charAt(i) == SHIFT_ENABLER) {
-                    shiftEnabled = true;
-                } else if (macroString.charAt(i) == SHIFT_DISABLER) {
-                    shiftEnabled = false;
-                } else if (macroString.charAt(i) == ' ') {
-                    kp.tapKey(KeyEvent.VK_SPACE);
-                } else if(!shiftEnabled && macroString.charAt(i) <= ASCII_LOWERCASE_Z && macroString.charAt(i) >= ASCII_LOWERCASE_A) {
-                    kp.tapKey((int) macroString.charAt(i) - ASCII_CAPITAL_DIFFERENCE);
-                } else if (!shiftEnabled && macroString.charAt(i) <= ASCII_9 && macroString.charAt(i) >= ASCII_0) {
-                    kp.tapKey(macroString.charAt(i));
-                } else if(shiftEnabled && macroString.charAt(i) <= ASCII_LOWERCASE_Z && macroString.charAt(i) >= ASCII_LOWERCASE_A) {
-                    kp.tapKeyShift((int) macroString.charAt(i) - ASCII_CAPITAL_DIFFERENCE);
-                } else if (shiftEnabled && macroString.charAt(i) <= ASCII_9 && macroString.charAt(i) >= ASCII_0) {
-                    kp.tapKeyShift(macroString.charAt(i));
-                } else {
-                    throw new IllegalArgumentException("Character at position " + (i + 1) + " is unsupported.");
-                }
-            }
-        }
+	public ReplayHandle interpretMacro(KeySink sink) {
+		return ReplayScheduler.getDefault().submit(this, sink);
 	}
-
+	
+	/**
+	 * Interprets the macro string on the default replay scheduler at a given speed
+	 * @param sink where to send the key events of the macro
+	 * @param options how fast to replay, such as scaled sleeps or max throughput
+	 * @return handle for tracking or cancelling the replay
+	 */
+	public ReplayHandle interpretMacro(KeySink sink, ReplayOptions options) {
+		return ReplayScheduler.getDefault().submit(this, sink, options);
+	}
+	
+	/**
+	 * Interprets the macro string on the default replay scheduler with a priority,
+	 * stopping macros of lower priority while its keys are due
+	 * @param sink where to send the key events of the macro
+	 * @param options how fast to replay, such as scaled sleeps or max throughput
+	 * @param priority priority of the replay, such as ReplayScheduler.URGENT_PRIORITY
+	 * @return handle for tracking or cancelling the replay
+	 */
+	public ReplayHandle interpretMacro(KeySink sink, ReplayOptions options, int priority) {
+		return ReplayScheduler.getDefault().submit(this, sink, options, priority);
+	}
+	
+	/**
+	 * Replays the macro on the calling thread.
+	 * Every event is scheduled against a deadline measured from the start of the replay,
+	 * and key events between two sleeps are handed to the sink as a single batch.
+	 * @param sink where to send the key events of the macro
+	 * @return the timing of the replay, including how late each event was sent
+	 * @throws InterruptedException if the thread is interrupted while waiting for an event to be due
+	 */
+	public ReplayReport replay(KeySink sink) throws InterruptedException {
+		return new ReplayEngine(sink).run(this);
+	}
+	
+	/**
+	 * Replays the macro on the calling thread at a given speed
+	 * @param sink where to send the key events of the macro
+	 * @param options how fast to replay, such as scaled sleeps or max throughput
+	 * @return the timing of the replay, including the rate events were sent at
+	 * @throws InterruptedException if the thread is interrupted while waiting for an event to be due
+	 */
+	public ReplayReport replay(KeySink sink, ReplayOptions options) throws InterruptedException {
+		return new ReplayEngine(sink, SystemReplayClock.INSTANCE, options).run(this);
+	}
+	
 	/**
 	 * Checks if two macros are equal by comparing their name
 	 */
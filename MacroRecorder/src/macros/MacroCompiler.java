@@ -0,0 +1,273 @@
+package macros;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Validates a macro string and compiles it into a MacroProgram in a single pass.
+ * Every character is resolved through the shared KeyTable.
+ *
+ * @author ABM
+ *
+ */
+final class MacroCompiler {
+
+	/** Starting capacity of the instruction buffer */
+	private static final int INITIAL_CAPACITY = 32;
+	/** Instructions emitted so far */
+	private int[] code;
+	/** Number of ints of code in use */
+	private int size;
+	/** Names of the macros called so far, in order of first call */
+	private List<String> calls;
+	/** Index of each called macro in calls */
+	private Map<String, Integer> callIndexes;
+
+	/**
+	 * Constructs a compiler
+	 */
+	MacroCompiler() {
+		// Empty
+	}
+
+	/**
+	 * Compiles a macro string into a program
+	 *
+	 * @param macroString the macro string to compile
+	 * @return the compiled program
+	 *
+	 * @throws IllegalArgumentException if the macroString is invalid
+	 */
+	MacroProgram compile(String macroString) {
+		code = new int[Math.max(INITIAL_CAPACITY, macroString.length() * MacroProgram.INSTRUCTION_WIDTH)];
+		size = 0;
+		calls = new ArrayList<>();
+		callIndexes = new HashMap<>();
+		boolean shiftEnabled = false;
+		int heldModifiers = 0;
+		int heldAt = 0;
+		int repeatDepth = 0;
+		int repeatStart = 0;
+		for (int i = 0; i < macroString.length(); i++) {
+			char c = macroString.charAt(i);
+			int entry;
+			if (c == Macro.SPECIAL_MARKER) {
+				i++;
+				entry = i < macroString.length() ? KeyTable.specialEntry(macroString.charAt(i)) : 0;
+				if (entry == 0) {
+					throw new IllegalArgumentException("Character at position " + (i - 1) + " is an invalid special character.");
+				}
+				if ((entry & KeyTable.MODIFIER_PREFIX) != 0) {
+					if (heldModifiers == 0) {
+						heldAt = i - 1;
+					}
+					heldModifiers |= KeyTable.modifiers(entry);
+					continue;
+				}
+			} else if (heldModifiers != 0 && (c == '$' || c == Macro.SHIFT_ENABLER || c == Macro.SHIFT_DISABLER
+					|| c == Macro.REPEAT_START || c == Macro.REPEAT_END || c == Macro.CALL_MARKER)) {
+				throw new IllegalArgumentException("Modifier at position " + (heldAt + 1) + " is not followed by a key.");
+			} else if (c == '$') {
+				int end = macroString.indexOf('$', i + 1);
+				if (end < 0) {
+					throw new IllegalArgumentException("Sleep amount near character " + (macroString.length() + 1) + " is invalid.");
+				}
+				int sleepTime;
+				try {
+					sleepTime = Integer.parseInt(macroString, i + 1, end, 10);
+				} catch (NumberFormatException nfe) {
+					sleepTime = -1;
+				}
+				if (sleepTime < 0) {
+					throw new IllegalArgumentException("Sleep amount near character " + (end + 1) + " is invalid.");
+				}
+				emit(MacroProgram.SLEEP, sleepTime);
+				i = end;
+				continue;
+			} else if (c == Macro.REPEAT_START) {
+				int end = macroString.indexOf(Macro.REPEAT_COUNT_END, i + 1);
+				int count;
+				try {
+					count = end < 0 ? -1 : Integer.parseInt(macroString, i + 1, end, 10);
+				} catch (NumberFormatException nfe) {
+					count = -1;
+				}
+				if (count < 1) {
+					throw new IllegalArgumentException("Repeat count near character " + (i + 1) + " is invalid.");
+				}
+				if (repeatDepth++ == 0) {
+					repeatStart = i + 1;
+				}
+				emit(MacroProgram.REPEAT, count);
+				i = end;
+				continue;
+			} else if (c == Macro.REPEAT_END) {
+				if (repeatDepth == 0) {
+					throw new IllegalArgumentException("Character at position " + (i + 1) + " ends no repeat.");
+				}
+				if (code[size - MacroProgram.INSTRUCTION_WIDTH] == MacroProgram.REPEAT) {
+					// An empty body only spins the replay for as many runs as it is repeated
+					throw new IllegalArgumentException("Repeat ending at position " + (i + 1) + " is empty.");
+				}
+				repeatDepth--;
+				emit(MacroProgram.END_REPEAT, 0);
+				continue;
+			} else if (c == Macro.CALL_MARKER) {
+				int end = macroString.indexOf(Macro.CALL_MARKER, i + 1);
+				if (end <= i + 1) {
+					throw new IllegalArgumentException("Macro call near character " + (i + 1) + " is invalid.");
+				}
+				emit(MacroProgram.CALL, callIndex(macroString.substring(i + 1, end)));
+				i = end;
+				continue;
+			} else if (c == Macro.SHIFT_ENABLER) {
+				shiftEnabled = true;
+				continue;
+			} else if (c == Macro.SHIFT_DISABLER) {
+				shiftEnabled = false;
+				continue;
+			} else {
+				entry = KeyTable.plainEntry(c);
+				if (entry == 0) {
+					throw new IllegalArgumentException("Character at position " + (i + 1) + " is unsupported.");
+				}
+			}
+			int modifiers = heldModifiers;
+			if (shiftEnabled && (entry & KeyTable.IGNORES_SHIFT) == 0) {
+				modifiers |= KeyTable.SHIFT;
+			}
+			emitKey(KeyTable.keyCode(entry), modifiers);
+			heldModifiers = 0;
+		}
+		if (heldModifiers != 0) {
+			throw new IllegalArgumentException("Modifier at position " + (heldAt + 1) + " is not followed by a key.");
+		}
+		if (repeatDepth != 0) {
+			throw new IllegalArgumentException("Repeat near character " + repeatStart + " is not closed.");
+		}
+		MacroProgram program = new MacroProgram(Arrays.copyOf(code, size), calls.toArray(new String[0]));
+		code = null;
+		calls = null;
+		callIndexes = null;
+		return program;
+	}
+
+	/**
+	 * Turns a program back into a macro string which compiles to the same program.
+	 * Consecutive shifted keys are written as a single shift run, and an empty program as an empty one.
+	 *
+	 * @param program the program to decompile
+	 * @return the macro string
+	 * @throws IllegalArgumentException if the program presses a key no macro string can express
+	 */
+	String decompile(MacroProgram program) {
+		StringBuilder sb = new StringBuilder(program.length() + 8);
+		boolean shiftEnabled = false;
+		for (int i = 0; i < program.length(); i++) {
+			int opcode = program.opcode(i);
+			int operand = program.operand(i);
+			if (opcode == MacroProgram.SLEEP) {
+				sb.append('$').append(operand).append('$');
+				continue;
+			}
+			if (opcode == MacroProgram.REPEAT) {
+				sb.append(Macro.REPEAT_START).append(operand).append(Macro.REPEAT_COUNT_END);
+				continue;
+			}
+			if (opcode == MacroProgram.END_REPEAT) {
+				sb.append(Macro.REPEAT_END);
+				continue;
+			}
+			if (opcode == MacroProgram.CALL) {
+				sb.append(Macro.CALL_MARKER).append(program.getCall(operand)).append(Macro.CALL_MARKER);
+				continue;
+			}
+			if (opcode == MacroProgram.PRESS || opcode == MacroProgram.RELEASE) {
+				throw new IllegalArgumentException("Held keys have no macro string.");
+			}
+			int key = KeyTable.keyCode(operand);
+			int modifiers = opcode == MacroProgram.CHORD ? KeyTable.modifiers(operand)
+					: opcode == MacroProgram.TAP_SHIFT ? KeyTable.SHIFT : 0;
+			boolean shifted = (modifiers & KeyTable.SHIFT) != 0;
+			char plain = KeyTable.plainChar(key);
+			boolean ignoresShift = plain != 0 && (KeyTable.plainEntry(plain) & KeyTable.IGNORES_SHIFT) != 0;
+			if (ignoresShift && shifted) {
+				throw new IllegalArgumentException("Key code " + key + " has no shifted macro character.");
+			}
+			if (shifted != shiftEnabled && !ignoresShift) {
+				sb.append(shifted ? Macro.SHIFT_ENABLER : Macro.SHIFT_DISABLER);
+				shiftEnabled = shifted;
+			}
+			if ((modifiers & KeyTable.CTRL) != 0) {
+				sb.append(Macro.SPECIAL_MARKER).append(KeyTable.CTRL_CHAR);
+			}
+			if ((modifiers & KeyTable.ALT) != 0) {
+				sb.append(Macro.SPECIAL_MARKER).append(KeyTable.ALT_CHAR);
+			}
+			if (plain != 0) {
+				sb.append(plain);
+			} else {
+				char special = KeyTable.specialChar(key);
+				if (special == 0) {
+					throw new IllegalArgumentException("Key code " + key + " has no macro character.");
+				}
+				sb.append(Macro.SPECIAL_MARKER).append(special);
+			}
+		}
+		if (sb.length() == 0) {
+			// An empty shift run stands for an empty program, since an empty macro string is not allowed
+			sb.append(Macro.SHIFT_ENABLER);
+			shiftEnabled = true;
+		}
+		if (shiftEnabled) {
+			sb.append(Macro.SHIFT_DISABLER);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Finds the index of a called macro in the call table, adding it on its first call
+	 * @param name name of the called macro
+	 * @return operand of the CALL instruction
+	 */
+	private int callIndex(String name) {
+		Integer index = callIndexes.get(name);
+		if (index == null) {
+			index = calls.size();
+			calls.add(name);
+			callIndexes.put(name, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Appends the instruction pressing a key with the given modifiers held
+	 * @param keyCode the key
+	 * @param modifiers KeyTable modifier flags held around the key
+	 */
+	private void emitKey(int keyCode, int modifiers) {
+		if (modifiers == 0) {
+			emit(MacroProgram.TAP, keyCode);
+		} else if (modifiers == KeyTable.SHIFT) {
+			emit(MacroProgram.TAP_SHIFT, keyCode);
+		} else {
+			emit(MacroProgram.CHORD, keyCode | modifiers);
+		}
+	}
+
+	/**
+	 * Appends an instruction to the program being built
+	 * @param opcode opcode of the instruction
+	 * @param operand operand of the instruction
+	 */
+	private void emit(int opcode, int operand) {
+		if (size + MacroProgram.INSTRUCTION_WIDTH > code.length) {
+			code = Arrays.copyOf(code, code.length * 2);
+		}
+		code[size++] = opcode;
+		code[size++] = operand;
+	}
+}
@@ -0,0 +1,407 @@
+package macros;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A collection of macros with unique names.
+ * Macros are kept in the order they were added, hashed by name for constant time lookup,
+ * and sorted by name for prefix searches such as autocompletion.
+ * Lookups and searches never lock, and snapshot returns an immutable copy of the library which stays
+ * the same while the library changes, so the GUI and replay threads can read it while it is being edited.
+ * Macros added to a library look up the macros they call in it, and a macro is only added if it does not
+ * end up calling itself. Macros with the same body share a single copy of it through the library's MacroPool.
+ *
+ * @author ABM
+ *
+ */
+public class MacroLibrary implements Iterable<Macro>, MacroResolver {
+
+	/** Starting number of slots keeping the order of the macros */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** Macros by name */
+	private final Map<String, Macro> byName = new ConcurrentHashMap<>();
+	/** Macros sorted by name */
+	private final ConcurrentNavigableMap<String, Macro> sorted = new ConcurrentSkipListMap<>();
+	/** Macros in the order they were added, null where a macro was removed, only changed while holding the library's lock */
+	private Macro[] ordered = new Macro[INITIAL_CAPACITY];
+	/** Number of slots of ordered used, removed macros included */
+	private int slotCount;
+	/** Fenwick tree counting the macros left in ranges of slots, which gives the index of a slot in logarithmic time */
+	private int[] liveTree = new int[INITIAL_CAPACITY + 1];
+	/** Slot of ordered holding each macro, by name */
+	private final Map<String, Integer> slots = new HashMap<>();
+	/** Listeners told about every change */
+	private final List<MacroLibraryListener> listeners = new CopyOnWriteArrayList<>();
+	/** Immutable copy of the macros in order, rebuilt on the first snapshot after a change */
+	private volatile List<Macro> snapshot = Collections.emptyList();
+	/** Pool the bodies of the macros are shared through */
+	private final MacroPool pool;
+	/** Whether the pool belongs to this library alone, and is cleared with it */
+	private final boolean ownsPool;
+
+	/**
+	 * Constructs an empty library with a pool of its own
+	 */
+	public MacroLibrary() {
+		this.pool = new MacroPool();
+		this.ownsPool = true;
+	}
+
+	/**
+	 * Constructs an empty library sharing the bodies of its macros through a pool, which may be shared with other libraries
+	 * @param pool the pool
+	 * @throws IllegalArgumentException if pool is null
+	 */
+	public MacroLibrary(MacroPool pool) {
+		if (pool == null) {
+			throw new IllegalArgumentException("Invalid macro pool.");
+		}
+		this.pool = pool;
+		this.ownsPool = false;
+	}
+
+	/**
+	 * Constructs a library holding the given macros in order
+	 * @param macros macros to add
+	 * @throws IllegalArgumentException if two of the macros share a name
+	 */
+	public MacroLibrary(Collection<Macro> macros) {
+		this();
+		for (Macro m : macros) {
+			add(m);
+		}
+	}
+
+	/**
+	 * Adds a macro to the end of the library
+	 * @param macro the macro to add
+	 * @throws IllegalArgumentException if the macro is null, the library already has a macro with its name,
+	 * or the macro would call itself through the macros of the library
+	 */
+	public synchronized void add(Macro macro) {
+		if (macro == null) {
+			throw new IllegalArgumentException("Invalid macro.");
+		}
+		if (byName.containsKey(macro.getMacroName())) {
+			throw new IllegalArgumentException("A macro named " + macro.getMacroName() + " already exists.");
+		}
+		checkCycles(macro);
+		macro.share(pool);
+		byName.put(macro.getMacroName(), macro);
+		macro.setResolver(this);
+		sorted.put(macro.getMacroName(), macro);
+		append(macro);
+		snapshot = null;
+		for (MacroLibraryListener l : listeners) {
+			l.macroAdded(byName.size() - 1, macro);
+		}
+	}
+
+	/**
+	 * Replaces the macro sharing a name with the given macro, keeping its position,
+	 * or adds the macro to the end of the library if no macro has its name
+	 * @param macro the macro to put in the library
+	 * @return the macro which was replaced, or null if the macro was added
+	 * @throws IllegalArgumentException if the macro is null or would call itself through the macros of the library
+	 */
+	public synchronized Macro put(Macro macro) {
+		if (macro == null) {
+			throw new IllegalArgumentException("Invalid macro.");
+		}
+		checkCycles(macro);
+		macro.share(pool);
+		macro.setResolver(this);
+		Macro old = byName.put(macro.getMacroName(), macro);
+		sorted.put(macro.getMacroName(), macro);
+		snapshot = null;
+		if (old == null) {
+			append(macro);
+			for (MacroLibraryListener l : listeners) {
+				l.macroAdded(byName.size() - 1, macro);
+			}
+		} else {
+			old.unshare(pool);
+			int slot = slots.get(macro.getMacroName());
+			int index = indexOf(slot);
+			ordered[slot] = macro;
+			for (MacroLibraryListener l : listeners) {
+				l.macroReplaced(index, old, macro);
+			}
+		}
+		return old;
+	}
+
+	/**
+	 * Removes the macro with a given name
+	 * @param name name of the macro to remove
+	 * @return the removed macro, or null if the library has no macro with that name
+	 */
+	public synchronized Macro remove(String name) {
+		Macro old = name == null ? null : byName.remove(name);
+		if (old != null) {
+			old.unshare(pool);
+			sorted.remove(name);
+			int slot = slots.remove(name);
+			int index = indexOf(slot);
+			ordered[slot] = null;
+			count(slot, -1);
+			snapshot = null;
+			for (MacroLibraryListener l : listeners) {
+				l.macroRemoved(index, old);
+			}
+		}
+		return old;
+	}
+
+	/**
+	 * Removes every macro
+	 */
+	public synchronized void clear() {
+		int oldSize = byName.size();
+		if (!ownsPool) {
+			for (int i = 0; i < slotCount; i++) {
+				if (ordered[i] != null) {
+					ordered[i].unshare(pool);
+				}
+			}
+		}
+		byName.clear();
+		sorted.clear();
+		ordered = new Macro[INITIAL_CAPACITY];
+		slotCount = 0;
+		liveTree = new int[INITIAL_CAPACITY + 1];
+		slots.clear();
+		snapshot = Collections.emptyList();
+		if (ownsPool) {
+			pool.clear();
+		}
+		for (MacroLibraryListener l : listeners) {
+			l.libraryCleared(oldSize);
+		}
+	}
+
+	/**
+	 * Puts a macro in the slot after the last one used, making room first by dropping the slots of removed macros
+	 * when they are at least half of them, or by doubling the slots otherwise
+	 * @param macro the macro
+	 */
+	private void append(Macro macro) {
+		if (slotCount == ordered.length) {
+			int live = 0;
+			Macro[] compacted = new Macro[byName.size() * 2 > slotCount ? slotCount * 2 : slotCount];
+			for (int i = 0; i < slotCount; i++) {
+				if (ordered[i] != null) {
+					slots.put(ordered[i].getMacroName(), live);
+					compacted[live++] = ordered[i];
+				}
+			}
+			ordered = compacted;
+			slotCount = live;
+			// Node i of the tree counts the slots from i & (i - 1) up to i, of which only the first live hold a macro
+			liveTree = new int[ordered.length + 1];
+			for (int i = 1; i <= ordered.length; i++) {
+				liveTree[i] = Math.max(0, Math.min(i, live) - (i & (i - 1)));
+			}
+		}
+		int slot = slotCount++;
+		ordered[slot] = macro;
+		slots.put(macro.getMacroName(), slot);
+		count(slot, 1);
+	}
+
+	/**
+	 * Updates the nodes of the tree covering a slot which a macro was put in or removed from
+	 * @param slot the slot
+	 * @param delta 1 if the slot now holds a macro, -1 if it no longer does
+	 */
+	private void count(int slot, int delta) {
+		for (int i = slot + 1; i <= ordered.length; i += i & -i) {
+			liveTree[i] += delta;
+		}
+	}
+
+	/**
+	 * Gets the index in the library of the macro in a slot, the number of macros in the slots before it
+	 * @param slot the slot
+	 * @return the index
+	 */
+	private int indexOf(int slot) {
+		int index = 0;
+		for (int i = slot; i > 0; i -= i & -i) {
+			index += liveTree[i];
+		}
+		return index;
+	}
+
+	/**
+	 * Gets the pool the bodies of the macros are shared through, which tells how much memory sharing saves
+	 * @return the pool
+	 */
+	public MacroPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Registers a listener to be told about every change to the library
+	 * @param listener the listener
+	 */
+	public void addListener(MacroLibraryListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Stops telling a listener about changes to the library
+	 * @param listener the listener
+	 */
+	public void removeListener(MacroLibraryListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Gets the macro with a given name
+	 * @param name name of the macro
+	 * @return the macro, or null if the library has no macro with that name
+	 */
+	public Macro get(String name) {
+		return name == null ? null : byName.get(name);
+	}
+
+	/**
+	 * Finds the macro called by name from another macro of the library
+	 * @param name name of the macro
+	 * @return the macro, or null if the library has no macro with that name
+	 */
+	@Override
+	public Macro resolve(String name) {
+		return get(name);
+	}
+
+	/**
+	 * Checks that a macro about to be added would not call itself, directly or through other macros.
+	 * Any new cycle has to pass through the new macro, so following its calls is enough.
+	 * @param macro the macro about to be added, replacing any macro with its name
+	 * @throws IllegalArgumentException if following the macro's calls leads back to it
+	 */
+	private void checkCycles(Macro macro) {
+		String name = macro.getMacroName();
+		Set<String> visited = new HashSet<>();
+		Deque<Macro> pending = new ArrayDeque<>();
+		pending.push(macro);
+		while (!pending.isEmpty()) {
+			MacroProgram program = pending.pop().getProgram();
+			for (int i = 0; i < program.getCallCount(); i++) {
+				String call = program.getCall(i);
+				if (call.equals(name)) {
+					throw new IllegalArgumentException("Macro " + name + " would call itself.");
+				}
+				Macro callee = byName.get(call);
+				if (callee != null && visited.add(call)) {
+					pending.push(callee);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tells if the library has a macro with a given name
+	 * @param name name to look for
+	 * @return true if a macro has the name
+	 */
+	public boolean contains(String name) {
+		return name != null && byName.containsKey(name);
+	}
+
+	/**
+	 * Gets the number of macros in the library
+	 * @return the number of macros
+	 */
+	public int size() {
+		return byName.size();
+	}
+
+	/**
+	 * Tells if the library has no macros
+	 * @return true if the library is empty
+	 */
+	public boolean isEmpty() {
+		return byName.isEmpty();
+	}
+
+	/**
+	 * Finds the macros whose names start with a prefix, in name order
+	 * @param prefix start of the names to find
+	 * @param limit largest number of macros to return
+	 * @return the matching macros sorted by name
+	 */
+	public List<Macro> findByPrefix(String prefix, int limit) {
+		List<Macro> matches = new ArrayList<>();
+		if (prefix == null || limit <= 0) {
+			return matches;
+		}
+		for (Macro m : sorted.tailMap(prefix, true).values()) {
+			if (!m.getMacroName().startsWith(prefix) || matches.size() >= limit) {
+				break;
+			}
+			matches.add(m);
+		}
+		return matches;
+	}
+
+	/**
+	 * Gets an immutable copy of the library in the order macros were added.
+	 * The copy is shared between callers until the library next changes.
+	 * @return the macros of the library
+	 */
+	public List<Macro> snapshot() {
+		List<Macro> current = snapshot;
+		if (current == null) {
+			synchronized (this) {
+				current = snapshot;
+				if (current == null) {
+					List<Macro> macros = new ArrayList<>(byName.size());
+					for (int i = 0; i < slotCount; i++) {
+						if (ordered[i] != null) {
+							macros.add(ordered[i]);
+						}
+					}
+					current = Collections.unmodifiableList(macros);
+					snapshot = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Iterates over a snapshot of the library
+	 * @return iterator over the macros in the order they were added
+	 */
+	@Override
+	public Iterator<Macro> iterator() {
+		return snapshot().iterator();
+	}
+
+	/**
+	 * Gets the string representation of the library
+	 * @return the macros of the library
+	 */
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+}
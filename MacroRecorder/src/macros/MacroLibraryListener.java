@@ -0,0 +1,40 @@
+package macros;
+
+/**
+ * Receives a notification for every change made to a MacroLibrary.
+ * Notifications are sent on the thread which changed the library, while it holds the library's lock,
+ * so listeners see changes in the order they were made and should return quickly.
+ *
+ * @author ABM
+ *
+ */
+public interface MacroLibraryListener {
+
+	/**
+	 * Called after a macro is added to the end of the library
+	 * @param index position of the new macro
+	 * @param macro the macro added
+	 */
+	void macroAdded(int index, Macro macro);
+
+	/**
+	 * Called after a macro replaces another one with the same name
+	 * @param index position of the macro
+	 * @param oldMacro the macro replaced
+	 * @param newMacro the macro now at that position
+	 */
+	void macroReplaced(int index, Macro oldMacro, Macro newMacro);
+
+	/**
+	 * Called after a macro is removed
+	 * @param index position the macro was at
+	 * @param macro the macro removed
+	 */
+	void macroRemoved(int index, Macro macro);
+
+	/**
+	 * Called after every macro is removed
+	 * @param oldSize number of macros the library held
+	 */
+	void libraryCleared(int oldSize);
+}
@@ -0,0 +1,117 @@
+package macros;
+
+import java.util.Arrays;
+
+/**
+ * Peephole optimizer which rewrites a MacroProgram into one sending fewer key events and waits.
+ * <ul>
+ * <li>Modifiers shared by neighbouring keys are pressed once and held across them, so a shift run of
+ * n keys sends 2n + 2 events instead of 4n.</li>
+ * <li>Back to back sleeps are merged into a single wait and zero length sleeps are dropped.</li>
+ * </ul>
+ * Held modifiers are always released before a sleep, a repeat block boundary, a call and the end of the
+ * program, so the keyboard is in the same state as with the original program whenever the replay waits,
+ * loops, calls or finishes.
+ * The optimized program uses PRESS and RELEASE instructions, so it is only meant for replaying and
+ * cannot be turned back into a macro string.
+ *
+ * @author ABM
+ *
+ */
+final class MacroOptimizer {
+
+	/** Instructions emitted so far */
+	private int[] code;
+	/** Number of ints of code in use */
+	private int size;
+	/** KeyTable modifier flags held down at this point of the optimized program */
+	private int held;
+
+	/**
+	 * Constructs an optimizer
+	 */
+	MacroOptimizer() {
+		// Empty
+	}
+
+	/**
+	 * Optimizes a program
+	 * @param program the program to optimize
+	 * @return a program sending the same keys with the same timing
+	 */
+	MacroProgram optimize(MacroProgram program) {
+		code = new int[Math.max(MacroProgram.INSTRUCTION_WIDTH, program.length() * MacroProgram.INSTRUCTION_WIDTH)];
+		size = 0;
+		held = 0;
+		for (int i = 0; i < program.length(); i++) {
+			int opcode = program.opcode(i);
+			int operand = program.operand(i);
+			switch (opcode) {
+			case MacroProgram.SLEEP:
+				if (operand == 0) {
+					break;
+				}
+				hold(0);
+				if (size > 0 && code[size - MacroProgram.INSTRUCTION_WIDTH] == MacroProgram.SLEEP
+						&& code[size - 1] <= Integer.MAX_VALUE - operand) {
+					code[size - 1] += operand;
+				} else {
+					emit(MacroProgram.SLEEP, operand);
+				}
+				break;
+			case MacroProgram.TAP:
+				hold(0);
+				emit(MacroProgram.TAP, operand);
+				break;
+			case MacroProgram.TAP_SHIFT:
+				hold(KeyTable.SHIFT);
+				emit(MacroProgram.TAP, operand);
+				break;
+			case MacroProgram.CHORD:
+				hold(KeyTable.modifiers(operand));
+				emit(MacroProgram.TAP, KeyTable.keyCode(operand));
+				break;
+			default:
+				hold(0);
+				emit(opcode, operand);
+				break;
+			}
+		}
+		hold(0);
+		MacroProgram optimized = new MacroProgram(Arrays.copyOf(code, size), program.calls());
+		code = null;
+		return optimized;
+	}
+
+	/**
+	 * Releases the held modifiers which are not wanted then presses the wanted ones which are not held
+	 * @param wanted KeyTable modifier flags to hold down
+	 */
+	private void hold(int wanted) {
+		int[] order = KeyTable.MODIFIER_ORDER;
+		for (int j = order.length - 1; j >= 0; j--) {
+			if ((held & ~wanted & order[j]) != 0) {
+				emit(MacroProgram.RELEASE, KeyTable.modifierKeyCode(order[j]));
+			}
+		}
+		for (int flag : order) {
+			if ((wanted & ~held & flag) != 0) {
+				emit(MacroProgram.PRESS, KeyTable.modifierKeyCode(flag));
+			}
+		}
+		held = wanted;
+	}
+
+	/**
+	 * Appends an instruction to the program being built
+	 * @param opcode opcode of the instruction
+	 * @param operand operand of the instruction
+	 */
+	private void emit(int opcode, int operand) {
+		if (size + MacroProgram.INSTRUCTION_WIDTH > code.length) {
+			code = Arrays.copyOf(code, code.length * 2);
+		}
+		code[size++] = opcode;
+		code[size++] = operand;
+	}
+}
@@ -0,0 +1,284 @@
+package macros;
+
+/**
+ * Shares identical macro bodies between the macros of a library.
+ * Large libraries hold many macros typed from the same template, and each of them would otherwise keep its own
+ * copy of the macro string and of the compiled program, which is the larger of the two. The pool hashes the
+ * content of every body and program it is handed and gives back the first equal one it saw, so equal bodies are
+ * kept once however many macros use them. Bodies which differ in their text but compile to the same program,
+ * such as "A" and "&lt;a&gt;", still share the program, and the names of called macros are shared by every
+ * program calling them.
+ * <p>
+ * Entries live in a single open addressing table of references, so a body used by one macro only costs a slot
+ * or two. Each entry counts the times it was handed out and leaves the pool once it has been released as many
+ * times, which a library does for the macros it removes or replaces.
+ * </p>
+ *
+ * @author ABM
+ *
+ */
+public class MacroPool {
+
+	/** Initial number of slots of the table, always a power of two */
+	private static final int INITIAL_CAPACITY = 64;
+	/** Estimated heap taken by a string besides its characters, the object and the header of its array */
+	static final int STRING_OVERHEAD = 40;
+
+	/** Pooled strings and programs, null marks an empty slot */
+	private Object[] table = new Object[INITIAL_CAPACITY];
+	/** Number of times the entry of each slot was handed out and not released yet */
+	private int[] counts = new int[INITIAL_CAPACITY];
+	/** Number of pooled entries */
+	private int size;
+	/** Number of pooled strings */
+	private int stringCount;
+	/** Number of pooled programs */
+	private int programCount;
+	/** Number of times an entry is in use beyond its first user */
+	private long sharedCount;
+	/** Estimated heap taken by the pooled entries */
+	private long pooledBytes;
+	/** Estimated heap of the copies the entries in use stand in for */
+	private long savedBytes;
+
+	/**
+	 * Gets the pooled string equal to a string, pooling it if it is the first
+	 * @param s the string
+	 * @return an equal string shared by everything pooling it, null if s is null
+	 */
+	public synchronized String intern(String s) {
+		if (s == null) {
+			return null;
+		}
+		int slot = find(s, s.hashCode());
+		if (table[slot] != null) {
+			counts[slot]++;
+			sharedCount++;
+			savedBytes += estimateSize(s);
+			return (String) table[slot];
+		}
+		insert(slot, s);
+		stringCount++;
+		pooledBytes += estimateSize(s);
+		return s;
+	}
+
+	/**
+	 * Gets the pooled program equal to a program, pooling it if it is the first.
+	 * The names of the macros a newly pooled program calls are pooled too.
+	 * @param program the program
+	 * @return an equal program shared by everything pooling it, null if program is null
+	 */
+	public synchronized MacroProgram intern(MacroProgram program) {
+		if (program == null) {
+			return null;
+		}
+		int slot = find(program, program.hashCode());
+		if (table[slot] != null) {
+			counts[slot]++;
+			sharedCount++;
+			savedBytes += program.estimateSize();
+			return (MacroProgram) table[slot];
+		}
+		insert(slot, program);
+		programCount++;
+		pooledBytes += program.estimateSize();
+		program.internCalls(this);
+		return program;
+	}
+
+	/**
+	 * Gives back a string handed out by intern, dropping it from the pool once nothing uses it.
+	 * Strings which are not the pooled instance are ignored, so a copy the pool never handed out cannot release it.
+	 * @param s the string, may be null
+	 */
+	public synchronized void release(String s) {
+		if (s == null) {
+			return;
+		}
+		int slot = find(s, s.hashCode());
+		if (table[slot] != s) {
+			return;
+		}
+		if (counts[slot] > 1) {
+			counts[slot]--;
+			sharedCount--;
+			savedBytes -= estimateSize(s);
+			return;
+		}
+		delete(slot);
+		stringCount--;
+		pooledBytes -= estimateSize(s);
+	}
+
+	/**
+	 * Gives back a program handed out by intern, dropping it from the pool once nothing uses it.
+	 * The names of the macros a dropped program calls are released too.
+	 * Programs which are not the pooled instance are ignored.
+	 * @param program the program, may be null
+	 */
+	public synchronized void release(MacroProgram program) {
+		if (program == null) {
+			return;
+		}
+		int slot = find(program, program.hashCode());
+		if (table[slot] != program) {
+			return;
+		}
+		if (counts[slot] > 1) {
+			counts[slot]--;
+			sharedCount--;
+			savedBytes -= program.estimateSize();
+			return;
+		}
+		delete(slot);
+		programCount--;
+		pooledBytes -= program.estimateSize();
+		program.releaseCalls(this);
+	}
+
+	/**
+	 * Finds the slot holding an entry equal to a key, or the empty slot it would go in
+	 * @param key the key
+	 * @param hash hash code of the key
+	 * @return the slot
+	 */
+	private int find(Object key, int hash) {
+		int mask = table.length - 1;
+		int slot = mix(hash) & mask;
+		while (table[slot] != null && !key.equals(table[slot])) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Puts an entry in an empty slot, growing the table once it is half full
+	 * @param slot the empty slot
+	 * @param entry the entry
+	 */
+	private void insert(int slot, Object entry) {
+		table[slot] = entry;
+		counts[slot] = 1;
+		size++;
+		if (size * 2 > table.length) {
+			Object[] old = table;
+			int[] oldCounts = counts;
+			table = new Object[old.length * 2];
+			counts = new int[old.length * 2];
+			for (int i = 0; i < old.length; i++) {
+				if (old[i] != null) {
+					int newSlot = find(old[i], old[i].hashCode());
+					table[newSlot] = old[i];
+					counts[newSlot] = oldCounts[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Empties a slot, moving back the entries after it which could no longer be found past the gap
+	 * @param slot the slot to empty
+	 */
+	private void delete(int slot) {
+		int mask = table.length - 1;
+		int hole = slot;
+		table[hole] = null;
+		counts[hole] = 0;
+		for (int i = (hole + 1) & mask; table[i] != null; i = (i + 1) & mask) {
+			int home = mix(table[i].hashCode()) & mask;
+			// The entry moves into the hole unless its home slot lies between the hole and where it is
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				table[hole] = table[i];
+				counts[hole] = counts[i];
+				table[i] = null;
+				counts[i] = 0;
+				hole = i;
+			}
+		}
+		size--;
+	}
+
+	/**
+	 * Spreads the bits of a hash code so nearby codes do not land in neighbouring slots
+	 * @param hash the hash code
+	 * @return the mixed hash
+	 */
+	private static int mix(int hash) {
+		int h = hash * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Estimates the heap taken by a string
+	 * @param s the string
+	 * @return the estimate in bytes
+	 */
+	static long estimateSize(String s) {
+		return STRING_OVERHEAD + s.length();
+	}
+
+	/**
+	 * Forgets every entry and resets the counts
+	 */
+	public synchronized void clear() {
+		table = new Object[INITIAL_CAPACITY];
+		counts = new int[INITIAL_CAPACITY];
+		size = 0;
+		stringCount = 0;
+		programCount = 0;
+		sharedCount = 0;
+		pooledBytes = 0;
+		savedBytes = 0;
+	}
+
+	/**
+	 * Gets the number of distinct strings pooled, macro strings and names of called macros
+	 * @return the number of strings
+	 */
+	public synchronized int getStringCount() {
+		return stringCount;
+	}
+
+	/**
+	 * Gets the number of distinct programs pooled
+	 * @return the number of programs
+	 */
+	public synchronized int getProgramCount() {
+		return programCount;
+	}
+
+	/**
+	 * Gets the number of times an equal string or program in use was handed out in place of a copy
+	 * @return the number of copies shared
+	 */
+	public synchronized long getSharedCount() {
+		return sharedCount;
+	}
+
+	/**
+	 * Gets the estimated heap taken by the pooled strings and programs
+	 * @return the estimate in bytes
+	 */
+	public synchronized long getPooledBytes() {
+		return pooledBytes;
+	}
+
+	/**
+	 * Gets the estimated heap no longer needed for copies, counting only the entries still in use
+	 * @return the estimate in bytes
+	 */
+	public synchronized long getSavedBytes() {
+		return savedBytes;
+	}
+
+	/**
+	 * Describes how much the pool shares
+	 * @return the counts and sizes of the pool
+	 */
+	@Override
+	public synchronized String toString() {
+		return programCount + " programs and " + stringCount + " strings shared " + sharedCount + " times, "
+				+ (pooledBytes >> 10) + " KB pooled, " + (savedBytes >> 10) + " KB saved";
+	}
+}
@@ -0,0 +1,390 @@
+package macros;
+
+import java.util.Arrays;
+
+import mkbd.kbd.KeySink;
+
+/**
+ * Immutable compiled form of a macro string.
+ * A program is a flat array of instructions, each made of an opcode followed by a single operand.
+ * Key codes are already resolved and sleep amounts already parsed, so replaying a program
+ * is a plain walk over a primitive array that allocates nothing per key.
+ *
+ * @author ABM
+ *
+ */
+public final class MacroProgram {
+
+	/** Number of ints used by a single instruction (opcode followed by operand) */
+	public static final int INSTRUCTION_WIDTH = 2;
+	/** Opcode which presses and releases the key given by the operand */
+	public static final int TAP = 0;
+	/** Opcode which presses and releases the key given by the operand while shift is held */
+	public static final int TAP_SHIFT = 1;
+	/** Opcode which sleeps for the number of milliseconds given by the operand */
+	public static final int SLEEP = 2;
+	/**
+	 * Opcode which presses and releases a key while modifiers are held.
+	 * The operand packs the key code with the KeyTable modifier flags of the chord.
+	 */
+	public static final int CHORD = 3;
+	/** Opcode which presses the key given by the operand without releasing it */
+	public static final int PRESS = 4;
+	/** Opcode which releases the key given by the operand */
+	public static final int RELEASE = 5;
+	/** Opcode which starts a block run the number of times given by the operand, which is at least 1 */
+	public static final int REPEAT = 6;
+	/** Opcode which ends the innermost repeat block, jumping back to its start until it has run enough times */
+	public static final int END_REPEAT = 7;
+	/** Opcode which runs the macro whose name is the call given by the operand */
+	public static final int CALL = 8;
+	/** Call table of programs calling no other macro */
+	private static final String[] NO_CALLS = new String[0];
+	/** Instructions of the program, stored as opcode/operand pairs */
+	private final int[] code;
+	/** Names of the macros called by CALL instructions, indexed by their operand */
+	private final String[] calls;
+	/** Largest number of key events sent between two sleeps */
+	private final int maxBatchSize;
+	/** Number of runs of key events separated by sleeps */
+	private final int batchCount;
+	/** Number of key events sent by the whole program */
+	private final int eventCount;
+	/** Number of sleep instructions */
+	private final int sleepCount;
+	/** Hash of the instructions and call table, 0 until first computed */
+	private int hash;
+
+	/**
+	 * Constructs a program over the given instructions which call no other macro.
+	 * The array is not copied, so callers must hand over ownership of it.
+	 *
+	 * @param code opcode/operand pairs making up the program
+	 */
+	MacroProgram(int[] code) {
+		this(code, NO_CALLS);
+	}
+
+	/**
+	 * Constructs a program over the given instructions.
+	 * The arrays are not copied, so callers must hand over ownership of them.
+	 *
+	 * @param code opcode/operand pairs making up the program
+	 * @param calls names of the macros called, indexed by the operands of CALL instructions
+	 */
+	MacroProgram(int[] code, String[] calls) {
+		this.code = code;
+		this.calls = calls;
+		int batch = 0;
+		int max = 0;
+		int count = 0;
+		int events = 0;
+		int sleeps = 0;
+		for (int i = 0; i < code.length; i += INSTRUCTION_WIDTH) {
+			int n = eventCount(code[i], code[i + 1]);
+			if (code[i] == SLEEP) {
+				batch = 0;
+				sleeps++;
+			} else if (n > 0) {
+				if (batch == 0) {
+					count++;
+				}
+				batch += n;
+				events += n;
+				max = Math.max(max, batch);
+			}
+		}
+		this.maxBatchSize = max;
+		this.batchCount = count;
+		this.eventCount = events;
+		this.sleepCount = sleeps;
+	}
+
+	/**
+	 * Creates a program from instructions which were compiled and checked before, such as ones
+	 * read back from a binary macro library. Only the instructions a compiled macro string can hold
+	 * are accepted and each is checked on its own, so this is much cheaper than compiling the macro string again.
+	 *
+	 * @param code opcode/operand pairs making up the program, copied by this method
+	 * @param length number of ints of code to use
+	 * @return the program
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the instructions are malformed
+	 * or call another macro
+	 */
+	public static MacroProgram fromInstructions(int[] code, int length) {
+		return fromInstructions(code, length, NO_CALLS);
+	}
+
+	/**
+	 * Creates a program from instructions which were compiled and checked before, along with the
+	 * names of the macros it calls. Only the instructions a compiled macro string can hold are accepted,
+	 * so PRESS and RELEASE, which only the optimizer produces, are rejected along with keys no macro can type.
+	 *
+	 * @param code opcode/operand pairs making up the program, copied by this method
+	 * @param length number of ints of code to use
+	 * @param calls names of the macros called, indexed by the operands of CALL instructions, copied by this method
+	 * @return the program
+	 * @throws IllegalArgumentException with the message "Unable to load file." If the instructions are malformed
+	 */
+	public static MacroProgram fromInstructions(int[] code, int length, String[] calls) {
+		if (length < 0 || length > code.length || length % INSTRUCTION_WIDTH != 0) {
+			throw new IllegalArgumentException("Unable to load file.");
+		}
+		int depth = 0;
+		for (int i = 0; i < length; i += INSTRUCTION_WIDTH) {
+			int opcode = code[i];
+			int operand = code[i + 1];
+			if (opcode == END_REPEAT) {
+				depth--;
+			} else if (opcode == REPEAT) {
+				depth++;
+			}
+			if (!isLoadable(opcode, operand, calls) || depth < 0) {
+				throw new IllegalArgumentException("Unable to load file.");
+			}
+		}
+		if (depth != 0) {
+			throw new IllegalArgumentException("Unable to load file.");
+		}
+		return new MacroProgram(Arrays.copyOf(code, length), calls.length == 0 ? NO_CALLS : calls.clone());
+	}
+
+	/**
+	 * Tells if an instruction is one a compiled macro string can hold, sending only keys a macro can type
+	 * @param opcode opcode of the instruction
+	 * @param operand operand of the instruction
+	 * @param calls names of the macros called, indexed by the operands of CALL instructions
+	 * @return true if the instruction can be loaded
+	 */
+	private static boolean isLoadable(int opcode, int operand, String[] calls) {
+		switch (opcode) {
+		case TAP:
+		case TAP_SHIFT:
+			return KeyTable.isKey(operand);
+		case CHORD:
+			return (operand & ~(KeyTable.KEY_MASK | KeyTable.MODIFIER_MASK)) == 0 && KeyTable.isKey(KeyTable.keyCode(operand));
+		case SLEEP:
+		case END_REPEAT:
+			return operand >= 0;
+		case REPEAT:
+			return operand > 0;
+		case CALL:
+			return operand >= 0 && operand < calls.length && calls[operand] != null && !calls[operand].isEmpty();
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the number of key events sent by an instruction
+	 * @param opcode opcode of the instruction
+	 * @param operand operand of the instruction
+	 * @return the number of key presses and releases the instruction sends
+	 */
+	public static int eventCount(int opcode, int operand) {
+		switch (opcode) {
+		case TAP:
+			return 2;
+		case TAP_SHIFT:
+			return 4;
+		case CHORD:
+			return 2 + 2 * Integer.bitCount(KeyTable.modifiers(operand));
+		case PRESS:
+		case RELEASE:
+			return 1;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Writes the key events sent by a key instruction, encoded as by KeySink.
+	 * Modifiers are pressed before the key and released after it in reverse order.
+	 *
+	 * @param index index of the instruction
+	 * @param events where to write the events, with room for eventCount of the instruction
+	 * @param offset index of events to write the first event at
+	 * @return the index just past the last event written
+	 */
+	public int writeEvents(int index, int[] events, int offset) {
+		int operand = operand(index);
+		int modifiers;
+		switch (opcode(index)) {
+		case TAP:
+			modifiers = 0;
+			break;
+		case TAP_SHIFT:
+			modifiers = KeyTable.SHIFT;
+			break;
+		case CHORD:
+			modifiers = KeyTable.modifiers(operand);
+			break;
+		case PRESS:
+			events[offset++] = KeySink.press(operand);
+			return offset;
+		case RELEASE:
+			events[offset++] = KeySink.release(operand);
+			return offset;
+		default:
+			return offset;
+		}
+		int key = KeyTable.keyCode(operand);
+		for (int flag : KeyTable.MODIFIER_ORDER) {
+			if ((modifiers & flag) != 0) {
+				events[offset++] = KeySink.press(KeyTable.modifierKeyCode(flag));
+			}
+		}
+		events[offset++] = KeySink.press(key);
+		events[offset++] = KeySink.release(key);
+		for (int j = KeyTable.MODIFIER_ORDER.length - 1; j >= 0; j--) {
+			if ((modifiers & KeyTable.MODIFIER_ORDER[j]) != 0) {
+				events[offset++] = KeySink.release(KeyTable.modifierKeyCode(KeyTable.MODIFIER_ORDER[j]));
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * Gets the largest number of key events the program sends between two sleeps, counting each repeat
+	 * block and call once, which is the size of buffer needed to replay it in batches
+	 * @return the largest batch size
+	 */
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Gets the number of runs of key events separated by sleeps, counting each repeat block once
+	 * @return the number of batches a replay of the program sends
+	 */
+	public int getBatchCount() {
+		return batchCount;
+	}
+
+	/**
+	 * Gets the number of key events the program's own instructions send, counting each repeat block once
+	 * and not counting called macros
+	 * @return the number of key presses and releases
+	 */
+	public int getEventCount() {
+		return eventCount;
+	}
+
+	/**
+	 * Gets the number of sleep instructions, each of which is a separate wait during a replay
+	 * @return the number of sleeps
+	 */
+	public int getSleepCount() {
+		return sleepCount;
+	}
+
+	/**
+	 * Gets the number of other macros the program calls
+	 * @return the size of the call table
+	 */
+	public int getCallCount() {
+		return calls.length;
+	}
+
+	/**
+	 * Gets the name of a macro the program calls
+	 * @param index operand of the CALL instruction
+	 * @return the name of the called macro
+	 */
+	public String getCall(int index) {
+		return calls[index];
+	}
+
+	/**
+	 * Gets the call table of the program, shared with programs derived from it
+	 * @return names of the macros called, not to be modified
+	 */
+	String[] calls() {
+		return calls;
+	}
+
+	/**
+	 * Replaces the names in the call table by the equal names of a pool, done once the program itself is pooled
+	 * @param pool the pool
+	 */
+	void internCalls(MacroPool pool) {
+		for (int i = 0; i < calls.length; i++) {
+			calls[i] = pool.intern(calls[i]);
+		}
+	}
+
+	/**
+	 * Gives back the names in the call table to a pool, done once the pooled program itself is dropped
+	 * @param pool the pool
+	 */
+	void releaseCalls(MacroPool pool) {
+		for (String call : calls) {
+			pool.release(call);
+		}
+	}
+
+	/**
+	 * Estimates the heap taken by the program and its arrays, not counting the names it calls
+	 * @return the estimate in bytes
+	 */
+	long estimateSize() {
+		// Object with its counts, plus the code array and its header
+		long size = 40 + 16 + 4L * code.length;
+		if (calls.length > 0) {
+			size += 16 + 4L * calls.length;
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the number of instructions in the program
+	 * @return the number of instructions
+	 */
+	public int length() {
+		return code.length / INSTRUCTION_WIDTH;
+	}
+
+	/**
+	 * Gets the opcode of an instruction
+	 * @param index index of the instruction
+	 * @return the opcode of the instruction
+	 */
+	public int opcode(int index) {
+		return code[index * INSTRUCTION_WIDTH];
+	}
+
+	/**
+	 * Gets the operand of an instruction
+	 * @param index index of the instruction
+	 * @return the operand of the instruction
+	 */
+	public int operand(int index) {
+		return code[index * INSTRUCTION_WIDTH + 1];
+	}
+
+	/**
+	 * Checks if two programs contain the same instructions
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		MacroProgram other = (MacroProgram) obj;
+		return Arrays.equals(code, other.code) && Arrays.equals(calls, other.calls);
+	}
+
+	/**
+	 * Hash code for MacroProgram object
+	 */
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0) {
+			h = 31 * Arrays.hashCode(code) + Arrays.hashCode(calls);
+			hash = h;
+		}
+		return h;
+	}
+}
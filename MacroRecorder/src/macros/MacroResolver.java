@@ -0,0 +1,17 @@
+package macros;
+
+/**
+ * Looks up the macros called by name from other macros.
+ *
+ * @author ABM
+ *
+ */
+public interface MacroResolver {
+
+	/**
+	 * Finds the macro with a given name
+	 * @param name name of the macro
+	 * @return the macro, or null if there is none
+	 */
+	Macro resolve(String name);
+}
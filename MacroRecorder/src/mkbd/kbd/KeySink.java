@@ -0,0 +1,120 @@
+package mkbd.kbd;
+
+/**
+ * Destination for the key events produced while replaying a macro.
+ * Events can be sent one at a time or as a batch of encoded events,
+ * where a press is encoded as the key code itself and a release as its bitwise complement.
+ * 
+ * @author ABM
+ */
+public interface KeySink {
+
+    /** Fewest characters typeText is given by default, shorter runs are cheaper to send as key events */
+    int MIN_TEXT_LENGTH = 16;
+
+    /**
+     * Presses a key
+     * 
+     * @param keyCode the key to press
+     */
+    void keyPress(int keyCode);
+
+    /**
+     * Releases a key
+     * 
+     * @param keyCode the key to release
+     */
+    void keyRelease(int keyCode);
+
+    /**
+     * Waits for a given amount of time
+     * 
+     * @param time the amount of time to wait in milliseconds
+     */
+    void delay(int time);
+
+    /**
+     * Makes sure every event sent so far has been delivered
+     */
+    void flush();
+
+    /**
+     * Sends a batch of encoded events in order.
+     * Backends which can deliver a batch more cheaply than event by event should override this.
+     * 
+     * @param events array holding the encoded events
+     * @param offset index of the first event to send
+     * @param length number of events to send
+     */
+    default void submit(int[] events, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (isPress(events[i])) {
+                keyPress(events[i]);
+            } else {
+                keyRelease(keyCode(events[i]));
+            }
+        }
+    }
+
+    /**
+     * Types a run of literal text in one go, such as by pasting it, instead of pressing key by key.
+     * The text only holds characters typed as themselves without Shift, and no other key is held while it is typed.
+     * Backends with no faster way than pressing each key keep this default, and the keys are sent as events instead.
+     * 
+     * @param text the text to type
+     * @return true if the text was typed, false if the backend cannot type text
+     */
+    default boolean typeText(CharSequence text) {
+        return false;
+    }
+
+    /**
+     * Gets the fewest characters worth typing with typeText.
+     * Backends whose way of typing text has a high fixed cost should raise it, so short runs are sent as key events.
+     * 
+     * @return the shortest run of text given to typeText
+     */
+    default int getMinTextLength() {
+        return MIN_TEXT_LENGTH;
+    }
+
+    /**
+     * Encodes a key press for use in a batch
+     * 
+     * @param keyCode the key being pressed
+     * @return the encoded event
+     */
+    static int press(int keyCode) {
+        return keyCode;
+    }
+
+    /**
+     * Encodes a key release for use in a batch
+     * 
+     * @param keyCode the key being released
+     * @return the encoded event
+     */
+    static int release(int keyCode) {
+        return ~keyCode;
+    }
+
+    /**
+     * Tells if an encoded event is a key press
+     * 
+     * @param event the encoded event
+     * @return true if the event is a press, false if it is a release
+     */
+    static boolean isPress(int event) {
+        return event >= 0;
+    }
+
+    /**
+     * Gets the key code of an encoded event
+     * 
+     * @param event the encoded event
+     * @return the key code the event refers to
+     */
+    static int keyCode(int event) {
+        return event >= 0 ? event : ~event;
+    }
+}
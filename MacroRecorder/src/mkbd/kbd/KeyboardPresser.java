@@ -1,10 +1,9 @@
 package mkbd.kbd;
-import java.awt.Robot;
 import java.awt.event.KeyEvent;
-import java.awt.AWTException;
 
 /**
  * This class is used to simulate keyboard presses.
+ * Every press goes through a KeySink, which by default sends it to the operating system.
  * 
  * @author ABM
  */
@@ -16,19 +15,57 @@ public class KeyboardPresser {
     /** Half second in terms of milliseconds */
     public static final int HALF_SECOND = 500;
 
+    /** Sink shared by every presser which sends key events to the operating system */
+    private static final RobotKeySink ROBOT_SINK = new RobotKeySink();
+
+    /** Where this presser sends its key events */
+    private final KeySink sink;
+
+    /**
+     * Constructs a KeyboardPresser which sends its key events to the operating system
+     */
+    public KeyboardPresser() {
+        this(ROBOT_SINK);
+    }
+
+    /**
+     * Constructs a KeyboardPresser which sends its key events to the given sink
+     * 
+     * @param sink where to send key events
+     */
+    public KeyboardPresser(KeySink sink) {
+        if (sink == null) {
+            throw new IllegalArgumentException("Invalid key sink.");
+        }
+        this.sink = sink;
+    }
+
+    /**
+     * Gets the sink which sends key events to the operating system
+     * 
+     * @return the shared Robot backed sink
+     */
+    public static KeySink robotSink() {
+        return ROBOT_SINK;
+    }
+
+    /**
+     * Gets the sink this presser sends its key events to
+     * 
+     * @return the sink
+     */
+    public KeySink getSink() {
+        return sink;
+    }
+
     /**
      * Simulates an arbitrary key tap
      * 
      * @param k the key to press
      */
     public void tapKey(int k) {
-        try {
-            Robot r = new Robot();
-            r.keyPress(k);
-            r.keyRelease(k); 
-        } catch (AWTException e) {
-            System.out.println("Error: " + e.getMessage());
-        }
+        sink.keyPress(k);
+        sink.keyRelease(k);
     }
     
     /**
@@ -37,15 +74,10 @@ public class KeyboardPresser {
      * @param k the key to press
      */
     public void tapKeyShift(int k) {
-        try {
-            Robot r = new Robot();
-            r.keyPress(KeyEvent.VK_SHIFT);
-            r.keyPress(k);
-            r.keyRelease(k); 
-            r.keyRelease(KeyEvent.VK_SHIFT);
-        } catch (AWTException e) {
-            System.out.println("Error: " + e.getMessage());
-        }
+        sink.keyPress(KeyEvent.VK_SHIFT);
+        sink.keyPress(k);
+        sink.keyRelease(k);
+        sink.keyRelease(KeyEvent.VK_SHIFT);
     }
 
     /**
@@ -54,12 +86,7 @@ public class KeyboardPresser {
      * @param time the amount of time to sleep
      */
     public void sleep(int time) {
-        try {
-            Robot r = new Robot();
-            r.delay(time);
-        } catch (AWTException e) {
-            System.out.println("Error: " + e.getMessage());
-        }
+        sink.delay(time);
     }
 
 }
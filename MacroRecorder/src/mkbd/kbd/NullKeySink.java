@@ -0,0 +1,63 @@
+package mkbd.kbd;
+
+/**
+ * Discards every key event and returns from delays immediately.
+ * Used to measure replay throughput without a display or any real input device.
+ * 
+ * @author ABM
+ */
+public class NullKeySink implements KeySink {
+
+    /** Shared instance, the sink holds no state */
+    public static final NullKeySink INSTANCE = new NullKeySink();
+
+    /**
+     * Ignores a key press
+     * 
+     * @param keyCode the key to press
+     */
+    @Override
+    public void keyPress(int keyCode) {
+        // Discarded
+    }
+
+    /**
+     * Ignores a key release
+     * 
+     * @param keyCode the key to release
+     */
+    @Override
+    public void keyRelease(int keyCode) {
+        // Discarded
+    }
+
+    /**
+     * Ignores a delay
+     * 
+     * @param time the amount of time to wait in milliseconds
+     */
+    @Override
+    public void delay(int time) {
+        // Returns immediately
+    }
+
+    /**
+     * Nothing is buffered, so there is nothing to flush
+     */
+    @Override
+    public void flush() {
+        // Nothing to deliver
+    }
+
+    /**
+     * Ignores a batch of events
+     * 
+     * @param events array holding the encoded events
+     * @param offset index of the first event
+     * @param length number of events
+     */
+    @Override
+    public void submit(int[] events, int offset, int length) {
+        // Discarded
+    }
+}
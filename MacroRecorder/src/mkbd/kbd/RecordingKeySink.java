@@ -0,0 +1,188 @@
+package mkbd.kbd;
+import java.awt.event.KeyEvent;
+import java.util.Arrays;
+
+/**
+ * Keeps every key event it receives in memory instead of sending it anywhere.
+ * Delays are added up rather than waited, which makes the sink useful for checking
+ * what a macro would type without touching the real keyboard.
+ * A sink which accepts text stands in for backends that type text in one go: it records the presses and
+ * releases each character would have been typed with, so its events can be compared with a replay sent key by key.
+ * 
+ * @author ABM
+ */
+public class RecordingKeySink implements KeySink {
+
+    /** Starting capacity of the event buffer */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** Encoded events received so far */
+    private int[] events = new int[INITIAL_CAPACITY];
+
+    /** Number of events received so far */
+    private int eventCount;
+
+    /** Sum of every delay requested so far, in milliseconds */
+    private long totalDelay;
+
+    /** Whether runs of text are accepted instead of being sent as key events */
+    private final boolean acceptsText;
+
+    /** Number of runs of text typed so far */
+    private int textCount;
+
+    /**
+     * Constructs a sink which only accepts key events
+     */
+    public RecordingKeySink() {
+        this(false);
+    }
+
+    /**
+     * Constructs a sink
+     * 
+     * @param acceptsText whether runs of text are accepted in one go
+     */
+    public RecordingKeySink(boolean acceptsText) {
+        this.acceptsText = acceptsText;
+    }
+
+    /**
+     * Records a key press
+     * 
+     * @param keyCode the key pressed
+     */
+    @Override
+    public synchronized void keyPress(int keyCode) {
+        record(KeySink.press(keyCode));
+    }
+
+    /**
+     * Records a key release
+     * 
+     * @param keyCode the key released
+     */
+    @Override
+    public synchronized void keyRelease(int keyCode) {
+        record(KeySink.release(keyCode));
+    }
+
+    /**
+     * Records a delay without waiting
+     * 
+     * @param time the amount of time to wait in milliseconds
+     */
+    @Override
+    public synchronized void delay(int time) {
+        totalDelay += time;
+    }
+
+    /**
+     * Nothing is buffered, so there is nothing to flush
+     */
+    @Override
+    public void flush() {
+        // Events are recorded as they arrive
+    }
+
+    /**
+     * Records a batch of encoded events
+     * 
+     * @param events array holding the encoded events
+     * @param offset index of the first event to record
+     * @param length number of events to record
+     */
+    @Override
+    public synchronized void submit(int[] events, int offset, int length) {
+        ensureCapacity(eventCount + length);
+        System.arraycopy(events, offset, this.events, eventCount, length);
+        eventCount += length;
+    }
+
+    /**
+     * Records the presses and releases a run of text would be typed with, if the sink accepts text
+     * 
+     * @param text the text to type
+     * @return true if the sink accepts text
+     */
+    @Override
+    public synchronized boolean typeText(CharSequence text) {
+        if (!acceptsText) {
+            return false;
+        }
+        ensureCapacity(eventCount + 2 * text.length());
+        for (int i = 0; i < text.length(); i++) {
+            int keyCode = KeyEvent.getExtendedKeyCodeForChar(text.charAt(i));
+            record(KeySink.press(keyCode));
+            record(KeySink.release(keyCode));
+        }
+        textCount++;
+        return true;
+    }
+
+    /**
+     * Gets a copy of the encoded events recorded so far
+     * 
+     * @return the recorded events
+     */
+    public synchronized int[] getEvents() {
+        return Arrays.copyOf(events, eventCount);
+    }
+
+    /**
+     * Gets the number of events recorded so far
+     * 
+     * @return the number of events
+     */
+    public synchronized int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Gets the number of runs of text typed in one go so far
+     * 
+     * @return the number of runs of text
+     */
+    public synchronized int getTextCount() {
+        return textCount;
+    }
+
+    /**
+     * Gets the sum of every delay requested so far
+     * 
+     * @return the total delay in milliseconds
+     */
+    public synchronized long getTotalDelay() {
+        return totalDelay;
+    }
+
+    /**
+     * Forgets every event and delay recorded so far
+     */
+    public synchronized void clear() {
+        eventCount = 0;
+        totalDelay = 0;
+        textCount = 0;
+    }
+
+    /**
+     * Appends a single encoded event
+     * 
+     * @param event the encoded event
+     */
+    private void record(int event) {
+        ensureCapacity(eventCount + 1);
+        events[eventCount++] = event;
+    }
+
+    /**
+     * Grows the event buffer so it can hold at least the given number of events
+     * 
+     * @param capacity the number of events the buffer has to hold
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity > events.length) {
+            events = Arrays.copyOf(events, Math.max(capacity, events.length * 2));
+        }
+    }
+}
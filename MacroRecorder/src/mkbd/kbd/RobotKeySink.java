@@ -0,0 +1,215 @@
+package mkbd.kbd;
+import java.awt.AWTException;
+import java.awt.GraphicsEnvironment;
+import java.awt.Robot;
+import java.awt.Toolkit;
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.StringSelection;
+import java.awt.datatransfer.Transferable;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends key events to the operating system through java.awt.Robot.
+ * Creating a Robot is far more expensive than the events it sends, so a single Robot is kept
+ * for each thread using the sink and reused for every event that thread sends.
+ * Text is typed by pasting it from the system clipboard, whose previous contents are put back by a background thread
+ * once the paste has had time to be read, so the replay goes on meanwhile.
+ * 
+ * @author ABM
+ */
+public class RobotKeySink implements KeySink {
+
+    /** Longest delay accepted by a single call to Robot.delay, in milliseconds */
+    public static final int MAX_ROBOT_DELAY = 60000;
+    /** Time given to the focused window to read a paste before the clipboard changes again, in milliseconds */
+    public static final int PASTE_SETTLE_DELAY = 50;
+    /** Fewest characters pasted, since a paste costs a clipboard round trip and shorter runs are quicker to type */
+    public static final int MIN_PASTE_LENGTH = 64;
+
+    /** Puts the clipboard contents back once the last paste has settled */
+    private static final ScheduledExecutorService CLIPBOARD_RESTORER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "macro-clipboard-restore");
+        t.setDaemon(true);
+        return t;
+    });
+    /** Guards the clipboard state below, shared by every sink since there is a single clipboard */
+    private static final Object CLIPBOARD_LOCK = new Object();
+    /** Contents of the clipboard before the pastes not put back yet */
+    private static Transferable savedContents;
+    /** Restore waiting for the last paste to settle, null if the clipboard holds its own contents */
+    private static ScheduledFuture<?> pendingRestore;
+    /** Number of pastes so far, telling a restore whether a newer paste replaced it */
+    private static long pasteCount;
+    /** When the last paste was sent, in nanoseconds */
+    private static long lastPasteTime;
+
+    /** Robot belonging to each replay thread */
+    private final ThreadLocal<Robot> robots = ThreadLocal.withInitial(RobotKeySink::createRobot);
+
+    /**
+     * Creates the robot used by the calling thread
+     * 
+     * @return a new robot
+     * @throws IllegalStateException if the platform does not allow generating input events
+     */
+    private static Robot createRobot() {
+        try {
+            return new Robot();
+        } catch (AWTException | SecurityException e) {
+            throw new IllegalStateException("Unable to simulate keyboard input: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Presses a key
+     * 
+     * @param keyCode the key to press
+     */
+    @Override
+    public void keyPress(int keyCode) {
+        robots.get().keyPress(keyCode);
+    }
+
+    /**
+     * Releases a key
+     * 
+     * @param keyCode the key to release
+     */
+    @Override
+    public void keyRelease(int keyCode) {
+        robots.get().keyRelease(keyCode);
+    }
+
+    /**
+     * Waits for a given amount of time, splitting waits longer than Robot allows
+     * 
+     * @param time the amount of time to wait in milliseconds
+     */
+    @Override
+    public void delay(int time) {
+        Robot r = robots.get();
+        while (time > MAX_ROBOT_DELAY) {
+            r.delay(MAX_ROBOT_DELAY);
+            time -= MAX_ROBOT_DELAY;
+        }
+        r.delay(time);
+    }
+
+    /**
+     * Robot delivers each event as it is sent, so there is nothing left to flush
+     */
+    @Override
+    public void flush() {
+        // Events are already delivered
+    }
+
+    /**
+     * Sends a batch of encoded events with a single lookup of the calling thread's robot
+     * 
+     * @param events array holding the encoded events
+     * @param offset index of the first event to send
+     * @param length number of events to send
+     */
+    @Override
+    public void submit(int[] events, int offset, int length) {
+        Robot r = robots.get();
+        for (int i = offset; i < offset + length; i++) {
+            if (KeySink.isPress(events[i])) {
+                r.keyPress(events[i]);
+            } else {
+                r.keyRelease(KeySink.keyCode(events[i]));
+            }
+        }
+    }
+
+    /**
+     * Types text by putting it on the system clipboard and pressing the paste shortcut.
+     * The previous contents of the clipboard are put back PASTE_SETTLE_DELAY after the last paste, off the calling
+     * thread. Only a paste following another one within that delay waits, so the other can be read before the
+     * clipboard changes.
+     * 
+     * @param text the text to type
+     * @return true if the text was pasted, false if there is no clipboard, it is in use, or the thread was interrupted
+     */
+    @Override
+    public boolean typeText(CharSequence text) {
+        if (GraphicsEnvironment.isHeadless()) {
+            return false;
+        }
+        Toolkit toolkit = Toolkit.getDefaultToolkit();
+        Clipboard clipboard = toolkit.getSystemClipboard();
+        synchronized (CLIPBOARD_LOCK) {
+            if (pendingRestore != null) {
+                long settled = lastPasteTime + TimeUnit.MILLISECONDS.toNanos(PASTE_SETTLE_DELAY) - System.nanoTime();
+                if (settled > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(settled);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+            try {
+                Transferable saved = pendingRestore == null ? clipboard.getContents(null) : savedContents;
+                clipboard.setContents(new StringSelection(text.toString()), null);
+                savedContents = saved;
+            } catch (IllegalStateException e) {
+                return false;
+            }
+            int shortcut = toolkit.getMenuShortcutKeyMaskEx() == InputEvent.META_DOWN_MASK ? KeyEvent.VK_META : KeyEvent.VK_CONTROL;
+            Robot r = robots.get();
+            r.keyPress(shortcut);
+            r.keyPress(KeyEvent.VK_V);
+            r.keyRelease(KeyEvent.VK_V);
+            r.keyRelease(shortcut);
+            lastPasteTime = System.nanoTime();
+            if (pendingRestore != null) {
+                pendingRestore.cancel(false);
+            }
+            long paste = ++pasteCount;
+            pendingRestore = CLIPBOARD_RESTORER.schedule(() -> restoreClipboard(clipboard, paste),
+                    PASTE_SETTLE_DELAY, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Pastes are only worth their clipboard round trip for long runs of text
+     * 
+     * @return MIN_PASTE_LENGTH
+     */
+    @Override
+    public int getMinTextLength() {
+        return MIN_PASTE_LENGTH;
+    }
+
+    /**
+     * Puts back the contents the clipboard had before pasting, unless a newer paste is still settling
+     * 
+     * @param clipboard the system clipboard
+     * @param paste number of the paste the restore was scheduled for
+     */
+    private static void restoreClipboard(Clipboard clipboard, long paste) {
+        synchronized (CLIPBOARD_LOCK) {
+            if (paste != pasteCount) {
+                return;
+            }
+            pendingRestore = null;
+            Transferable saved = savedContents;
+            savedContents = null;
+            if (saved != null) {
+                try {
+                    clipboard.setContents(saved, null);
+                } catch (IllegalStateException e) {
+                    // The text stays on the clipboard, it was pasted all the same
+                }
+            }
+        }
+    }
+}
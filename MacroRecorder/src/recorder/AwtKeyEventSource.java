@@ -0,0 +1,65 @@
+package recorder;
+
+import java.awt.KeyEventDispatcher;
+import java.awt.KeyboardFocusManager;
+import java.awt.event.KeyEvent;
+
+import mkbd.kbd.KeySink;
+
+/**
+ * Captures the keys typed into the application's own windows.
+ * Events are taken on the event dispatch thread before any component sees them and are consumed,
+ * so typing while recording does not also edit the focused text field or press the focused button.
+ * Java has no portable global keyboard hook, so keys typed into other applications are not seen.
+ *
+ * @author ABM
+ *
+ */
+public class AwtKeyEventSource implements KeyEventSource, KeyEventDispatcher {
+
+	/** Ring events are offered to, null while stopped */
+	private volatile KeyEventRing ring;
+
+	/**
+	 * Starts capturing keys typed into the application
+	 * @param ring where events are offered
+	 * @throws IllegalStateException if the source is already started
+	 */
+	@Override
+	public synchronized void start(KeyEventRing ring) {
+		if (this.ring != null) {
+			throw new IllegalStateException("Key event source is already recording.");
+		}
+		this.ring = ring;
+		KeyboardFocusManager.getCurrentKeyboardFocusManager().addKeyEventDispatcher(this);
+	}
+
+	/**
+	 * Stops capturing keys
+	 */
+	@Override
+	public synchronized void stop() {
+		KeyboardFocusManager.getCurrentKeyboardFocusManager().removeKeyEventDispatcher(this);
+		ring = null;
+	}
+
+	/**
+	 * Offers key presses and releases to the ring and consumes every key event while recording
+	 * @param e the key event
+	 * @return true if the event was consumed
+	 */
+	@Override
+	public boolean dispatchKeyEvent(KeyEvent e) {
+		KeyEventRing r = ring;
+		if (r == null) {
+			return false;
+		}
+		long now = System.nanoTime();
+		if (e.getID() == KeyEvent.KEY_PRESSED) {
+			r.offer(KeySink.press(e.getKeyCode()), now);
+		} else if (e.getID() == KeyEvent.KEY_RELEASED) {
+			r.offer(KeySink.release(e.getKeyCode()), now);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,118 @@
+package recorder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size, lock-free queue of timestamped key events passed from a single capturing thread to a
+ * single consuming thread.
+ * Events and timestamps live in preallocated primitive arrays, so offering an event never allocates,
+ * never locks and never waits; if the consumer falls a whole ring behind the event is counted as dropped.
+ * Events are encoded as by KeySink, the key code for a press and its complement for a release.
+ *
+ * @author ABM
+ *
+ */
+public class KeyEventRing {
+
+	/** Default number of events the ring holds, enough for minutes of typing if the consumer stalls */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+	/** Encoded key events */
+	private final int[] events;
+	/** When each event happened, in System.nanoTime */
+	private final long[] times;
+	/** Capacity minus one, the ring's capacity is a power of two */
+	private final int mask;
+	/** Number of events ever offered, only written by the capturing thread */
+	private final AtomicLong tail = new AtomicLong();
+	/** Number of events ever taken, only written by the consuming thread */
+	private final AtomicLong head = new AtomicLong();
+	/** Number of events lost because the ring was full, only written by the capturing thread */
+	private volatile long dropped;
+
+	/**
+	 * Constructs a ring holding DEFAULT_CAPACITY events
+	 */
+	public KeyEventRing() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructs a ring
+	 * @param capacity smallest number of events the ring must hold, rounded up to a power of two
+	 * @throws IllegalArgumentException if capacity is not positive or too large
+	 */
+	public KeyEventRing(int capacity) {
+		if (capacity <= 0 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Invalid ring capacity.");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		events = new int[size];
+		times = new long[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds an event to the ring. Only one thread may offer events at a time.
+	 * @param event the encoded event
+	 * @param nanoTime when the event happened, in System.nanoTime
+	 * @return false if the ring was full and the event was dropped
+	 */
+	public boolean offer(int event, long nanoTime) {
+		long t = tail.get();
+		if (t - head.get() > mask) {
+			dropped++;
+			return false;
+		}
+		int slot = (int) t & mask;
+		events[slot] = event;
+		times[slot] = nanoTime;
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Takes up to max events from the ring, oldest first. Only one thread may drain the ring at a time.
+	 * @param eventsOut where to copy the events
+	 * @param timesOut where to copy the timestamps of the events
+	 * @param max largest number of events to take
+	 * @return the number of events taken
+	 */
+	public int drain(int[] eventsOut, long[] timesOut, int max) {
+		long h = head.get();
+		int count = (int) Math.min(tail.get() - h, max);
+		for (int i = 0; i < count; i++) {
+			int slot = (int) (h + i) & mask;
+			eventsOut[i] = events[slot];
+			timesOut[i] = times[slot];
+		}
+		head.lazySet(h + count);
+		return count;
+	}
+
+	/**
+	 * Tells if the ring has no events waiting
+	 * @return true if every offered event has been drained
+	 */
+	public boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+
+	/**
+	 * Gets the number of events the ring holds
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Gets the number of events lost because the ring was full
+	 * @return the number of dropped events
+	 */
+	public long getDroppedCount() {
+		return dropped;
+	}
+}
@@ -0,0 +1,24 @@
+package recorder;
+
+/**
+ * Somewhere keyboard input is captured from, such as a keyboard hook or a scripted test source.
+ * A source hands each key press and release to a KeyEventRing as soon as it happens, together with
+ * the System.nanoTime it happened at, from a single capturing thread.
+ *
+ * @author ABM
+ *
+ */
+public interface KeyEventSource {
+
+	/**
+	 * Starts capturing key events into a ring
+	 * @param ring where captured events are offered
+	 * @throws IllegalStateException if the source is already capturing or cannot capture input
+	 */
+	void start(KeyEventRing ring);
+
+	/**
+	 * Stops capturing key events. Events already offered to the ring are kept.
+	 */
+	void stop();
+}
@@ -0,0 +1,179 @@
+package recorder;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import macros.KeyTable;
+import macros.Macro;
+import macros.MacroProgram;
+import mkbd.kbd.KeySink;
+
+/**
+ * Turns a stream of timestamped key events into a macro.
+ * Shift, Ctrl and Alt are tracked as they are held and released, and every other key press becomes a
+ * key of the macro with the modifiers held at that moment. The time between key presses becomes a sleep,
+ * measured from the first key press and rounded to a whole number of resolution steps, so rounding does
+ * not add up over a long recording. Keys no macro string can express are skipped and counted.
+ *
+ * @author ABM
+ *
+ */
+public class MacroEncoder {
+
+	/** Name given to the macro the macro string is rebuilt from */
+	private static final String RECORDING_NAME = "recording";
+	/** Starting capacity of the instruction buffer */
+	private static final int INITIAL_CAPACITY = 64;
+	/** Length of one step of a sleep, in milliseconds */
+	private final int resolutionMillis;
+	/** Length of one step of a sleep, in nanoseconds */
+	private final long resolutionNanos;
+	/** Instructions encoded so far */
+	private int[] code = new int[INITIAL_CAPACITY];
+	/** Number of ints of code in use */
+	private int size;
+	/** KeyTable modifier flags currently held */
+	private int heldModifiers;
+	/** Whether a key has been pressed since the encoder was reset */
+	private boolean started;
+	/** When the first key was pressed, in System.nanoTime */
+	private long firstPress;
+	/** Time of the last key press from the first, rounded to the resolution, in milliseconds */
+	private long lastPressMillis;
+	/** Number of key presses which could not be encoded */
+	private int skipped;
+
+	/**
+	 * Constructs an encoder
+	 * @param resolutionMillis length of one step of a sleep, in milliseconds
+	 * @throws IllegalArgumentException if resolutionMillis is not positive
+	 */
+	public MacroEncoder(int resolutionMillis) {
+		if (resolutionMillis <= 0) {
+			throw new IllegalArgumentException("Invalid delay resolution.");
+		}
+		this.resolutionMillis = resolutionMillis;
+		this.resolutionNanos = TimeUnit.MILLISECONDS.toNanos(resolutionMillis);
+	}
+
+	/**
+	 * Adds an event to the macro
+	 * @param event the event, encoded as by KeySink
+	 * @param nanoTime when the event happened, in System.nanoTime
+	 */
+	public void accept(int event, long nanoTime) {
+		int keyCode = KeySink.keyCode(event);
+		int modifier = KeyTable.modifierFlag(keyCode);
+		if (modifier != 0) {
+			heldModifiers = KeySink.isPress(event) ? heldModifiers | modifier : heldModifiers & ~modifier;
+			return;
+		}
+		if (!KeySink.isPress(event)) {
+			return;
+		}
+		char plain = KeyTable.plainChar(keyCode);
+		if (plain == 0 && KeyTable.specialChar(keyCode) == 0) {
+			skipped++;
+			return;
+		}
+		if (!started) {
+			started = true;
+			firstPress = nanoTime;
+		} else {
+			long elapsed = Math.max(0, nanoTime - firstPress);
+			long pressMillis = (elapsed + resolutionNanos / 2) / resolutionNanos * resolutionMillis;
+			for (long sleep = pressMillis - lastPressMillis; sleep > 0; sleep -= Integer.MAX_VALUE) {
+				emit(MacroProgram.SLEEP, (int) Math.min(sleep, Integer.MAX_VALUE));
+			}
+			lastPressMillis = Math.max(lastPressMillis, pressMillis);
+		}
+		int modifiers = heldModifiers;
+		if (plain != 0 && (KeyTable.plainEntry(plain) & KeyTable.IGNORES_SHIFT) != 0) {
+			modifiers &= ~KeyTable.SHIFT;
+		}
+		if (modifiers == 0) {
+			emit(MacroProgram.TAP, keyCode);
+		} else if (modifiers == KeyTable.SHIFT) {
+			emit(MacroProgram.TAP_SHIFT, keyCode);
+		} else {
+			emit(MacroProgram.CHORD, keyCode | modifiers);
+		}
+	}
+
+	/**
+	 * Tells if no key has been encoded
+	 * @return true if the macro is empty
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Gets the program of the keys encoded so far
+	 * @return the program
+	 */
+	public MacroProgram toProgram() {
+		return MacroProgram.fromInstructions(code, size);
+	}
+
+	/**
+	 * Gets a macro of the keys encoded so far
+	 * @param name name of the macro
+	 * @return the macro
+	 * @throws IllegalArgumentException if name is invalid or no key has been encoded
+	 */
+	public Macro toMacro(String name) {
+		if (isEmpty()) {
+			throw new IllegalArgumentException("Empty Macro String.");
+		}
+		return Macro.fromProgram(name, toProgram());
+	}
+
+	/**
+	 * Gets the macro string of the keys encoded so far, with shifted keys written as shift runs
+	 * @return the macro string, empty if no key has been encoded
+	 */
+	public String toMacroString() {
+		return isEmpty() ? "" : toMacro(RECORDING_NAME).getMacroString();
+	}
+
+	/**
+	 * Gets the number of key presses which were skipped because no macro string can express them
+	 * @return the number of skipped keys
+	 */
+	public int getSkippedCount() {
+		return skipped;
+	}
+
+	/**
+	 * Gets the length of one step of a sleep
+	 * @return the resolution in milliseconds
+	 */
+	public int getResolutionMillis() {
+		return resolutionMillis;
+	}
+
+	/**
+	 * Forgets every encoded key and held modifier
+	 */
+	public void reset() {
+		size = 0;
+		heldModifiers = 0;
+		started = false;
+		lastPressMillis = 0;
+		skipped = 0;
+	}
+
+	/**
+	 * Appends an instruction to the macro
+	 * @param opcode opcode of the instruction
+	 * @param operand operand of the instruction
+	 */
+	private void emit(int opcode, int operand) {
+		if (size + MacroProgram.INSTRUCTION_WIDTH > code.length) {
+			code = Arrays.copyOf(code, code.length * 2);
+		}
+		code[size++] = opcode;
+		code[size++] = operand;
+	}
+}
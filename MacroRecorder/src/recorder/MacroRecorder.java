@@ -0,0 +1,145 @@
+package recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records keyboard input from a KeyEventSource into a macro string.
+ * The source only offers events to a preallocated KeyEventRing, so the capturing thread never allocates
+ * or blocks. A background thread drains the ring in batches and encodes the events with a MacroEncoder.
+ *
+ * @author ABM
+ *
+ */
+public class MacroRecorder {
+
+	/** Default length of one step of a recorded sleep, in milliseconds */
+	public static final int DEFAULT_RESOLUTION_MILLIS = 10;
+	/** Largest number of events drained from the ring at once */
+	private static final int DRAIN_BATCH = 1024;
+	/** How long the consumer waits before checking an empty ring again */
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	/** Where events are captured from */
+	private final KeyEventSource source;
+	/** Events captured but not yet encoded */
+	private final KeyEventRing ring;
+	/** Encodes drained events, only touched by the consumer while recording */
+	private final MacroEncoder encoder;
+	/** Thread draining the ring, null while not recording */
+	private Thread consumer;
+	/** Whether the source is still capturing */
+	private volatile boolean recording;
+
+	/**
+	 * Constructs a recorder with the default resolution and ring capacity
+	 * @param source where events are captured from
+	 */
+	public MacroRecorder(KeyEventSource source) {
+		this(source, DEFAULT_RESOLUTION_MILLIS, KeyEventRing.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructs a recorder
+	 * @param source where events are captured from
+	 * @param resolutionMillis length of one step of a recorded sleep, in milliseconds
+	 * @param capacity number of events the ring holds while waiting to be encoded
+	 * @throws IllegalArgumentException if source is null, or resolutionMillis or capacity is invalid
+	 */
+	public MacroRecorder(KeyEventSource source, int resolutionMillis, int capacity) {
+		if (source == null) {
+			throw new IllegalArgumentException("Invalid key event source.");
+		}
+		this.source = source;
+		this.ring = new KeyEventRing(capacity);
+		this.encoder = new MacroEncoder(resolutionMillis);
+	}
+
+	/**
+	 * Starts recording, forgetting anything recorded before
+	 * @throws IllegalStateException if the recorder is already recording or the source cannot capture input
+	 */
+	public synchronized void start() {
+		if (consumer != null) {
+			throw new IllegalStateException("Already recording.");
+		}
+		encoder.reset();
+		recording = true;
+		consumer = new Thread(this::consume, "macro-recorder");
+		consumer.setDaemon(true);
+		consumer.start();
+		try {
+			source.start(ring);
+		} catch (RuntimeException e) {
+			stop();
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops recording and waits for every captured event to be encoded
+	 * @return the recorded macro string, empty if nothing was recorded
+	 */
+	public synchronized String stop() {
+		if (consumer == null) {
+			return encoder.toMacroString();
+		}
+		source.stop();
+		recording = false;
+		LockSupport.unpark(consumer);
+		boolean interrupted = false;
+		while (consumer.isAlive()) {
+			try {
+				consumer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		consumer = null;
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return encoder.toMacroString();
+	}
+
+	/**
+	 * Tells if the recorder is recording
+	 * @return true between start and stop
+	 */
+	public boolean isRecording() {
+		return recording;
+	}
+
+	/**
+	 * Gets the number of events lost because the encoder fell a whole ring behind
+	 * @return the number of dropped events
+	 */
+	public long getDroppedCount() {
+		return ring.getDroppedCount();
+	}
+
+	/**
+	 * Gets the number of key presses of the last recording which no macro string can express.
+	 * Only accurate once recording has stopped.
+	 * @return the number of skipped keys
+	 */
+	public synchronized int getSkippedCount() {
+		return encoder.getSkippedCount();
+	}
+
+	/**
+	 * Drains the ring into the encoder until recording stops and the ring is empty
+	 */
+	private void consume() {
+		int[] events = new int[DRAIN_BATCH];
+		long[] times = new long[DRAIN_BATCH];
+		while (recording || !ring.isEmpty()) {
+			int n = ring.drain(events, times, DRAIN_BATCH);
+			if (n == 0) {
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+			for (int i = 0; i < n; i++) {
+				encoder.accept(events[i], times[i]);
+			}
+		}
+	}
+}
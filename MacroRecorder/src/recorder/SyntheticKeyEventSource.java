@@ -0,0 +1,97 @@
+package recorder;
+
+import mkbd.kbd.KeySink;
+
+/**
+ * Key event source driven by code instead of a keyboard, for recording without a display.
+ * Events are offered on the thread calling press, release or tap, with either the current time
+ * or a given timestamp, so tests can script exact timings.
+ *
+ * @author ABM
+ *
+ */
+public class SyntheticKeyEventSource implements KeyEventSource {
+
+	/** Ring events are offered to, null while stopped */
+	private volatile KeyEventRing ring;
+
+	/**
+	 * Starts passing events to a ring
+	 * @param ring where events are offered
+	 * @throws IllegalStateException if the source is already started
+	 */
+	@Override
+	public synchronized void start(KeyEventRing ring) {
+		if (this.ring != null) {
+			throw new IllegalStateException("Key event source is already recording.");
+		}
+		this.ring = ring;
+	}
+
+	/**
+	 * Stops passing events to the ring
+	 */
+	@Override
+	public synchronized void stop() {
+		ring = null;
+	}
+
+	/**
+	 * Presses a key now
+	 * @param keyCode the key
+	 * @return false if the event was not recorded
+	 */
+	public boolean press(int keyCode) {
+		return press(keyCode, System.nanoTime());
+	}
+
+	/**
+	 * Presses a key at a given time
+	 * @param keyCode the key
+	 * @param nanoTime when the key was pressed, in System.nanoTime
+	 * @return false if the event was not recorded
+	 */
+	public boolean press(int keyCode, long nanoTime) {
+		return offer(KeySink.press(keyCode), nanoTime);
+	}
+
+	/**
+	 * Releases a key now
+	 * @param keyCode the key
+	 * @return false if the event was not recorded
+	 */
+	public boolean release(int keyCode) {
+		return release(keyCode, System.nanoTime());
+	}
+
+	/**
+	 * Releases a key at a given time
+	 * @param keyCode the key
+	 * @param nanoTime when the key was released, in System.nanoTime
+	 * @return false if the event was not recorded
+	 */
+	public boolean release(int keyCode, long nanoTime) {
+		return offer(KeySink.release(keyCode), nanoTime);
+	}
+
+	/**
+	 * Presses then immediately releases a key at a given time
+	 * @param keyCode the key
+	 * @param nanoTime when the key was pressed, in System.nanoTime
+	 * @return false if either event was not recorded
+	 */
+	public boolean tap(int keyCode, long nanoTime) {
+		return press(keyCode, nanoTime) & release(keyCode, nanoTime);
+	}
+
+	/**
+	 * Offers an event to the ring if the source is started
+	 * @param event the encoded event
+	 * @param nanoTime when the event happened
+	 * @return false if the source is stopped or the ring is full
+	 */
+	private boolean offer(int event, long nanoTime) {
+		KeyEventRing r = ring;
+		return r != null && r.offer(event, nanoTime);
+	}
+}
@@ -0,0 +1,360 @@
+package replay;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+import macros.Macro;
+import macros.MacroLibrary;
+import macros.MacroProgram;
+import macros.MacroResolver;
+import mkbd.kbd.KeySink;
+
+/**
+ * Works out the timeline of a macro without sending any key or waiting for any sleep.
+ * The macro is replayed by a ReplayEngine timed by a VirtualReplayClock into a sink which records every event
+ * with the time it was sent, so the timeline is exactly the one a real replay at the same options aims for,
+ * calls and repeat blocks included. Dry runs are left out of ReplayMetrics and JFR.
+ * A dry run is stopped once it sends too many events, runs too many instructions or its timeline grows too long,
+ * so repeat blocks sending few or no keys cannot keep it going for hours.
+ * <p>
+ * Whole libraries are checked in parallel, for regression tests of macro files and for estimating durations.
+ * </p>
+ *
+ * @author ABM
+ *
+ */
+public class DryRunEngine {
+
+	/** Default most events a dry run may send before it is stopped, guarding against runaway repeat blocks */
+	public static final long DEFAULT_MAX_EVENTS = 1 << 22;
+	/** Default most instructions a dry run may run, repeat blocks and calls included */
+	public static final long DEFAULT_MAX_INSTRUCTIONS = 1 << 26;
+	/** Default longest timeline a dry run may simulate, in milliseconds */
+	public static final long DEFAULT_MAX_DURATION = TimeUnit.DAYS.toMillis(1);
+	/** Number of macros checked by each parallel task */
+	private static final int CHECK_CHUNK_SIZE = 64;
+	/** Starting capacity of a recorded timeline */
+	private static final int INITIAL_CAPACITY = 64;
+	/** Most events a full timeline can hold */
+	private static final int MAX_KEPT_EVENTS = Integer.MAX_VALUE - 8;
+
+	/** How fast the simulated replays run */
+	private final ReplayOptions options;
+	/** Most events a dry run may send */
+	private final long maxEvents;
+	/** Most instructions a dry run may run */
+	private final long maxInstructions;
+	/** Longest timeline a dry run may simulate, in nanoseconds */
+	private final long maxDurationNanos;
+
+	/**
+	 * Constructs an engine simulating real time replays
+	 */
+	public DryRunEngine() {
+		this(ReplayOptions.REAL_TIME);
+	}
+
+	/**
+	 * Constructs an engine stopping dry runs after DEFAULT_MAX_EVENTS events, DEFAULT_MAX_INSTRUCTIONS instructions
+	 * or DEFAULT_MAX_DURATION
+	 * @param options how fast the simulated replays run
+	 * @throws IllegalArgumentException if options is null
+	 */
+	public DryRunEngine(ReplayOptions options) {
+		this(options, DEFAULT_MAX_EVENTS);
+	}
+
+	/**
+	 * Constructs an engine stopping dry runs after DEFAULT_MAX_INSTRUCTIONS instructions or DEFAULT_MAX_DURATION
+	 * @param options how fast the simulated replays run
+	 * @param maxEvents most events a dry run may send before it is stopped
+	 * @throws IllegalArgumentException if options is null or maxEvents is negative
+	 */
+	public DryRunEngine(ReplayOptions options, long maxEvents) {
+		this(options, maxEvents, DEFAULT_MAX_INSTRUCTIONS, DEFAULT_MAX_DURATION);
+	}
+
+	/**
+	 * Constructs an engine
+	 * @param options how fast the simulated replays run
+	 * @param maxEvents most events a dry run may send before it is stopped
+	 * @param maxInstructions most instructions a dry run may run before it is stopped
+	 * @param maxDuration longest timeline a dry run may simulate before it is stopped, in milliseconds
+	 * @throws IllegalArgumentException if options is null or a limit is negative
+	 */
+	public DryRunEngine(ReplayOptions options, long maxEvents, long maxInstructions, long maxDuration) {
+		if (options == null) {
+			throw new IllegalArgumentException("Invalid replay options.");
+		}
+		if (maxEvents < 0) {
+			throw new IllegalArgumentException("Invalid event limit.");
+		}
+		if (maxInstructions < 0) {
+			throw new IllegalArgumentException("Invalid instruction limit.");
+		}
+		if (maxDuration < 0) {
+			throw new IllegalArgumentException("Invalid duration limit.");
+		}
+		this.options = options;
+		this.maxEvents = maxEvents;
+		this.maxInstructions = maxInstructions;
+		this.maxDurationNanos = TimeUnit.MILLISECONDS.toNanos(maxDuration);
+	}
+
+	/**
+	 * Works out the full timeline of a macro, with its calls set up by the macro
+	 * @param macro the macro
+	 * @return every event the macro sends and when
+	 * @throws InterruptedException if the thread is interrupted between two runs of a repeat block
+	 * @throws IllegalStateException if a called macro does not exist, calls are nested too deeply
+	 *             or the macro goes past a limit
+	 */
+	public MacroTimeline run(Macro macro) throws InterruptedException {
+		return run(macro.getReplayProgram(), macro.getResolver());
+	}
+
+	/**
+	 * Works out the full timeline of a program
+	 * @param program the program
+	 * @param resolver where called macros are looked up, null if the program may not call other macros
+	 * @return every event the program sends and when
+	 * @throws InterruptedException if the thread is interrupted between two runs of a repeat block
+	 * @throws IllegalStateException if a called macro does not exist, calls are nested too deeply
+	 *             or the program goes past a limit
+	 */
+	public MacroTimeline run(MacroProgram program, MacroResolver resolver) throws InterruptedException {
+		return simulate(program, resolver, true);
+	}
+
+	/**
+	 * Works out how many events a macro sends and how long it takes, without keeping the events
+	 * @param macro the macro
+	 * @return a summary timeline
+	 * @throws InterruptedException if the thread is interrupted between two runs of a repeat block
+	 * @throws IllegalStateException if a called macro does not exist, calls are nested too deeply
+	 *             or the macro goes past a limit
+	 */
+	public MacroTimeline measure(Macro macro) throws InterruptedException {
+		return simulate(macro.getReplayProgram(), macro.getResolver(), false);
+	}
+
+	/**
+	 * Measures every macro of a library in parallel
+	 * @param library the library
+	 * @return the result of each macro, in the order of the library
+	 */
+	public List<DryRunResult> checkLibrary(MacroLibrary library) {
+		return checkAll(library.snapshot(), false);
+	}
+
+	/**
+	 * Dry runs macros in parallel on the common fork join pool.
+	 * A macro which cannot be replayed gives a failed result rather than stopping the others.
+	 * @param macros the macros
+	 * @param keepEvents whether each result keeps the full timeline rather than a summary
+	 * @return the result of each macro, in the order of the collection
+	 */
+	public List<DryRunResult> checkAll(Collection<Macro> macros, boolean keepEvents) {
+		Macro[] all = macros.toArray(new Macro[0]);
+		List<ForkJoinTask<DryRunResult[]>> tasks = new ArrayList<>();
+		for (int start = 0; start < all.length; start += CHECK_CHUNK_SIZE) {
+			int chunkStart = start;
+			int chunkEnd = Math.min(all.length, start + CHECK_CHUNK_SIZE);
+			tasks.add(ForkJoinPool.commonPool().submit(() -> {
+				DryRunResult[] results = new DryRunResult[chunkEnd - chunkStart];
+				for (int i = chunkStart; i < chunkEnd; i++) {
+					results[i - chunkStart] = check(all[i], keepEvents);
+				}
+				return results;
+			}));
+		}
+		List<DryRunResult> results = new ArrayList<>(all.length);
+		for (ForkJoinTask<DryRunResult[]> task : tasks) {
+			results.addAll(Arrays.asList(task.join()));
+		}
+		return results;
+	}
+
+	/**
+	 * Dry runs a single macro, turning any failure into the result
+	 * @param macro the macro
+	 * @param keepEvents whether to keep the full timeline
+	 * @return the result
+	 */
+	private DryRunResult check(Macro macro, boolean keepEvents) {
+		try {
+			return new DryRunResult(macro, simulate(macro.getReplayProgram(), macro.getResolver(), keepEvents), null);
+		} catch (IllegalArgumentException | IllegalStateException e) {
+			return new DryRunResult(macro, null, e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new DryRunResult(macro, null, "Dry run interrupted.");
+		}
+	}
+
+	/**
+	 * Replays a program against a virtual clock into a recording sink, checking the limits after every step
+	 * @param program the program
+	 * @param resolver where called macros are looked up, may be null
+	 * @param keepEvents whether to keep the events or only count them
+	 * @return the timeline
+	 * @throws InterruptedException if the thread is interrupted between two runs of a repeat block
+	 * @throws IllegalStateException if a called macro does not exist, calls are nested too deeply
+	 *             or the program goes past a limit
+	 */
+	private MacroTimeline simulate(MacroProgram program, MacroResolver resolver, boolean keepEvents)
+			throws InterruptedException {
+		VirtualReplayClock clock = new VirtualReplayClock();
+		RecordingSink sink = new RecordingSink(clock, keepEvents);
+		ReplayCursor cursor = new ReplayCursor(sink, clock, options, program, resolver);
+		cursor.begin();
+		ReplayStatus outcome = ReplayStatus.FAILED;
+		ReplayReport report = null;
+		try {
+			// A step runs at most ReplayCursor.MAX_STEP_INSTRUCTIONS instructions, so the limits are never overshot by much
+			while (cursor.step(null)) {
+				checkLimits(cursor);
+			}
+			checkLimits(cursor);
+			report = cursor.finish();
+			outcome = ReplayStatus.COMPLETED;
+		} catch (InterruptedException e) {
+			outcome = ReplayStatus.CANCELLED;
+			throw e;
+		} finally {
+			cursor.end(outcome, report);
+		}
+		return sink.toTimeline(TimeUnit.NANOSECONDS.toMicros(report.getScheduledDuration()));
+	}
+
+	/**
+	 * Stops a dry run which ran too many instructions or whose timeline grew too long
+	 * @param cursor the cursor of the dry run, timed by a clock which started at 0
+	 * @throws IllegalStateException if the dry run went past a limit
+	 */
+	private void checkLimits(ReplayCursor cursor) {
+		if (cursor.getInstructionCount() > maxInstructions) {
+			throw new IllegalStateException("Macro runs more than " + maxInstructions + " instructions.");
+		}
+		if (cursor.getDeadline() > maxDurationNanos) {
+			throw new IllegalStateException(
+					"Macro runs for more than " + TimeUnit.NANOSECONDS.toMillis(maxDurationNanos) + " ms.");
+		}
+	}
+
+	/**
+	 * Sink recording the events it is sent with the time of a virtual clock
+	 */
+	private final class RecordingSink implements KeySink {
+
+		/** Clock giving the time of each event */
+		private final VirtualReplayClock clock;
+		/** Encoded events received, null if they are only counted */
+		private int[] events;
+		/** When each event was received, in microseconds, null if events are only counted */
+		private long[] times;
+		/** Number of events received */
+		private long count;
+		/** Most events the sink takes, capped by the size of an array when they are kept */
+		private final long limit;
+
+		/**
+		 * Constructs an empty sink
+		 * @param clock clock giving the time of each event
+		 * @param keepEvents whether to keep the events or only count them
+		 */
+		RecordingSink(VirtualReplayClock clock, boolean keepEvents) {
+			this.clock = clock;
+			this.limit = keepEvents ? Math.min(maxEvents, MAX_KEPT_EVENTS) : maxEvents;
+			if (keepEvents) {
+				events = new int[INITIAL_CAPACITY];
+				times = new long[INITIAL_CAPACITY];
+			}
+		}
+
+		/**
+		 * Records a press
+		 * @param keyCode the key
+		 */
+		@Override
+		public void keyPress(int keyCode) {
+			record(KeySink.press(keyCode));
+		}
+
+		/**
+		 * Records a release
+		 * @param keyCode the key
+		 */
+		@Override
+		public void keyRelease(int keyCode) {
+			record(KeySink.release(keyCode));
+		}
+
+		/**
+		 * Moves the clock forward rather than waiting, the engine never calls this
+		 * @param time the amount of time to wait in milliseconds
+		 */
+		@Override
+		public void delay(int time) {
+			clock.waitUntil(clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(time));
+		}
+
+		/**
+		 * Does nothing, events are recorded as they arrive
+		 */
+		@Override
+		public void flush() {
+			// Empty
+		}
+
+		/**
+		 * Records a batch of events, all sent at the current time
+		 * @param batch array holding the encoded events
+		 * @param offset index of the first event
+		 * @param length number of events
+		 */
+		@Override
+		public void submit(int[] batch, int offset, int length) {
+			if (count + length > limit) {
+				throw new IllegalStateException("Macro sends more than " + limit + " key events.");
+			}
+			if (events != null) {
+				int size = (int) count;
+				if (size + length > events.length) {
+					int capacity = (int) Math.min(MAX_KEPT_EVENTS, Math.max(events.length * 2L, size + length));
+					events = Arrays.copyOf(events, capacity);
+					times = Arrays.copyOf(times, capacity);
+				}
+				System.arraycopy(batch, offset, events, size, length);
+				Arrays.fill(times, size, size + length, TimeUnit.NANOSECONDS.toMicros(clock.nanoTime()));
+			}
+			count += length;
+		}
+
+		/**
+		 * Records a single event
+		 * @param event the encoded event
+		 */
+		private void record(int event) {
+			submit(new int[] { event }, 0, 1);
+		}
+
+		/**
+		 * Creates the timeline of the events recorded
+		 * @param durationMicros how long the replay took in microseconds
+		 * @return the timeline
+		 */
+		MacroTimeline toTimeline(long durationMicros) {
+			if (events == null) {
+				return new MacroTimeline(null, null, count, durationMicros);
+			}
+			return new MacroTimeline(Arrays.copyOf(events, (int) count), Arrays.copyOf(times, (int) count), count,
+					durationMicros);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package replay;
+
+import macros.Macro;
+
+/**
+ * Outcome of dry running one macro of a library, either its timeline or why it cannot be replayed.
+ *
+ * @author ABM
+ *
+ */
+public class DryRunResult {
+
+	/** The macro which was dry run */
+	private final Macro macro;
+	/** Timeline of the macro, null if it failed */
+	private final MacroTimeline timeline;
+	/** Why the macro cannot be replayed, null if it succeeded */
+	private final String error;
+
+	/**
+	 * Constructs a result
+	 * @param macro the macro which was dry run
+	 * @param timeline timeline of the macro, null if it failed
+	 * @param error why the macro cannot be replayed, null if it succeeded
+	 */
+	DryRunResult(Macro macro, MacroTimeline timeline, String error) {
+		this.macro = macro;
+		this.timeline = timeline;
+		this.error = error;
+	}
+
+	/**
+	 * Gets the macro which was dry run
+	 * @return the macro
+	 */
+	public Macro getMacro() {
+		return macro;
+	}
+
+	/**
+	 * Gets the timeline of the macro
+	 * @return the timeline, null if the macro cannot be replayed
+	 */
+	public MacroTimeline getTimeline() {
+		return timeline;
+	}
+
+	/**
+	 * Gets why the macro cannot be replayed
+	 * @return the error message, null if the dry run succeeded
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * Tells if the macro can be replayed
+	 * @return true if the dry run succeeded
+	 */
+	public boolean isPassed() {
+		return error == null;
+	}
+
+	/**
+	 * Gets the string representation of the result
+	 * @return the name of the macro followed by its timeline or error
+	 */
+	@Override
+	public String toString() {
+		return macro.getMacroName() + ": " + (error == null ? timeline : error);
+	}
+}
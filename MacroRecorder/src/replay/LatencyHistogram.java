@@ -0,0 +1,150 @@
+package replay;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative durations in nanoseconds, bucketed log-linearly like HdrHistogram.
+ * Values below 64 have a bucket each, and every higher power of two range is split into 32 equal buckets,
+ * so any recorded value is known to within about 3% while the whole range of a long fits in 1888 counters.
+ * Recording is a few shifts and an atomic increment, so it can be done from every replay at once.
+ *
+ * @author ABM
+ *
+ */
+public class LatencyHistogram {
+
+	/** Log base 2 of the number of buckets each power of two range is split into */
+	private static final int SUB_BUCKET_BITS = 5;
+	/** Number of buckets each power of two range is split into */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Number of buckets needed to cover every non-negative long */
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	/** Number of values recorded in each bucket */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	/** Number of values recorded */
+	private final AtomicLong totalCount = new AtomicLong();
+	/** Sum of the values recorded */
+	private final AtomicLong sum = new AtomicLong();
+	/** Largest value recorded */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value
+	 * @param value the duration in nanoseconds, negative values are recorded as 0
+	 */
+	public void record(long value) {
+		record(value, 1);
+	}
+
+	/**
+	 * Records a value several times
+	 * @param value the duration in nanoseconds, negative values are recorded as 0
+	 * @param count number of times to record it
+	 */
+	public void record(long value, long count) {
+		if (count <= 0) {
+			return;
+		}
+		long v = Math.max(0, value);
+		counts.addAndGet(bucket(v), count);
+		totalCount.addAndGet(count);
+		sum.addAndGet(v * count);
+		max.accumulateAndGet(v, Math::max);
+	}
+
+	/**
+	 * Gets the number of values recorded
+	 * @return the count
+	 */
+	public long getTotalCount() {
+		return totalCount.get();
+	}
+
+	/**
+	 * Gets the largest value recorded
+	 * @return the largest value in nanoseconds, 0 if nothing was recorded
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Gets the average of the recorded values
+	 * @return the mean in nanoseconds, 0 if nothing was recorded
+	 */
+	public double getMean() {
+		long n = totalCount.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Gets the value below which a percentage of the recorded values fall
+	 * @param percentile percentage of values, from 0 to 100
+	 * @return the highest value of the bucket holding the percentile, in nanoseconds, 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long n = totalCount.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Forgets every recorded value
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		totalCount.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * Finds the bucket of a value
+	 * @param value a non-negative value
+	 * @return index of its bucket
+	 */
+	static int bucket(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * Gets the highest value which falls in a bucket
+	 * @param bucket index of the bucket
+	 * @return the highest value
+	 */
+	static long highestValue(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * Gets a summary of the histogram
+	 * @return count, percentiles and maximum in microseconds
+	 */
+	@Override
+	public String toString() {
+		return "count " + getTotalCount() + ", p50 " + getValueAtPercentile(50) / 1000 + "us, p99 "
+				+ getValueAtPercentile(99) / 1000 + "us, max " + getMax() / 1000 + "us";
+	}
+}
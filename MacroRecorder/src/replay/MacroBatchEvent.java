@@ -0,0 +1,30 @@
+package replay;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event of a single run of key events being handed to the sink.
+ *
+ * @author ABM
+ *
+ */
+@Name("mrs.MacroBatch")
+@Label("Macro Key Batch")
+@Category("Macro Recorder")
+@Description("Run of key events between two sleeps of a replay")
+final class MacroBatchEvent extends Event {
+
+	/** Number of key events in the run */
+	@Label("Events")
+	int events;
+
+	/** How late the run was sent */
+	@Label("Lateness")
+	@Timespan(Timespan.NANOSECONDS)
+	long lateness;
+}
@@ -0,0 +1,43 @@
+package replay;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event covering a whole replay, from its first deadline to its end.
+ *
+ * @author ABM
+ *
+ */
+@Name("mrs.MacroReplay")
+@Label("Macro Replay")
+@Category("Macro Recorder")
+@Description("Replay of a compiled macro program")
+final class MacroReplayEvent extends Event {
+
+	/** Number of instructions in the program */
+	@Label("Instructions")
+	int instructions;
+
+	/** Number of key events sent */
+	@Label("Events Sent")
+	long eventsSent;
+
+	/** When the replay should have finished */
+	@Label("Scheduled Duration")
+	@Timespan(Timespan.NANOSECONDS)
+	long scheduledDuration;
+
+	/** Worst lateness of a run of key events */
+	@Label("Max Lateness")
+	@Timespan(Timespan.NANOSECONDS)
+	long maxLateness;
+
+	/** How the replay ended */
+	@Label("Outcome")
+	String outcome;
+}
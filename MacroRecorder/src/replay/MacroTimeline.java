@@ -0,0 +1,120 @@
+package replay;
+
+import mkbd.kbd.KeySink;
+
+/**
+ * Key events a replay sends and when it sends them, as worked out by a DryRunEngine.
+ * Events are encoded as in a KeySink batch and timed in microseconds from the start of the replay.
+ * A summary timeline only keeps the number of events and the duration.
+ *
+ * @author ABM
+ *
+ */
+public final class MacroTimeline {
+
+	/** Encoded events in the order they are sent, null for a summary */
+	private final int[] events;
+	/** When each event is sent, in microseconds from the start, null for a summary */
+	private final long[] times;
+	/** Number of events sent */
+	private final long eventCount;
+	/** How long the replay takes, trailing sleeps included, in microseconds */
+	private final long durationMicros;
+
+	/**
+	 * Constructs a timeline
+	 * @param events encoded events in the order they are sent, null for a summary
+	 * @param times when each event is sent in microseconds from the start, null for a summary
+	 * @param eventCount number of events sent
+	 * @param durationMicros how long the replay takes in microseconds
+	 */
+	MacroTimeline(int[] events, long[] times, long eventCount, long durationMicros) {
+		this.events = events;
+		this.times = times;
+		this.eventCount = eventCount;
+		this.durationMicros = durationMicros;
+	}
+
+	/**
+	 * Gets the number of key events the replay sends
+	 * @return the number of events
+	 */
+	public long getEventCount() {
+		return eventCount;
+	}
+
+	/**
+	 * Gets how long the replay takes, from its start to the end of its last sleep
+	 * @return the duration in microseconds
+	 */
+	public long getDurationMicros() {
+		return durationMicros;
+	}
+
+	/**
+	 * Tells if the timeline keeps its events or only their number and the duration
+	 * @return true if the events can be read
+	 */
+	public boolean hasEvents() {
+		return events != null;
+	}
+
+	/**
+	 * Gets an event encoded as in a KeySink batch
+	 * @param index position of the event, from 0
+	 * @return the encoded event
+	 * @throws IllegalStateException if the timeline is a summary
+	 * @throws IndexOutOfBoundsException if index is not below the event count
+	 */
+	public int getEvent(int index) {
+		if (events == null) {
+			throw new IllegalStateException("Timeline holds no events.");
+		}
+		return events[index];
+	}
+
+	/**
+	 * Gets the key of an event
+	 * @param index position of the event, from 0
+	 * @return the key code
+	 * @throws IllegalStateException if the timeline is a summary
+	 * @throws IndexOutOfBoundsException if index is not below the event count
+	 */
+	public int getKeyCode(int index) {
+		return KeySink.keyCode(getEvent(index));
+	}
+
+	/**
+	 * Tells if an event is a press
+	 * @param index position of the event, from 0
+	 * @return true for a press, false for a release
+	 * @throws IllegalStateException if the timeline is a summary
+	 * @throws IndexOutOfBoundsException if index is not below the event count
+	 */
+	public boolean isPress(int index) {
+		return KeySink.isPress(getEvent(index));
+	}
+
+	/**
+	 * Gets when an event is sent
+	 * @param index position of the event, from 0
+	 * @return the time in microseconds from the start of the replay
+	 * @throws IllegalStateException if the timeline is a summary
+	 * @throws IndexOutOfBoundsException if index is not below the event count
+	 */
+	public long getTimeMicros(int index) {
+		if (times == null) {
+			throw new IllegalStateException("Timeline holds no events.");
+		}
+		return times[index];
+	}
+
+	/**
+	 * Describes the timeline
+	 * @return the number of events and the duration
+	 */
+	@Override
+	public String toString() {
+		return eventCount + " events over " + durationMicros + " us";
+	}
+}
@@ -0,0 +1,34 @@
+package replay;
+
+/**
+ * Source of time for replaying macros.
+ * Every event of a replay is placed on an absolute timeline measured by the clock,
+ * and the replay waits on the clock until each event is due.
+ *
+ * @author ABM
+ *
+ */
+public interface ReplayClock {
+
+	/**
+	 * Gets the current time of the clock
+	 * @return the current time in nanoseconds, only meaningful relative to other readings of the same clock
+	 */
+	long nanoTime();
+
+	/**
+	 * Waits until the clock reaches a deadline, returning immediately if it already has
+	 * @param deadline the time to wait for, in nanoseconds
+	 * @throws InterruptedException if the waiting thread is interrupted
+	 */
+	void waitUntil(long deadline) throws InterruptedException;
+
+	/**
+	 * Tells if the clock follows real time.
+	 * Replays timed by a clock which does not, such as dry runs, are left out of ReplayMetrics and JFR.
+	 * @return true unless the clock is simulated
+	 */
+	default boolean isRealTime() {
+		return true;
+	}
+}
@@ -0,0 +1,648 @@
+package replay;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import jdk.jfr.FlightRecorder;
+
+import macros.KeyTable;
+import macros.Macro;
+import macros.MacroProgram;
+import macros.MacroResolver;
+import mkbd.kbd.KeySink;
+
+/**
+ * Where a single replay has got to in its program, so it can be replayed straight through by a ReplayEngine
+ * or a run of keys at a time by a ReplayScheduler taking turns with other replays.
+ * The cursor sends each run of key events at its deadline and records its timing, and keeps track of the keys
+ * its program holds down so they can be let go while another replay types and pressed again when it resumes.
+ * Every macro the program can call is looked up once when the cursor is created, so a library changing during
+ * the replay, such as a watched file being reloaded, leaves it calling the macros it started with.
+ *
+ * @author ABM
+ *
+ */
+final class ReplayCursor {
+
+	/** Smallest number of events sent at once, runs longer than the buffer are sent in several parts */
+	private static final int MIN_BATCH_CAPACITY = 256;
+	/** Starting capacity of the stacks and timing arrays */
+	private static final int INITIAL_CAPACITY = 8;
+	/** Most instructions run by one step, so repeat blocks sending few keys cannot hold the scheduling thread */
+	static final int MAX_STEP_INSTRUCTIONS = 1 << 16;
+
+	/** Where key events are sent */
+	private final KeySink sink;
+	/** Clock the timeline is measured against */
+	private final ReplayClock clock;
+	/** How fast the timeline runs */
+	private final ReplayOptions options;
+	/** Program the replay started with */
+	private final MacroProgram program;
+	/** Macros the program can call, directly or through other calls, by name, null for the names not found */
+	private final Map<String, Macro> callees;
+	/** Events waiting to be sent */
+	private final int[] batch;
+	/** Timing of the runs sent so far */
+	private final Timeline timeline;
+	/** Fewest plain keys in a row typed as text, as chosen by the sink */
+	private final int minTextRun;
+	/** Number of events waiting to be sent */
+	private int batchSize;
+	/** Number of events of the batch already sent, when a scheduler sends spaced events one step at a time */
+	private int batchSent;
+	/** Whether spaced events are sent one per step, set once a scheduler steps a replay with a minimum event gap */
+	private boolean paced;
+	/** Where to record metrics, null if disabled */
+	private ReplayMetrics metrics;
+	/** JFR event covering the whole replay, null if no flight recorder had started when the replay began */
+	private MacroReplayEvent event;
+	/** Whether to commit a JFR event for each run of key events */
+	private boolean batchEvents;
+	/** Callers of the current program, and where to resume them */
+	private MacroProgram[] callers = new MacroProgram[INITIAL_CAPACITY];
+	/** Instruction to resume each caller at */
+	private int[] returnPcs = new int[INITIAL_CAPACITY];
+	/** Number of open repeat blocks of each caller */
+	private int[] returnLoopDepths = new int[INITIAL_CAPACITY];
+	/** Number of callers */
+	private int callDepth;
+	/** Where the bodies of the open repeat blocks start */
+	private int[] loopStarts = new int[INITIAL_CAPACITY];
+	/** How many more times each open repeat block runs */
+	private int[] loopsLeft = new int[INITIAL_CAPACITY];
+	/** Number of open repeat blocks */
+	private int loopDepth;
+	/** Program being run */
+	private MacroProgram current;
+	/** Index of the next instruction of the current program */
+	private int pc;
+	/** Whether long runs of plain text are typed in one go, cleared once the sink turns text down */
+	private boolean text;
+	/** Keys pressed by PRESS instructions and not released yet, in the order they were pressed */
+	private int[] held = new int[INITIAL_CAPACITY];
+	/** Number of held keys */
+	private int heldCount;
+	/** Whether the held keys were let go for another replay and have to be pressed again */
+	private boolean suspended;
+	/** When the replay started */
+	private long start;
+	/** Deadline of the next run of key events, in nanoseconds from the start */
+	private long due;
+	/** Whether the end of the program has been reached */
+	private boolean ended;
+	/** Instructions the current step may still run */
+	private int stepBudget;
+	/** Set when the current step stopped early, before a sleep or the end of the program */
+	private boolean paused;
+	/** Instructions run since the replay started, calls and repeated runs included */
+	private long instructionCount;
+
+	/**
+	 * Constructs a cursor at the start of a program
+	 * @param sink where to send key events
+	 * @param clock clock the timeline is measured against
+	 * @param options how fast to replay
+	 * @param program the program to replay
+	 * @param resolver where called macros are looked up as the cursor is created, null if the program may not call other macros
+	 */
+	ReplayCursor(KeySink sink, ReplayClock clock, ReplayOptions options, MacroProgram program, MacroResolver resolver) {
+		this.sink = sink;
+		this.clock = clock;
+		this.options = options;
+		this.program = program;
+		this.callees = resolveCallees(program, resolver);
+		this.batch = new int[Math.max(MIN_BATCH_CAPACITY, program.getMaxBatchSize())];
+		this.timeline = new Timeline(Math.max(INITIAL_CAPACITY, program.getBatchCount()));
+		this.current = program;
+		// Text skips the gap between events, so paced replays send every key
+		this.text = options.isBulkText() && options.getMinEventGapNanos() == 0;
+		this.minTextRun = sink.getMinTextLength();
+	}
+
+	/**
+	 * Looks up every macro a program can reach through its calls
+	 * @param program the program
+	 * @param resolver where called macros are looked up, may be null
+	 * @return the macros by name, mapping the names not found to null
+	 */
+	private static Map<String, Macro> resolveCallees(MacroProgram program, MacroResolver resolver) {
+		if (resolver == null || program.getCallCount() == 0) {
+			return Collections.emptyMap();
+		}
+		Map<String, Macro> found = new HashMap<>();
+		Deque<MacroProgram> pending = new ArrayDeque<>();
+		pending.push(program);
+		while (!pending.isEmpty()) {
+			MacroProgram caller = pending.pop();
+			for (int i = 0; i < caller.getCallCount(); i++) {
+				String name = caller.getCall(i);
+				if (!found.containsKey(name)) {
+					Macro callee = resolver.resolve(name);
+					found.put(name, callee);
+					if (callee != null) {
+						pending.push(callee.getReplayProgram());
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Starts the replay's timeline and its recording into ReplayMetrics and JFR when they are enabled
+	 * and the clock follows real time
+	 */
+	void begin() {
+		boolean recorded = clock.isRealTime();
+		metrics = recorded ? ReplayMetrics.active() : null;
+		// Setting up the first event class takes longer than most replays, so it waits until a recording starts
+		if (recorded && FlightRecorder.isInitialized()) {
+			event = new MacroReplayEvent();
+			batchEvents = event.isEnabled() && new MacroBatchEvent().isEnabled();
+			event.begin();
+		}
+		if (metrics != null) {
+			metrics.replayStarted();
+		}
+		start = clock.nanoTime();
+	}
+
+	/**
+	 * Gets when the next run of key events is due, or when the replay finishes once it has ended
+	 * @return the deadline on the clock
+	 */
+	long getDeadline() {
+		return start + due;
+	}
+
+	/**
+	 * Gets how many instructions the replay has run, counting every run of a repeat block and every call
+	 * @return the number of instructions run so far
+	 */
+	long getInstructionCount() {
+		return instructionCount;
+	}
+
+	/**
+	 * Tells if every instruction has been replayed, leaving only the wait for the last sleep
+	 * @return true if the end of the program has been reached
+	 */
+	boolean isEnded() {
+		return ended;
+	}
+
+	/**
+	 * Replays up to and including the next sleep, sending the keys before it once they are due.
+	 * Each instruction's events are sent together, so a chord is never split by the keys of another replay.
+	 * A step stops early after MAX_STEP_INSTRUCTIONS instructions, or at the end of a run of a repeat block once yield
+	 * asks it to, leaving the rest of the keys before the sleep due straight away.
+	 * <p>
+	 * When a scheduler steps a replay whose events are spaced by a minimum gap, each step sends a single event,
+	 * so the scheduler never waits out a gap and can run other replays in between. Every key pressed and not
+	 * released yet then counts as held, so suspend lets go of the keys of a chord sent halfway.
+	 * </p>
+	 * @param yield tells when to stop early so another replay can go first, null to only stop after the instruction limit
+	 * @return true if there is more to replay, false once the end of the program is reached
+	 * @throws InterruptedException if the thread is interrupted while waiting for a deadline
+	 * @throws IllegalStateException if a called macro does not exist or calls are nested too deeply
+	 */
+	boolean step(BooleanSupplier yield) throws InterruptedException {
+		if (suspended) {
+			// The batch may still hold spaced events waiting to be sent
+			int[] presses = new int[heldCount];
+			for (int i = 0; i < heldCount; i++) {
+				presses[i] = KeySink.press(held[i]);
+			}
+			sink.submit(presses, 0, heldCount);
+			suspended = false;
+		}
+		if (yield != null && options.getMinEventGapNanos() > 0) {
+			paced = true;
+		}
+		if (batchSent < batchSize) {
+			sendPaced();
+			return true;
+		}
+		boolean progressed = false;
+		stepBudget = MAX_STEP_INSTRUCTIONS;
+		paused = false;
+		while (advance(yield)) {
+			if (progressed && yield != null && yield.getAsBoolean()) {
+				flush();
+				return true;
+			}
+			progressed = true;
+			int opcode = current.opcode(pc);
+			int operand = current.operand(pc);
+			if (text && heldCount == 0 && opcode == MacroProgram.TAP) {
+				int run = textRun();
+				if (run >= minTextRun) {
+					flush();
+					if (sendText(run)) {
+						pc += run;
+						continue;
+					}
+					text = false;
+				}
+			}
+			switch (opcode) {
+			case MacroProgram.TAP:
+			case MacroProgram.TAP_SHIFT:
+			case MacroProgram.CHORD:
+			case MacroProgram.PRESS:
+			case MacroProgram.RELEASE:
+				if (paced) {
+					batchSize = current.writeEvents(pc, batch, 0);
+					pc++;
+					sendPaced();
+					return true;
+				}
+				if (batchSize + MacroProgram.eventCount(opcode, operand) > batch.length) {
+					flush();
+				}
+				batchSize = current.writeEvents(pc, batch, batchSize);
+				if (opcode == MacroProgram.PRESS) {
+					hold(operand);
+				} else if (opcode == MacroProgram.RELEASE) {
+					letGo(operand);
+				}
+				break;
+			case MacroProgram.SLEEP:
+				flush();
+				due += options.scaleDelay(TimeUnit.MILLISECONDS.toNanos(operand));
+				pc++;
+				return true;
+			default:
+				throw new IllegalStateException("Unknown opcode " + opcode + ".");
+			}
+			pc++;
+		}
+		flush();
+		if (paused) {
+			return true;
+		}
+		ended = true;
+		return false;
+	}
+
+	/**
+	 * Lets go of the keys the program holds down, such as Shift held across several letters,
+	 * so another replay can type without them. They are pressed again at the start of the next step.
+	 */
+	void suspend() {
+		if (heldCount > 0 && !suspended) {
+			for (int i = 0; i < heldCount; i++) {
+				batch[i] = KeySink.release(held[heldCount - 1 - i]);
+			}
+			sink.submit(batch, 0, heldCount);
+			suspended = true;
+		}
+	}
+
+	/**
+	 * Waits for the last sleep of an ended replay and creates its report
+	 * @return the timing of the replay
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	ReplayReport finish() throws InterruptedException {
+		sink.flush();
+		clock.waitUntil(start + due);
+		return timeline.toReport(due, clock.nanoTime() - start);
+	}
+
+	/**
+	 * Records the outcome of a begun replay into ReplayMetrics and JFR
+	 * @param outcome how the replay stopped
+	 * @param report the timing of the replay, null unless it completed
+	 */
+	void end(ReplayStatus outcome, ReplayReport report) {
+		if (metrics != null) {
+			metrics.replayFinished(outcome);
+		}
+		if (event != null && event.shouldCommit()) {
+			event.instructions = program.length();
+			event.outcome = outcome.name();
+			if (report != null) {
+				event.eventsSent = report.getTotalEventCount();
+				event.scheduledDuration = report.getScheduledDuration();
+				event.maxLateness = report.getMaxLateness();
+			}
+			event.commit();
+		}
+	}
+
+	/**
+	 * Runs repeat blocks, calls and returns until the next instruction sends keys or sleeps
+	 * @param yield tells when to stop early at the end of a run of a repeat block, may be null
+	 * @return true if such an instruction was reached, false at the end of the program or if the step is paused
+	 * @throws InterruptedException if the thread is interrupted between two runs of a repeat block
+	 * @throws IllegalStateException if a called macro does not exist or calls are nested too deeply
+	 */
+	private boolean advance(BooleanSupplier yield) throws InterruptedException {
+		while (true) {
+			if (stepBudget-- == 0) {
+				paused = true;
+				return false;
+			}
+			instructionCount++;
+			if (pc == current.length()) {
+				if (callDepth == 0) {
+					return false;
+				}
+				callDepth--;
+				current = callers[callDepth];
+				pc = returnPcs[callDepth];
+				loopDepth = returnLoopDepths[callDepth];
+				continue;
+			}
+			switch (current.opcode(pc)) {
+			case MacroProgram.REPEAT:
+				if (loopDepth == loopStarts.length) {
+					loopStarts = Arrays.copyOf(loopStarts, loopDepth * 2);
+					loopsLeft = Arrays.copyOf(loopsLeft, loopDepth * 2);
+				}
+				loopStarts[loopDepth] = pc + 1;
+				loopsLeft[loopDepth++] = current.operand(pc);
+				pc++;
+				break;
+			case MacroProgram.END_REPEAT:
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				if (yield != null && stepBudget < MAX_STEP_INSTRUCTIONS - 1 && yield.getAsBoolean()) {
+					paused = true;
+					return false;
+				}
+				if (--loopsLeft[loopDepth - 1] > 0) {
+					pc = loopStarts[loopDepth - 1];
+				} else {
+					loopDepth--;
+					pc++;
+				}
+				break;
+			case MacroProgram.CALL:
+				call(current.getCall(current.operand(pc)));
+				break;
+			default:
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Moves into a called macro, to return just past the current instruction
+	 * @param name name of the called macro
+	 * @throws IllegalStateException if the macro does not exist or calls are nested too deeply
+	 */
+	private void call(String name) {
+		Macro callee = callees.get(name);
+		if (callee == null) {
+			throw new IllegalStateException("Macro " + name + " does not exist.");
+		}
+		if (callDepth == ReplayEngine.MAX_CALL_DEPTH) {
+			throw new IllegalStateException("Macro calls are nested too deeply.");
+		}
+		if (callDepth == callers.length) {
+			callers = Arrays.copyOf(callers, callDepth * 2);
+			returnPcs = Arrays.copyOf(returnPcs, callDepth * 2);
+			returnLoopDepths = Arrays.copyOf(returnLoopDepths, callDepth * 2);
+		}
+		callers[callDepth] = current;
+		returnPcs[callDepth] = pc + 1;
+		returnLoopDepths[callDepth++] = loopDepth;
+		current = callee.getReplayProgram();
+		pc = 0;
+	}
+
+	/**
+	 * Remembers a key pressed by the program
+	 * @param keyCode the key
+	 */
+	private void hold(int keyCode) {
+		if (heldCount == held.length) {
+			held = Arrays.copyOf(held, heldCount * 2);
+		}
+		held[heldCount++] = keyCode;
+	}
+
+	/**
+	 * Forgets a key released by the program
+	 * @param keyCode the key
+	 */
+	private void letGo(int keyCode) {
+		for (int i = heldCount - 1; i >= 0; i--) {
+			if (held[i] == keyCode) {
+				System.arraycopy(held, i + 1, held, i, heldCount - i - 1);
+				heldCount--;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Counts the plain keys in a row starting at the next instruction, which type a character each without any modifier
+	 * @return the number of instructions in the run
+	 */
+	private int textRun() {
+		int end = pc;
+		while (end < current.length() && current.opcode(end) == MacroProgram.TAP
+				&& KeyTable.plainChar(KeyTable.keyCode(current.operand(end))) != 0) {
+			end++;
+		}
+		return end - pc;
+	}
+
+	/**
+	 * Types a run of plain keys as text at its deadline and records its timing as the key events it replaces.
+	 * The keys after the run are due once the sink is done typing it.
+	 * @param run number of instructions in the run, starting at the next instruction
+	 * @return true if the sink typed the text, false if the keys have to be sent as events
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	private boolean sendText(int run) throws InterruptedException {
+		StringBuilder runText = new StringBuilder(run);
+		for (int i = pc; i < pc + run; i++) {
+			runText.append(KeyTable.plainChar(KeyTable.keyCode(current.operand(i))));
+		}
+		clock.waitUntil(start + due);
+		long sent = clock.nanoTime();
+		if (!sink.typeText(runText)) {
+			return false;
+		}
+		long typeTime = clock.nanoTime() - sent;
+		long late = sent - (start + due);
+		timeline.add(due, late, 2 * run);
+		recordBatch(late, typeTime, 2 * run);
+		due += typeTime;
+		return true;
+	}
+
+	/**
+	 * Sends the events waiting in the batch at their deadline and records their timing
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	private void flush() throws InterruptedException {
+		if (batchSize > 0) {
+			timeline.add(due, send(batchSize, start + due), batchSize);
+			due += options.getMinEventGapNanos() * batchSize;
+			batchSize = 0;
+		}
+	}
+
+	/**
+	 * Waits for a deadline then sends the batch, all at once or spaced by the minimum event gap
+	 * @param size number of events in the batch
+	 * @param deadline when the batch is due
+	 * @return how late the batch was sent, in nanoseconds, the worst of its events if they are spaced
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	private long send(int size, long deadline) throws InterruptedException {
+		long gap = options.getMinEventGapNanos();
+		long worst = 0;
+		long sendTime = 0;
+		if (gap == 0) {
+			clock.waitUntil(deadline);
+			long sent = clock.nanoTime();
+			sink.submit(batch, 0, size);
+			worst = sent - deadline;
+			if (metrics != null) {
+				sendTime = clock.nanoTime() - sent;
+			}
+		} else {
+			for (int i = 0; i < size; i++) {
+				long eventDeadline = deadline + gap * i;
+				clock.waitUntil(eventDeadline);
+				long sent = clock.nanoTime();
+				worst = Math.max(worst, sent - eventDeadline);
+				sink.submit(batch, i, 1);
+				if (metrics != null) {
+					sendTime += clock.nanoTime() - sent;
+				}
+			}
+		}
+		recordBatch(worst, sendTime, size);
+		return worst;
+	}
+
+	/**
+	 * Waits for the next event of the batch then sends it alone, keeping track of the keys it holds down
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	private void sendPaced() throws InterruptedException {
+		int event = batch[batchSent];
+		long deadline = start + due;
+		clock.waitUntil(deadline);
+		long sent = clock.nanoTime();
+		sink.submit(batch, batchSent, 1);
+		long sendTime = metrics != null ? clock.nanoTime() - sent : 0;
+		if (KeySink.isPress(event)) {
+			hold(KeySink.keyCode(event));
+		} else {
+			letGo(KeySink.keyCode(event));
+		}
+		timeline.add(due, sent - deadline, 1);
+		recordBatch(sent - deadline, sendTime, 1);
+		due += options.getMinEventGapNanos();
+		if (++batchSent == batchSize) {
+			batchSize = 0;
+			batchSent = 0;
+		}
+	}
+
+	/**
+	 * Records a sent batch into the metrics and JFR
+	 * @param lateness how late the batch was sent, in nanoseconds
+	 * @param sendTime how long the sink took to take the batch, in nanoseconds
+	 * @param size number of key events in the batch
+	 */
+	private void recordBatch(long lateness, long sendTime, int size) {
+		if (metrics != null) {
+			metrics.batchSent(lateness, sendTime, size);
+		}
+		if (batchEvents) {
+			MacroBatchEvent batchEvent = new MacroBatchEvent();
+			batchEvent.events = size;
+			batchEvent.lateness = lateness;
+			batchEvent.commit();
+		}
+	}
+
+	/**
+	 * Timing of the runs of key events of a single replay. The first ReplayReport.MAX_RECORDED_RUNS runs are kept
+	 * one by one and every run is added to running totals, so repeat blocks and calls, which make the number of runs
+	 * unknown up front, cannot grow it without bound.
+	 */
+	private static final class Timeline {
+
+		/** Deadline of each recorded run, in nanoseconds from the start of the replay */
+		private long[] deadlines;
+		/** How late each recorded run was sent, in nanoseconds */
+		private long[] lateness;
+		/** Number of key events in each recorded run */
+		private int[] eventCounts;
+		/** Number of runs recorded */
+		private int size;
+		/** Number of runs sent */
+		private long runCount;
+		/** Number of key events sent */
+		private long totalEventCount;
+		/** Sum of the lateness of every run */
+		private long totalLateness;
+		/** Worst lateness of any run */
+		private long maxLateness;
+
+		/**
+		 * Constructs an empty timeline
+		 * @param capacity number of runs expected
+		 */
+		Timeline(int capacity) {
+			int recorded = Math.min(capacity, ReplayReport.MAX_RECORDED_RUNS);
+			deadlines = new long[recorded];
+			lateness = new long[recorded];
+			eventCounts = new int[recorded];
+		}
+
+		/**
+		 * Records a run
+		 * @param deadline deadline of the run
+		 * @param late how late it was sent
+		 * @param events number of key events in it
+		 */
+		void add(long deadline, long late, int events) {
+			runCount++;
+			totalEventCount += events;
+			totalLateness += late;
+			maxLateness = Math.max(maxLateness, late);
+			if (size == ReplayReport.MAX_RECORDED_RUNS) {
+				return;
+			}
+			if (size == deadlines.length) {
+				int capacity = Math.min(size * 2, ReplayReport.MAX_RECORDED_RUNS);
+				deadlines = Arrays.copyOf(deadlines, capacity);
+				lateness = Arrays.copyOf(lateness, capacity);
+				eventCounts = Arrays.copyOf(eventCounts, capacity);
+			}
+			deadlines[size] = deadline;
+			lateness[size] = late;
+			eventCounts[size++] = events;
+		}
+
+		/**
+		 * Creates the report of the replay
+		 * @param scheduledDuration when the replay should have finished
+		 * @param actualDuration when it actually finished
+		 * @return the report
+		 */
+		ReplayReport toReport(long scheduledDuration, long actualDuration) {
+			return new ReplayReport(deadlines, lateness, eventCounts, size, runCount, totalEventCount, totalLateness,
+					maxLateness, scheduledDuration, actualDuration);
+		}
+	}
+}
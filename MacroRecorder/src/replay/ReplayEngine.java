@@ -0,0 +1,128 @@
+package replay;
+
+import macros.Macro;
+import macros.MacroProgram;
+import macros.MacroResolver;
+import mkbd.kbd.KeySink;
+
+/**
+ * Replays compiled macro programs on an absolute timeline.
+ * Every sleep moves the next deadline forward from the start of the replay rather than from the
+ * moment the previous event was sent, so the time spent sending keys and waking up does not add
+ * up over long macros.
+ * Repeat blocks and calls to other macros are run in place with loop counters and a call stack,
+ * so a macro repeated or called many times is never expanded.
+ * Replays whose options allow it have long runs of plain text typed in one go when the sink can, since a
+ * paste costs about as much as a single key while typing the run key by key costs a round trip per key.
+ *
+ * @author ABM
+ *
+ */
+public class ReplayEngine {
+
+	/** Deepest nesting of calls to other macros allowed, guarding against cycles no library caught */
+	public static final int MAX_CALL_DEPTH = 256;
+
+	/** Where key events are sent */
+	private final KeySink sink;
+	/** Clock the timeline is measured against */
+	private final ReplayClock clock;
+	/** How fast the timeline runs */
+	private final ReplayOptions options;
+
+	/**
+	 * Constructs an engine which times replays with the system clock
+	 * @param sink where to send key events
+	 */
+	public ReplayEngine(KeySink sink) {
+		this(sink, SystemReplayClock.INSTANCE);
+	}
+
+	/**
+	 * Constructs an engine which replays in real time
+	 * @param sink where to send key events
+	 * @param clock clock the timeline is measured against
+	 * @throws IllegalArgumentException if sink or clock is null
+	 */
+	public ReplayEngine(KeySink sink, ReplayClock clock) {
+		this(sink, clock, ReplayOptions.REAL_TIME);
+	}
+
+	/**
+	 * Constructs an engine
+	 * @param sink where to send key events
+	 * @param clock clock the timeline is measured against
+	 * @param options how fast to replay
+	 * @throws IllegalArgumentException if sink, clock or options is null
+	 */
+	public ReplayEngine(KeySink sink, ReplayClock clock, ReplayOptions options) {
+		if (sink == null) {
+			throw new IllegalArgumentException("Invalid key sink.");
+		}
+		if (clock == null) {
+			throw new IllegalArgumentException("Invalid replay clock.");
+		}
+		if (options == null) {
+			throw new IllegalArgumentException("Invalid replay options.");
+		}
+		this.sink = sink;
+		this.clock = clock;
+		this.options = options;
+	}
+
+	/**
+	 * Replays a program on the calling thread, recording it into ReplayMetrics and JFR when they are enabled.
+	 * Key events between two sleeps are sent to the sink as a single batch once their deadline is reached,
+	 * or one at a time a minimum gap apart if the options ask for one. Sleeps are scaled by the speed of the options.
+	 *
+	 * @param program the program to replay
+	 * @return the timing of the replay
+	 * @throws InterruptedException if the thread is interrupted while waiting for a deadline
+	 */
+	public ReplayReport run(MacroProgram program) throws InterruptedException {
+		return run(program, null);
+	}
+
+	/**
+	 * Replays a macro on the calling thread, with its calls set up by the macro.
+	 *
+	 * @param macro the macro to replay
+	 * @return the timing of the replay
+	 * @throws InterruptedException if the thread is interrupted while waiting for a deadline
+	 * @throws IllegalStateException if a called macro does not exist or calls are nested too deeply
+	 */
+	public ReplayReport run(Macro macro) throws InterruptedException {
+		return run(macro.getReplayProgram(), macro.getResolver());
+	}
+
+	/**
+	 * Replays a program on the calling thread, looking up the macros it calls with a resolver.
+	 * Long runs of plain text are typed in one go when the options ask for it, no key is held and the sink
+	 * can type text. Otherwise the keys of the run are sent as events like any other.
+	 *
+	 * @param program the program to replay
+	 * @param resolver where called macros are looked up, null if the program may not call other macros
+	 * @return the timing of the replay
+	 * @throws InterruptedException if the thread is interrupted while waiting for a deadline
+	 * @throws IllegalStateException if a called macro does not exist or calls are nested too deeply
+	 */
+	public ReplayReport run(MacroProgram program, MacroResolver resolver) throws InterruptedException {
+		ReplayCursor cursor = new ReplayCursor(sink, clock, options, program, resolver);
+		cursor.begin();
+		ReplayStatus outcome = ReplayStatus.FAILED;
+		ReplayReport report = null;
+		try {
+			while (cursor.step(null)) {
+				// Each step sends the keys up to the next sleep
+			}
+			report = cursor.finish();
+			outcome = ReplayStatus.COMPLETED;
+			return report;
+		} catch (InterruptedException e) {
+			outcome = ReplayStatus.CANCELLED;
+			throw e;
+		} finally {
+			cursor.end(outcome, report);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package replay;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+import macros.Macro;
+
+/**
+ * Tracks a single replay submitted to a ReplayScheduler.
+ * The handle gives the status of the replay, a future completed with its ReplayReport,
+ * and a way to stop it whether it is still queued or already sending keys.
+ * Once the replay has stopped its status never changes again, so a replay cancelled as it finishes
+ * reports one outcome only.
+ *
+ * @author ABM
+ *
+ */
+public class ReplayHandle {
+
+	/** Macro being replayed */
+	private final Macro macro;
+	/** Scheduler taking turns between the macro and other replays */
+	private final ReplayScheduler scheduler;
+	/** Set when a replay run by a scheduler is asked to stop, the scheduler stops it before its next key */
+	private volatile boolean cancelRequested;
+	/** Completed with the report of the replay, or exceptionally if it fails or is cancelled */
+	private final CompletableFuture<ReplayReport> completion = new CompletableFuture<>();
+	/** Current stage of the replay, only changed while holding the handle's lock */
+	private volatile ReplayStatus status = ReplayStatus.QUEUED;
+
+	/**
+	 * Constructs a handle for a replay a scheduler has not started yet
+	 * @param macro macro to replay
+	 * @param scheduler scheduler which replays it
+	 */
+	ReplayHandle(Macro macro, ReplayScheduler scheduler) {
+		this.macro = macro;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Stops the replay.
+	 * A queued replay never starts, and a running one is stopped by the scheduler before its next key.
+	 * @return true if the replay was queued or running, false if it had already stopped
+	 */
+	public synchronized boolean cancel() {
+		if (status == ReplayStatus.QUEUED) {
+			cancelled();
+			return true;
+		}
+		if (status == ReplayStatus.RUNNING) {
+			cancelRequested = true;
+			scheduler.wake();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Moves a queued replay to running, done by a scheduler before its first key
+	 * @return false if the replay was cancelled while queued
+	 */
+	synchronized boolean started() {
+		if (status != ReplayStatus.QUEUED) {
+			return false;
+		}
+		status = ReplayStatus.RUNNING;
+		return true;
+	}
+
+	/**
+	 * Tells if a replay run by a scheduler has been asked to stop
+	 * @return true if cancel was called while it was running
+	 */
+	boolean isCancelRequested() {
+		return cancelRequested;
+	}
+
+	/**
+	 * Completes the replay, unless it already stopped
+	 * @param report timing of the replay
+	 */
+	synchronized void completed(ReplayReport report) {
+		if (!status.isDone()) {
+			status = ReplayStatus.COMPLETED;
+			completion.complete(report);
+		}
+	}
+
+	/**
+	 * Stops the replay as cancelled, unless it already stopped
+	 */
+	synchronized void cancelled() {
+		if (!status.isDone()) {
+			status = ReplayStatus.CANCELLED;
+			completion.completeExceptionally(new CancellationException("Replay of " + macro.getMacroName() + " was cancelled."));
+		}
+	}
+
+	/**
+	 * Stops the replay as failed, unless it already stopped
+	 * @param failure what made it fail
+	 */
+	synchronized void failed(Throwable failure) {
+		if (!status.isDone()) {
+			status = ReplayStatus.FAILED;
+			completion.completeExceptionally(failure);
+		}
+	}
+
+	/**
+	 * Gets the macro being replayed
+	 * @return the macro
+	 */
+	public Macro getMacro() {
+		return macro;
+	}
+
+	/**
+	 * Gets the current stage of the replay
+	 * @return the status
+	 */
+	public ReplayStatus getStatus() {
+		return status;
+	}
+
+	/**
+	 * Gets a future completed with the report of the replay.
+	 * It completes exceptionally with the failure if the replay throws, and with a
+	 * CancellationException if it is cancelled. Cancelling the returned future does not stop the replay, use cancel for that.
+	 * @return the completion future
+	 */
+	public CompletableFuture<ReplayReport> getCompletion() {
+		return completion.copy();
+	}
+}
@@ -0,0 +1,313 @@
+package replay;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency distributions of every replay in the application.
+ * Engines record into the shared instance while it is enabled and skip it altogether while it is not,
+ * so disabled metrics cost a single volatile read per replay. Metrics are enabled unless the system
+ * property {@value #ENABLED_PROPERTY} is false, and are published through JMX as {@value #OBJECT_NAME}
+ * once they have been enabled.
+ * Each replay and each run of key events is also committed as a JFR event whenever a flight recording
+ * has them enabled.
+ *
+ * @author ABM
+ *
+ */
+public final class ReplayMetrics implements ReplayMetricsMXBean {
+
+	/** System property which turns metrics off when set to false */
+	public static final String ENABLED_PROPERTY = "macro.replay.metrics";
+	/** Name the metrics are registered under with the platform MBean server */
+	public static final String OBJECT_NAME = "mrs:type=ReplayMetrics";
+	/** Shared instance */
+	private static final ReplayMetrics INSTANCE = new ReplayMetrics();
+	/** Whether engines record metrics */
+	private volatile boolean enabled = !"false".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY));
+	/** Number of key events sent */
+	private final LongAdder eventsSent = new LongAdder();
+	/** Number of replays started */
+	private final LongAdder started = new LongAdder();
+	/** Number of replays finished normally */
+	private final LongAdder completed = new LongAdder();
+	/** Number of replays which threw an error */
+	private final LongAdder failed = new LongAdder();
+	/** Number of replays which were interrupted */
+	private final LongAdder cancelled = new LongAdder();
+	/** Number of replays running */
+	private final AtomicInteger inFlight = new AtomicInteger();
+	/** How late each run of key events was sent */
+	private final LatencyHistogram lateness = new LatencyHistogram();
+	/** How long the sink took per key event */
+	private final LatencyHistogram sendLatency = new LatencyHistogram();
+	/** Whether the shared instance has been registered with the platform MBean server */
+	private static boolean registered;
+
+	static {
+		// Starting the platform MBean server takes longer than a short replay, so runs with metrics off skip it
+		if (INSTANCE.enabled) {
+			register();
+		}
+	}
+
+	/**
+	 * Registers the shared instance with the platform MBean server, unless it already is
+	 */
+	private static synchronized void register() {
+		if (registered) {
+			return;
+		}
+		registered = true;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+		} catch (JMException | SecurityException e) {
+			// Metrics are still recorded and readable in process without JMX
+		}
+	}
+
+	/**
+	 * Constructs the shared instance
+	 */
+	private ReplayMetrics() {
+		// Empty
+	}
+
+	/**
+	 * Gets the shared metrics
+	 * @return the metrics
+	 */
+	public static ReplayMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Gets the shared metrics if they are enabled, so engines can skip recording with a null check
+	 * @return the metrics, or null if disabled
+	 */
+	static ReplayMetrics active() {
+		return INSTANCE.enabled ? INSTANCE : null;
+	}
+
+	/**
+	 * Records the start of a replay
+	 */
+	void replayStarted() {
+		started.increment();
+		inFlight.incrementAndGet();
+	}
+
+	/**
+	 * Records the end of a replay
+	 * @param outcome COMPLETED, FAILED or CANCELLED
+	 */
+	void replayFinished(ReplayStatus outcome) {
+		inFlight.decrementAndGet();
+		switch (outcome) {
+		case COMPLETED:
+			completed.increment();
+			break;
+		case CANCELLED:
+			cancelled.increment();
+			break;
+		default:
+			failed.increment();
+			break;
+		}
+	}
+
+	/**
+	 * Records a run of key events being sent
+	 * @param latenessNanos how late the run was sent
+	 * @param sendNanos how long the sink took to accept the run
+	 * @param events number of key events in the run
+	 */
+	void batchSent(long latenessNanos, long sendNanos, int events) {
+		eventsSent.add(events);
+		lateness.record(latenessNanos);
+		sendLatency.record(sendNanos / events, events);
+	}
+
+	/**
+	 * Gets the distribution of how late runs of key events were sent
+	 * @return the histogram in nanoseconds
+	 */
+	public LatencyHistogram getLateness() {
+		return lateness;
+	}
+
+	/**
+	 * Gets the distribution of how long the sink took per key event
+	 * @return the histogram in nanoseconds
+	 */
+	public LatencyHistogram getSendLatency() {
+		return sendLatency;
+	}
+
+	/**
+	 * Tells if metrics are being recorded
+	 * @return true if enabled
+	 */
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Turns recording metrics on or off
+	 * @param enabled true to record metrics
+	 */
+	@Override
+	public void setEnabled(boolean enabled) {
+		if (enabled) {
+			register();
+		}
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Gets the number of key events sent
+	 * @return the number of events
+	 */
+	@Override
+	public long getEventsSent() {
+		return eventsSent.sum();
+	}
+
+	/**
+	 * Gets the number of replays started
+	 * @return the number of replays
+	 */
+	@Override
+	public long getReplaysStarted() {
+		return started.sum();
+	}
+
+	/**
+	 * Gets the number of replays which finished normally
+	 * @return the number of replays
+	 */
+	@Override
+	public long getReplaysCompleted() {
+		return completed.sum();
+	}
+
+	/**
+	 * Gets the number of replays which threw an error
+	 * @return the number of replays
+	 */
+	@Override
+	public long getReplaysFailed() {
+		return failed.sum();
+	}
+
+	/**
+	 * Gets the number of replays which were interrupted
+	 * @return the number of replays
+	 */
+	@Override
+	public long getReplaysCancelled() {
+		return cancelled.sum();
+	}
+
+	/**
+	 * Gets the number of replays running right now
+	 * @return the number of replays
+	 */
+	@Override
+	public int getInFlightReplays() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Gets the median lateness of runs of key events
+	 * @return the lateness in microseconds
+	 */
+	@Override
+	public long getLatenessP50Micros() {
+		return lateness.getValueAtPercentile(50) / 1000;
+	}
+
+	/**
+	 * Gets the 99th percentile lateness of runs of key events
+	 * @return the lateness in microseconds
+	 */
+	@Override
+	public long getLatenessP99Micros() {
+		return lateness.getValueAtPercentile(99) / 1000;
+	}
+
+	/**
+	 * Gets the 99.9th percentile lateness of runs of key events
+	 * @return the lateness in microseconds
+	 */
+	@Override
+	public long getLatenessP999Micros() {
+		return lateness.getValueAtPercentile(99.9) / 1000;
+	}
+
+	/**
+	 * Gets the worst lateness of runs of key events
+	 * @return the lateness in microseconds
+	 */
+	@Override
+	public long getLatenessMaxMicros() {
+		return lateness.getMax() / 1000;
+	}
+
+	/**
+	 * Gets the median time the sink took per key event
+	 * @return the latency in microseconds
+	 */
+	@Override
+	public long getSendLatencyP50Micros() {
+		return sendLatency.getValueAtPercentile(50) / 1000;
+	}
+
+	/**
+	 * Gets the 99th percentile time the sink took per key event
+	 * @return the latency in microseconds
+	 */
+	@Override
+	public long getSendLatencyP99Micros() {
+		return sendLatency.getValueAtPercentile(99) / 1000;
+	}
+
+	/**
+	 * Gets the worst time the sink took per key event
+	 * @return the latency in microseconds
+	 */
+	@Override
+	public long getSendLatencyMaxMicros() {
+		return sendLatency.getMax() / 1000;
+	}
+
+	/**
+	 * Forgets every recorded count and distribution, except replays in flight
+	 */
+	@Override
+	public void reset() {
+		eventsSent.reset();
+		started.reset();
+		completed.reset();
+		failed.reset();
+		cancelled.reset();
+		lateness.reset();
+		sendLatency.reset();
+	}
+
+	/**
+	 * Gets a summary of the metrics
+	 * @return the summary
+	 */
+	@Override
+	public String toString() {
+		return "Replays started " + getReplaysStarted() + ", completed " + getReplaysCompleted() + ", failed "
+				+ getReplaysFailed() + ", cancelled " + getReplaysCancelled() + ", in flight " + getInFlightReplays()
+				+ ", events sent " + getEventsSent() + ", lateness " + lateness + ", send latency " + sendLatency;
+	}
+}
@@ -0,0 +1,106 @@
+package replay;
+
+/**
+ * Management interface of ReplayMetrics, registered with the platform MBean server as
+ * {@value ReplayMetrics#OBJECT_NAME}. Durations are in microseconds.
+ *
+ * @author ABM
+ *
+ */
+public interface ReplayMetricsMXBean {
+
+	/**
+	 * Tells if metrics are being recorded
+	 * @return true if enabled
+	 */
+	boolean isEnabled();
+
+	/**
+	 * Turns recording metrics on or off
+	 * @param enabled true to record metrics
+	 */
+	void setEnabled(boolean enabled);
+
+	/**
+	 * Gets the number of key events sent
+	 * @return the number of events
+	 */
+	long getEventsSent();
+
+	/**
+	 * Gets the number of replays started
+	 * @return the number of replays
+	 */
+	long getReplaysStarted();
+
+	/**
+	 * Gets the number of replays which finished normally
+	 * @return the number of replays
+	 */
+	long getReplaysCompleted();
+
+	/**
+	 * Gets the number of replays which threw an error
+	 * @return the number of replays
+	 */
+	long getReplaysFailed();
+
+	/**
+	 * Gets the number of replays which were interrupted
+	 * @return the number of replays
+	 */
+	long getReplaysCancelled();
+
+	/**
+	 * Gets the number of replays running right now
+	 * @return the number of replays
+	 */
+	int getInFlightReplays();
+
+	/**
+	 * Gets the median lateness of runs of key events
+	 * @return the lateness in microseconds
+	 */
+	long getLatenessP50Micros();
+
+	/**
+	 * Gets the 99th percentile lateness of runs of key events
+	 * @return the lateness in microseconds
+	 */
+	long getLatenessP99Micros();
+
+	/**
+	 * Gets the 99.9th percentile lateness of runs of key events
+	 * @return the lateness in microseconds
+	 */
+	long getLatenessP999Micros();
+
+	/**
+	 * Gets the worst lateness of runs of key events
+	 * @return the lateness in microseconds
+	 */
+	long getLatenessMaxMicros();
+
+	/**
+	 * Gets the median time the sink took per key event
+	 * @return the latency in microseconds
+	 */
+	long getSendLatencyP50Micros();
+
+	/**
+	 * Gets the 99th percentile time the sink took per key event
+	 * @return the latency in microseconds
+	 */
+	long getSendLatencyP99Micros();
+
+	/**
+	 * Gets the worst time the sink took per key event
+	 * @return the latency in microseconds
+	 */
+	long getSendLatencyMaxMicros();
+
+	/**
+	 * Forgets every recorded count and distribution, except replays in flight
+	 */
+	void reset();
+}
@@ -0,0 +1,149 @@
+package replay;
+
+import mkbd.kbd.KeySink;
+
+/**
+ * How fast a replay runs.
+ * Every sleep of a macro is divided by the speed, so a speed of 2 replays a macro twice as fast and a
+ * speed of 0.5 half as fast. An infinite speed ignores sleeps altogether and sends events as fast as the
+ * sink accepts them, optionally leaving a minimum gap between events for targets which drop input
+ * that arrives too quickly. Long runs of plain text can be typed in one go, such as by pasting them,
+ * which is much faster but leaves their keys without times of their own.
+ *
+ * @author ABM
+ *
+ */
+public final class ReplayOptions {
+
+	/** Replays every sleep for exactly as long as the macro says */
+	public static final ReplayOptions REAL_TIME = new ReplayOptions(1, 0);
+	/** Factor every sleep is divided by */
+	private final double speed;
+	/** Smallest time between two key events, in nanoseconds */
+	private final long minEventGapNanos;
+	/** Whether long runs of plain text are typed in one go when the sink can, rather than key by key */
+	private final boolean bulkText;
+
+	/**
+	 * Constructs options
+	 * @param speed factor every sleep is divided by, Double.POSITIVE_INFINITY to ignore sleeps
+	 * @param minEventGapNanos smallest time between two key events, in nanoseconds, 0 to send runs of
+	 * events between sleeps all at once
+	 * @throws IllegalArgumentException if speed is not positive or minEventGapNanos is negative
+	 */
+	public ReplayOptions(double speed, long minEventGapNanos) {
+		this(speed, minEventGapNanos, false);
+	}
+
+	/**
+	 * Constructs options
+	 * @param speed factor every sleep is divided by, Double.POSITIVE_INFINITY to ignore sleeps
+	 * @param minEventGapNanos smallest time between two key events, in nanoseconds, 0 to send runs of
+	 * events between sleeps all at once
+	 * @param bulkText whether runs of at least KeySink.getMinTextLength() plain keys may be typed in one go
+	 * @throws IllegalArgumentException if speed is not positive or minEventGapNanos is negative
+	 */
+	public ReplayOptions(double speed, long minEventGapNanos, boolean bulkText) {
+		if (!(speed > 0)) {
+			throw new IllegalArgumentException("Invalid replay speed.");
+		}
+		if (minEventGapNanos < 0) {
+			throw new IllegalArgumentException("Invalid event gap.");
+		}
+		this.speed = speed;
+		this.minEventGapNanos = minEventGapNanos;
+		this.bulkText = bulkText;
+	}
+
+	/**
+	 * Creates options replaying sleeps scaled by a speed
+	 * @param speed factor every sleep is divided by
+	 * @return the options
+	 * @throws IllegalArgumentException if speed is not positive
+	 */
+	public static ReplayOptions scaled(double speed) {
+		return new ReplayOptions(speed, 0);
+	}
+
+	/**
+	 * Creates options which ignore sleeps and send events as fast as allowed
+	 * @param minEventGapNanos smallest time between two key events, in nanoseconds
+	 * @return the options
+	 * @throws IllegalArgumentException if minEventGapNanos is negative
+	 */
+	public static ReplayOptions maxThroughput(long minEventGapNanos) {
+		return new ReplayOptions(Double.POSITIVE_INFINITY, minEventGapNanos);
+	}
+
+	/**
+	 * Creates options which ignore sleeps and space events by the sustained rate measured on a sink.
+	 * Measuring sends Shift presses and releases to the sink.
+	 * @param sink the sink to measure
+	 * @return the options
+	 * @throws InterruptedException if the thread is interrupted while measuring
+	 */
+	public static ReplayOptions calibrated(KeySink sink) throws InterruptedException {
+		return SinkCalibration.measure(sink).toOptions();
+	}
+
+	/**
+	 * Creates the same options, typing long runs of plain text in one go or not
+	 * @param bulkText whether runs of at least KeySink.getMinTextLength() plain keys may be typed in one go
+	 * @return the options
+	 */
+	public ReplayOptions withBulkText(boolean bulkText) {
+		return bulkText == this.bulkText ? this : new ReplayOptions(speed, minEventGapNanos, bulkText);
+	}
+
+	/**
+	 * Gets the factor every sleep is divided by
+	 * @return the speed, infinite in max throughput mode
+	 */
+	public double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * Tells if sleeps are ignored
+	 * @return true if events are sent as fast as allowed
+	 */
+	public boolean isMaxThroughput() {
+		return speed == Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Gets the smallest time between two key events
+	 * @return the gap in nanoseconds, 0 if runs of events are sent all at once
+	 */
+	public long getMinEventGapNanos() {
+		return minEventGapNanos;
+	}
+
+	/**
+	 * Tells if long runs of plain text are typed in one go, such as by pasting them, when the sink can.
+	 * Text is never typed in one go when events are spaced by a gap.
+	 * @return true if runs of text are typed in one go
+	 */
+	public boolean isBulkText() {
+		return bulkText;
+	}
+
+	/**
+	 * Scales a sleep by the speed
+	 * @param delayNanos the sleep of the macro, in nanoseconds
+	 * @return how long to sleep, in nanoseconds
+	 */
+	public long scaleDelay(long delayNanos) {
+		return speed == 1 ? delayNanos : (long) (delayNanos / speed);
+	}
+
+	/**
+	 * Gets a description of the options
+	 * @return the description
+	 */
+	@Override
+	public String toString() {
+		return (isMaxThroughput() ? "max throughput" : speed + "x") + ", min event gap " + minEventGapNanos / 1000 + "us"
+				+ (bulkText ? ", text typed in one go" : "");
+	}
+}
@@ -0,0 +1,182 @@
+package replay;
+
+/**
+ * Timing results of a single replay.
+ * Every run of key events between two sleeps shares a deadline on the replay's timeline,
+ * and the report holds how late each of those runs was actually sent.
+ * Only the first MAX_RECORDED_RUNS runs are kept one by one, so a repeat block run millions of times takes no more
+ * memory to report than one run a few thousand times. The totals, mean and worst lateness cover every run.
+ *
+ * @author ABM
+ *
+ */
+public class ReplayReport {
+
+	/** Most runs of key events whose timing is kept one by one */
+	public static final int MAX_RECORDED_RUNS = 4096;
+
+	/** Deadline of each run of key events, in nanoseconds from the start of the replay */
+	private final long[] deadlines;
+	/** How late each run of key events was sent, in nanoseconds */
+	private final long[] lateness;
+	/** Number of key events sent in each run */
+	private final int[] eventCounts;
+	/** Number of runs of key events recorded */
+	private final int size;
+	/** Number of runs of key events sent, recorded or not */
+	private final long runCount;
+	/** Number of key events sent */
+	private final long totalEventCount;
+	/** Sum of the lateness of every run, in nanoseconds */
+	private final long totalLateness;
+	/** Worst lateness of any run, in nanoseconds */
+	private final long maxLateness;
+	/** When the replay should have finished, in nanoseconds from its start */
+	private final long scheduledDuration;
+	/** When the replay actually finished, in nanoseconds from its start */
+	private final long actualDuration;
+
+	/**
+	 * Constructs a report
+	 * @param deadlines deadline of each run of key events, in nanoseconds from the start of the replay
+	 * @param lateness how late each run of key events was sent, in nanoseconds
+	 * @param eventCounts number of key events sent in each run
+	 * @param size number of runs of key events recorded
+	 * @param runCount number of runs of key events sent, recorded or not
+	 * @param totalEventCount number of key events sent
+	 * @param totalLateness sum of the lateness of every run, in nanoseconds
+	 * @param maxLateness worst lateness of any run, in nanoseconds
+	 * @param scheduledDuration when the replay should have finished, in nanoseconds from its start
+	 * @param actualDuration when the replay actually finished, in nanoseconds from its start
+	 */
+	ReplayReport(long[] deadlines, long[] lateness, int[] eventCounts, int size, long runCount, long totalEventCount,
+			long totalLateness, long maxLateness, long scheduledDuration, long actualDuration) {
+		this.deadlines = deadlines;
+		this.lateness = lateness;
+		this.eventCounts = eventCounts;
+		this.size = size;
+		this.runCount = runCount;
+		this.totalEventCount = totalEventCount;
+		this.totalLateness = totalLateness;
+		this.maxLateness = maxLateness;
+		this.scheduledDuration = scheduledDuration;
+		this.actualDuration = actualDuration;
+	}
+
+	/**
+	 * Gets the number of runs of key events whose timing is kept one by one
+	 * @return the number of recorded runs, at most MAX_RECORDED_RUNS
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of runs of key events sent over the whole replay
+	 * @return the number of runs, recorded or not
+	 */
+	public long getRunCount() {
+		return runCount;
+	}
+
+	/**
+	 * Gets the deadline of a run of key events
+	 * @param index index of the run
+	 * @return the deadline in nanoseconds from the start of the replay
+	 */
+	public long getDeadline(int index) {
+		checkIndex(index);
+		return deadlines[index];
+	}
+
+	/**
+	 * Gets how late a run of key events was sent
+	 * @param index index of the run
+	 * @return the lateness in nanoseconds
+	 */
+	public long getLateness(int index) {
+		checkIndex(index);
+		return lateness[index];
+	}
+
+	/**
+	 * Gets the number of key events in a run
+	 * @param index index of the run
+	 * @return the number of key presses and releases sent together
+	 */
+	public int getEventCount(int index) {
+		checkIndex(index);
+		return eventCounts[index];
+	}
+
+	/**
+	 * Gets the total number of key events sent
+	 * @return the number of key presses and releases
+	 */
+	public long getTotalEventCount() {
+		return totalEventCount;
+	}
+
+	/**
+	 * Gets the worst lateness of any run of key events
+	 * @return the largest lateness in nanoseconds, 0 if nothing was sent
+	 */
+	public long getMaxLateness() {
+		return maxLateness;
+	}
+
+	/**
+	 * Gets the average lateness of the runs of key events
+	 * @return the mean lateness in nanoseconds, 0 if nothing was sent
+	 */
+	public long getMeanLateness() {
+		return runCount == 0 ? 0 : totalLateness / runCount;
+	}
+
+	/**
+	 * Gets when the replay should have finished
+	 * @return the scheduled duration in nanoseconds
+	 */
+	public long getScheduledDuration() {
+		return scheduledDuration;
+	}
+
+	/**
+	 * Gets when the replay actually finished
+	 * @return the actual duration in nanoseconds
+	 */
+	public long getActualDuration() {
+		return actualDuration;
+	}
+
+	/**
+	 * Gets the rate key events were actually sent at over the whole replay
+	 * @return the number of key events per second, 0 if the replay took no time
+	 */
+	public double getEventsPerSecond() {
+		return actualDuration <= 0 ? 0 : getTotalEventCount() * 1e9 / actualDuration;
+	}
+
+	/**
+	 * Gets a summary of the report
+	 * @return the summary
+	 */
+	@Override
+	public String toString() {
+		return "Replay of " + getTotalEventCount() + " events in " + runCount + " runs, scheduled "
+				+ scheduledDuration / 1000 + "us, took " + actualDuration / 1000 + "us, mean lateness "
+				+ getMeanLateness() / 1000 + "us, max lateness " + getMaxLateness() / 1000 + "us, "
+				+ (long) getEventsPerSecond() + " events/s";
+	}
+
+	/**
+	 * Checks that an index refers to a recorded run
+	 * @param index index to check
+	 * @throws IndexOutOfBoundsException if the index is out of range
+	 */
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Invalid run index " + index + ".");
+		}
+	}
+}
@@ -0,0 +1,359 @@
+package replay;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import macros.Macro;
+import mkbd.kbd.KeySink;
+
+/**
+ * Replays any number of macros at once on a single thread, so their keys never interleave in the middle of a chord.
+ * The timelines of every active replay are merged into one queue ordered by when each replay next has keys due.
+ * A due replay sends its keys up to its next sleep, then gives way to the other replays until its next run is due.
+ * <p>
+ * Among replays due at the same time the one with the highest priority goes first, and a replay with a higher
+ * priority falling due stops a running one between two instructions. Keys the stopped replay holds down, such as
+ * Shift held across several capitals, are let go before the urgent replay types and pressed again when it resumes
+ * from where it stopped.
+ * </p>
+ *
+ * @author ABM
+ *
+ */
+public class ReplayScheduler {
+
+	/** Priority of replays submitted without one */
+	public static final int NORMAL_PRIORITY = 0;
+	/** Priority of replays which should stop normal ones to run */
+	public static final int URGENT_PRIORITY = 10;
+	/** How close to its deadline a replay is taken as due, the clock waits out the rest more precisely than parking */
+	private static final long DUE_MARGIN_NANOS = SystemReplayClock.DEFAULT_SPIN_NANOS;
+	/** Orders replays by when they are next due */
+	private static final Comparator<ScheduledReplay> BY_DEADLINE = (a, b) -> {
+		int cmp = Long.compare(a.deadline() - b.deadline(), 0);
+		return cmp != 0 ? cmp : Long.compare(a.sequence, b.sequence);
+	};
+	/** Orders due replays by priority, then by when they were due */
+	private static final Comparator<ScheduledReplay> BY_PRIORITY = (a, b) -> {
+		int cmp = Integer.compare(b.priority, a.priority);
+		return cmp != 0 ? cmp : BY_DEADLINE.compare(a, b);
+	};
+	/** Scheduler used by Macro.interpretMacro */
+	private static final ReplayScheduler DEFAULT = new ReplayScheduler(SystemReplayClock.INSTANCE);
+
+	/** Clock every replay is timed with */
+	private final ReplayClock clock;
+	/** Thread sending the keys of every replay */
+	private final Thread thread;
+	/** Replays submitted and not yet seen by the scheduling thread */
+	private final Queue<ScheduledReplay> submitted = new ConcurrentLinkedQueue<>();
+	/** Replays submitted and not finished yet */
+	private final Set<ReplayHandle> active = ConcurrentHashMap.newKeySet();
+	/** Replays waiting for their next run to be due, only used by the scheduling thread */
+	private final PriorityQueue<ScheduledReplay> waiting = new PriorityQueue<>(BY_DEADLINE);
+	/** Replays due to run, only used by the scheduling thread */
+	private final PriorityQueue<ScheduledReplay> ready = new PriorityQueue<>(BY_PRIORITY);
+	/** Replay which sent the last keys, the only one which may still hold keys down */
+	private ScheduledReplay last;
+	/** Number of replays taken from submitted so far, breaks ties between equal deadlines */
+	private long sequence;
+	/** Set when a replay is submitted or cancelled, so the running replay gives way while the queues are checked */
+	private volatile boolean changed;
+	/** Set once the scheduler stops accepting replays */
+	private volatile boolean shutdown;
+
+	/**
+	 * Constructs a scheduler and starts its thread
+	 * @param clock clock every replay is timed with
+	 * @throws IllegalArgumentException if clock is null
+	 */
+	public ReplayScheduler(ReplayClock clock) {
+		if (clock == null) {
+			throw new IllegalArgumentException("Invalid replay clock.");
+		}
+		this.clock = clock;
+		thread = new Thread(this::schedule, "macro-scheduler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Gets the scheduler shared by the whole program
+	 * @return the default scheduler
+	 */
+	public static ReplayScheduler getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Queues a real time replay at normal priority
+	 * @param macro macro to replay
+	 * @param sink where to send the key events of the macro
+	 * @return handle for the replay
+	 */
+	public ReplayHandle submit(Macro macro, KeySink sink) {
+		return submit(macro, sink, ReplayOptions.REAL_TIME);
+	}
+
+	/**
+	 * Queues a replay at normal priority
+	 * @param macro macro to replay
+	 * @param sink where to send the key events of the macro
+	 * @param options how fast to replay
+	 * @return handle for the replay
+	 */
+	public ReplayHandle submit(Macro macro, KeySink sink, ReplayOptions options) {
+		return submit(macro, sink, options, NORMAL_PRIORITY);
+	}
+
+	/**
+	 * Queues a replay, which starts as soon as no replay with a higher priority is due
+	 * @param macro macro to replay
+	 * @param sink where to send the key events of the macro
+	 * @param options how fast to replay
+	 * @param priority priority of the replay, higher priorities stop lower ones while they are due
+	 * @return handle for the replay
+	 * @throws IllegalArgumentException if macro, sink or options is null
+	 * @throws IllegalStateException if the scheduler has been shut down
+	 */
+	public ReplayHandle submit(Macro macro, KeySink sink, ReplayOptions options, int priority) {
+		if (macro == null) {
+			throw new IllegalArgumentException("Invalid macro.");
+		}
+		if (sink == null) {
+			throw new IllegalArgumentException("Invalid key sink.");
+		}
+		if (options == null) {
+			throw new IllegalArgumentException("Invalid replay options.");
+		}
+		if (shutdown) {
+			throw new IllegalStateException("Replay scheduler has been shut down.");
+		}
+		ReplayHandle handle = new ReplayHandle(macro, this);
+		ReplayCursor cursor = new ReplayCursor(sink, clock, options, macro.getReplayProgram(), macro.getResolver());
+		active.add(handle);
+		handle.getCompletion().whenComplete((report, failure) -> active.remove(handle));
+		submitted.add(new ScheduledReplay(handle, cursor, priority, clock.nanoTime()));
+		wake();
+		return handle;
+	}
+
+	/**
+	 * Gets the number of replays queued or running
+	 * @return the number of unfinished replays
+	 */
+	public int getActiveCount() {
+		return active.size();
+	}
+
+	/**
+	 * Cancels every queued and running replay
+	 * @return the number of replays cancelled
+	 */
+	public int cancelAll() {
+		int cancelled = 0;
+		for (ReplayHandle handle : active) {
+			if (handle.cancel()) {
+				cancelled++;
+			}
+		}
+		return cancelled;
+	}
+
+	/**
+	 * Cancels every replay and stops accepting new ones, the scheduling thread exits once they have stopped
+	 */
+	public void shutdown() {
+		shutdown = true;
+		cancelAll();
+		wake();
+	}
+
+	/**
+	 * Makes the scheduling thread check its queues, done when a replay is submitted or cancelled
+	 */
+	void wake() {
+		changed = true;
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Runs due replays one run of keys at a time until the scheduler is shut down
+	 */
+	private void schedule() {
+		while (true) {
+			boolean check = changed;
+			changed = false;
+			for (ScheduledReplay r = submitted.poll(); r != null; r = submitted.poll()) {
+				r.sequence = sequence++;
+				waiting.add(r);
+			}
+			if (check) {
+				stopCancelled();
+			}
+			if (shutdown && waiting.isEmpty() && ready.isEmpty()) {
+				break;
+			}
+			long now = clock.nanoTime();
+			while (!waiting.isEmpty() && waiting.peek().deadline() - now <= DUE_MARGIN_NANOS) {
+				ready.add(waiting.poll());
+			}
+			ScheduledReplay next = ready.poll();
+			if (next != null) {
+				run(next);
+			} else if (!changed) {
+				LockSupport.parkNanos(this, waiting.isEmpty() ? Long.MAX_VALUE : waiting.peek().deadline() - now - DUE_MARGIN_NANOS);
+			}
+		}
+		for (ScheduledReplay r = submitted.poll(); r != null; r = submitted.poll()) {
+			r.handle.cancel();
+		}
+	}
+
+	/**
+	 * Sends the keys of a due replay up to its next sleep, or until a replay with a higher priority falls due
+	 * @param next the replay
+	 */
+	private void run(ScheduledReplay next) {
+		ReplayHandle handle = next.handle;
+		if (handle.getStatus().isDone()) {
+			return;
+		}
+		try {
+			if (handle.isCancelRequested()) {
+				stop(next, ReplayStatus.CANCELLED, null, null);
+				return;
+			}
+			if (!next.started) {
+				if (!handle.started()) {
+					return;
+				}
+				next.cursor.begin();
+				next.started = true;
+			}
+			if (last != next && last != null) {
+				last.cursor.suspend();
+			}
+			last = next;
+			if (next.cursor.isEnded()) {
+				stop(next, ReplayStatus.COMPLETED, next.cursor.finish(), null);
+				return;
+			}
+			ScheduledReplay urgent = firstUrgent(next.priority);
+			BooleanSupplier yield = urgent == null ? () -> changed
+					: () -> changed || urgent.deadline() - clock.nanoTime() <= DUE_MARGIN_NANOS;
+			next.cursor.step(yield);
+			waiting.add(next);
+		} catch (InterruptedException e) {
+			stop(next, ReplayStatus.CANCELLED, null, null);
+		} catch (RuntimeException | Error e) {
+			stop(next, ReplayStatus.FAILED, null, e);
+		}
+	}
+
+	/**
+	 * Finds the waiting replay with a higher priority than the running one which falls due first
+	 * @param priority priority of the running replay
+	 * @return the replay, or null if no waiting replay has a higher priority
+	 */
+	private ScheduledReplay firstUrgent(int priority) {
+		ScheduledReplay first = null;
+		for (ScheduledReplay r : waiting) {
+			if (r.priority > priority && (first == null || BY_DEADLINE.compare(r, first) < 0)) {
+				first = r;
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * Stops the waiting replays which have been cancelled, rather than leaving them until they are due
+	 */
+	private void stopCancelled() {
+		for (Iterator<ScheduledReplay> it = waiting.iterator(); it.hasNext();) {
+			ScheduledReplay r = it.next();
+			if (r.handle.isCancelRequested() || r.handle.getStatus().isDone()) {
+				it.remove();
+				if (!r.handle.getStatus().isDone()) {
+					stop(r, ReplayStatus.CANCELLED, null, null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops a replay for good, letting go of any keys it holds, and completes its handle
+	 * @param replay the replay
+	 * @param outcome how it stopped
+	 * @param report its timing, null unless it completed
+	 * @param failure what made it fail, null unless it failed
+	 */
+	private void stop(ScheduledReplay replay, ReplayStatus outcome, ReplayReport report, Throwable failure) {
+		if (last == replay) {
+			last = null;
+			try {
+				replay.cursor.suspend();
+			} catch (RuntimeException e) {
+				// The sink is already failing, the replay stops either way
+			}
+		}
+		if (replay.started) {
+			replay.cursor.end(outcome, report);
+		}
+		if (outcome == ReplayStatus.COMPLETED) {
+			replay.handle.completed(report);
+		} else if (outcome == ReplayStatus.CANCELLED) {
+			replay.handle.cancelled();
+		} else {
+			replay.handle.failed(failure);
+		}
+	}
+
+	/**
+	 * A replay in the scheduler's queues
+	 */
+	private static final class ScheduledReplay {
+
+		/** Handle of the replay */
+		final ReplayHandle handle;
+		/** Where the replay has got to */
+		final ReplayCursor cursor;
+		/** Priority of the replay */
+		final int priority;
+		/** When the replay was submitted */
+		final long submittedAt;
+		/** Order the replay was seen in by the scheduling thread */
+		long sequence;
+		/** Whether the replay has started sending keys */
+		boolean started;
+
+		/**
+		 * Constructs a queued replay
+		 * @param handle handle of the replay
+		 * @param cursor cursor at the start of its program
+		 * @param priority priority of the replay
+		 * @param submittedAt when it was submitted
+		 */
+		ScheduledReplay(ReplayHandle handle, ReplayCursor cursor, int priority, long submittedAt) {
+			this.handle = handle;
+			this.cursor = cursor;
+			this.priority = priority;
+			this.submittedAt = submittedAt;
+		}
+
+		/**
+		 * Gets when the replay next has keys due
+		 * @return the deadline on the scheduler's clock
+		 */
+		long deadline() {
+			return started ? cursor.getDeadline() : submittedAt;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package replay;
+
+/**
+ * Stages a replay submitted to a ReplayScheduler goes through.
+ *
+ * @author ABM
+ *
+ */
+public enum ReplayStatus {
+	/** Waiting for its first turn on the scheduler */
+	QUEUED,
+	/** Sending key events */
+	RUNNING,
+	/** Finished sending every key event */
+	COMPLETED,
+	/** Stopped because of an exception */
+	FAILED,
+	/** Stopped by a call to cancel before finishing */
+	CANCELLED;
+
+	/**
+	 * Tells if the replay has stopped for good
+	 * @return true if the status is COMPLETED, FAILED or CANCELLED
+	 */
+	public boolean isDone() {
+		return this == COMPLETED || this == FAILED || this == CANCELLED;
+	}
+}
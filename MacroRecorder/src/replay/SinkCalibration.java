@@ -0,0 +1,125 @@
+package replay;
+
+import java.awt.event.KeyEvent;
+
+import mkbd.kbd.KeySink;
+
+/**
+ * Sustained rate at which a sink accepts key events.
+ * The rate is measured by sending Shift presses and releases one event at a time, the same way a max
+ * throughput replay with a minimum event gap sends them, since Shift alone types nothing into the target.
+ *
+ * @author ABM
+ *
+ */
+public final class SinkCalibration {
+
+	/** Default number of events sent while measuring */
+	public static final int DEFAULT_CALIBRATION_EVENTS = 2000;
+	/** Events sent before measuring starts, so the sink and the JIT are warmed up */
+	private static final int WARM_UP_EVENTS = 200;
+	/** Number of events measured */
+	private final int eventCount;
+	/** How long the measured events took, in nanoseconds */
+	private final long elapsedNanos;
+
+	/**
+	 * Constructs a calibration
+	 * @param eventCount number of events measured
+	 * @param elapsedNanos how long they took, in nanoseconds
+	 */
+	private SinkCalibration(int eventCount, long elapsedNanos) {
+		this.eventCount = eventCount;
+		this.elapsedNanos = Math.max(1, elapsedNanos);
+	}
+
+	/**
+	 * Measures a sink with DEFAULT_CALIBRATION_EVENTS events
+	 * @param sink the sink to measure
+	 * @return the measured rate
+	 * @throws InterruptedException if the thread is interrupted while measuring
+	 */
+	public static SinkCalibration measure(KeySink sink) throws InterruptedException {
+		return measure(sink, SystemReplayClock.INSTANCE, DEFAULT_CALIBRATION_EVENTS);
+	}
+
+	/**
+	 * Measures a sink
+	 * @param sink the sink to measure
+	 * @param clock clock to time the events with
+	 * @param events number of events to measure, rounded up to a whole number of presses and releases
+	 * @return the measured rate
+	 * @throws IllegalArgumentException if sink or clock is null, or events is not positive
+	 * @throws InterruptedException if the thread is interrupted while measuring
+	 */
+	public static SinkCalibration measure(KeySink sink, ReplayClock clock, int events) throws InterruptedException {
+		if (sink == null || clock == null || events <= 0) {
+			throw new IllegalArgumentException("Invalid calibration.");
+		}
+		int pairs = (events + 1) / 2;
+		int[] tap = { KeySink.press(KeyEvent.VK_SHIFT), KeySink.release(KeyEvent.VK_SHIFT) };
+		send(sink, tap, WARM_UP_EVENTS / 2);
+		long start = clock.nanoTime();
+		send(sink, tap, pairs);
+		return new SinkCalibration(pairs * 2, clock.nanoTime() - start);
+	}
+
+	/**
+	 * Sends Shift presses and releases one event at a time
+	 * @param sink the sink
+	 * @param tap press and release of Shift
+	 * @param pairs number of presses and releases to send
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	private static void send(KeySink sink, int[] tap, int pairs) throws InterruptedException {
+		for (int i = 0; i < pairs; i++) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			sink.submit(tap, 0, 1);
+			sink.submit(tap, 1, 1);
+		}
+		sink.flush();
+	}
+
+	/**
+	 * Gets the number of events measured
+	 * @return the number of events
+	 */
+	public int getEventCount() {
+		return eventCount;
+	}
+
+	/**
+	 * Gets the measured rate
+	 * @return the number of events the sink accepts per second
+	 */
+	public double getEventsPerSecond() {
+		return eventCount * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * Gets the average time the sink took per event, which is the smallest gap worth leaving between events
+	 * @return the gap in nanoseconds
+	 */
+	public long getMinEventGapNanos() {
+		return (elapsedNanos + eventCount - 1) / eventCount;
+	}
+
+	/**
+	 * Creates max throughput options spacing events by the measured gap
+	 * @return the options
+	 */
+	public ReplayOptions toOptions() {
+		return ReplayOptions.maxThroughput(getMinEventGapNanos());
+	}
+
+	/**
+	 * Gets a summary of the calibration
+	 * @return the summary
+	 */
+	@Override
+	public String toString() {
+		return (long) getEventsPerSecond() + " events/s, min event gap " + getMinEventGapNanos() / 1000 + "us";
+	}
+}
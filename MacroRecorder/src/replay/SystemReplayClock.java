@@ -0,0 +1,64 @@
+package replay;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replay clock backed by System.nanoTime().
+ * Long waits park the thread until shortly before the deadline, then spin for the remainder,
+ * so events land on their deadline without the wake-up jitter of a plain sleep.
+ *
+ * @author ABM
+ *
+ */
+public class SystemReplayClock implements ReplayClock {
+
+	/** Default length of the spin at the end of a wait, in nanoseconds */
+	public static final long DEFAULT_SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+	/** Shared clock using the default spin length */
+	public static final SystemReplayClock INSTANCE = new SystemReplayClock(DEFAULT_SPIN_NANOS);
+	/** How long before a deadline the clock stops parking and starts spinning */
+	private final long spinNanos;
+
+	/**
+	 * Constructs a clock
+	 * @param spinNanos how long before a deadline to stop parking and start spinning, in nanoseconds
+	 * @throws IllegalArgumentException if spinNanos is negative
+	 */
+	public SystemReplayClock(long spinNanos) {
+		if (spinNanos < 0) {
+			throw new IllegalArgumentException("Invalid spin length.");
+		}
+		this.spinNanos = spinNanos;
+	}
+
+	/**
+	 * Gets the current time of the clock
+	 * @return System.nanoTime()
+	 */
+	@Override
+	public long nanoTime() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Parks until the deadline is close, then spins until it passes
+	 * @param deadline the time to wait for, in nanoseconds
+	 * @throws InterruptedException if the waiting thread is interrupted
+	 */
+	@Override
+	public void waitUntil(long deadline) throws InterruptedException {
+		long remaining = deadline - System.nanoTime();
+		while (remaining > 0) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (remaining > spinNanos) {
+				LockSupport.parkNanos(this, remaining - spinNanos);
+			} else {
+				Thread.onSpinWait();
+			}
+			remaining = deadline - System.nanoTime();
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package replay;
+
+/**
+ * Simulated replay clock which never waits.
+ * Waiting for a deadline moves the clock straight to it, so a replay timed by this clock runs through its
+ * whole timeline as fast as its keys can be produced while every event still gets its exact deadline.
+ * A clock holds the time of a single replay and is not shared between threads.
+ *
+ * @author ABM
+ *
+ */
+public class VirtualReplayClock implements ReplayClock {
+
+	/** Current time of the clock, in nanoseconds */
+	private long now;
+
+	/**
+	 * Constructs a clock starting at 0
+	 */
+	public VirtualReplayClock() {
+		this(0);
+	}
+
+	/**
+	 * Constructs a clock
+	 * @param start the time the clock starts at, in nanoseconds
+	 */
+	public VirtualReplayClock(long start) {
+		this.now = start;
+	}
+
+	/**
+	 * Gets the current time of the clock
+	 * @return the simulated time in nanoseconds
+	 */
+	@Override
+	public long nanoTime() {
+		return now;
+	}
+
+	/**
+	 * Moves the clock to a deadline, leaving it as it is if it already reached it
+	 * @param deadline the time to wait for, in nanoseconds
+	 */
+	@Override
+	public void waitUntil(long deadline) {
+		if (deadline - now > 0) {
+			now = deadline;
+		}
+	}
+
+	/**
+	 * Tells if the clock follows real time
+	 * @return false, the clock is simulated
+	 */
+	@Override
+	public boolean isRealTime() {
+		return false;
+	}
+}
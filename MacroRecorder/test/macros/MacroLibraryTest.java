@@ -0,0 +1,81 @@
+package macros;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the prefix search of MacroLibrary
+ *
+ * @author ABM
+ *
+ */
+public class MacroLibraryTest {
+
+	/** Library searched by every test */
+	private MacroLibrary library;
+
+	/**
+	 * Fills the library with macros added out of name order
+	 */
+	@BeforeEach
+	public void setUp() {
+		library = new MacroLibrary();
+		library.add(new Macro("greet", "hello"));
+		library.add(new Macro("go", "g"));
+		library.add(new Macro("grab", "abc"));
+		library.add(new Macro("exit", "x"));
+		library.add(new Macro("green", "e"));
+	}
+
+	/**
+	 * Tests that matches come back in name order and stop at the limit
+	 */
+	@Test
+	public void testFindByPrefixLimit() {
+		assertEquals(List.of("grab", "green", "greet"), names(library.findByPrefix("gr", 10)));
+		assertEquals(List.of("grab", "green"), names(library.findByPrefix("gr", 2)));
+		assertEquals(List.of("greet"), names(library.findByPrefix("greet", 10)));
+		assertTrue(library.findByPrefix("gr", 0).isEmpty());
+	}
+
+	/**
+	 * Tests that an empty prefix matches every macro, up to the limit
+	 */
+	@Test
+	public void testFindByPrefixEmpty() {
+		assertEquals(List.of("exit", "go", "grab", "green", "greet"), names(library.findByPrefix("", 10)));
+		assertEquals(List.of("exit", "go"), names(library.findByPrefix("", 2)));
+	}
+
+	/**
+	 * Tests that a prefix no name starts with finds nothing, including one sorted between two names
+	 */
+	@Test
+	public void testFindByPrefixNoMatch() {
+		assertTrue(library.findByPrefix("z", 10).isEmpty());
+		assertEquals(1, library.findByPrefix("gra", 10).size());
+		assertTrue(library.findByPrefix("grc", 10).isEmpty());
+		assertTrue(library.findByPrefix(null, 10).isEmpty());
+		library.remove("grab");
+		assertTrue(library.findByPrefix("gra", 10).isEmpty());
+	}
+
+	/**
+	 * Gets the names of macros
+	 * @param macros the macros
+	 * @return their names, in the same order
+	 */
+	private static List<String> names(List<Macro> macros) {
+		List<String> names = new ArrayList<>();
+		for (Macro m : macros) {
+			names.add(m.getMacroName());
+		}
+		return names;
+	}
+}